@@ -4,9 +4,16 @@ package sc.fiji.CMP_BIA.plugins;
  */
 
 import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Paths;
 
+import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+import sc.fiji.CMP_BIA.segmentation.structures.LabellingWriter;
+import sc.fiji.CMP_BIA.segmentation.superpixels.HyperstackSLIC;
+import sc.fiji.CMP_BIA.segmentation.superpixels.StackSLIC;
 import sc.fiji.CMP_BIA.segmentation.superpixels.jSLIC;
 import sc.fiji.CMP_BIA.tools.Logging;
+import sc.fiji.CMP_BIA.tools.Threading;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
@@ -34,10 +41,15 @@ public class SLIC_superpixels_  implements PlugInFilter {
 	// segmentation paramters
 	protected int gSize = 30;
 	protected float regul = 0.2f;
+	// per-cluster compactness (SLICO)
+	protected boolean adaptive = false;
 	// visualisation funtions
 	protected boolean showROIs = true;
 	protected boolean showSegm = true;
 	protected boolean saveSegm = false;
+	// segment all planes of a stack and number of planes in flight
+	protected boolean doStack = false;
+	protected int inFlight = Threading.nbAvailableThread();
 	Color clrOverlay = null;
 	// set of colours
 	private String[] clrStr = {"none", "yellow", "red", "blue", "green"};
@@ -58,7 +70,9 @@ public class SLIC_superpixels_  implements PlugInFilter {
 			return DONE;
 		}
 		this.image = img;
-		// check that we are working with RGB image
+		// check that we are working with RGB image; no DOES_STACKS since 
+		// the stacks are segmented by StackSLIC in a single run, with the 
+		// flag ImageJ would call run() with the dialog for each slice
 		return DOES_RGB | DOES_8G | DOES_16 | DOES_32;
 	}
 	
@@ -73,10 +87,20 @@ public class SLIC_superpixels_  implements PlugInFilter {
 		GenericDialog gd = new GenericDialog("SLIC segmentation");
 		gd.addNumericField("Init. grid size: ", this.gSize, 0);
 		gd.addNumericField("Regularisation: ", this.regul, 2);
+		gd.addCheckbox("Adaptive compactness (SLICO).", this.adaptive);
 		gd.addChoice("Overlap contours - colour:", clrStr, clrStr[0]);
 		gd.addCheckbox("Export segments as ROIs.", true);
 		gd.addCheckbox("Show final segmentation.", false);
 		gd.addCheckbox("Save segmentation into file.", false);
+		// StackSLIC supports only single channel stacks, the channels of 
+		// a hyperstack are segmented together by HyperstackSLIC
+		boolean multiChannel = (image.getNChannels() > 1);
+		if (multiChannel) {
+			gd.addMessage("All " + image.getNChannels() + " channels of the actual slice are segmented together.");
+		} else if (image.getStackSize() > 1) {
+			gd.addCheckbox("Process all stack slices (label stack).", true);
+			gd.addNumericField("Slices in parallel: ", this.inFlight, 0);
+		}
 		
 		// show the dialog and quit
 		gd.showDialog();
@@ -87,10 +111,16 @@ public class SLIC_superpixels_  implements PlugInFilter {
 		// get values from interface window
 		gSize = (int) gd.getNextNumber();
 		regul = (float) gd.getNextNumber();
+		adaptive = gd.getNextBoolean();
 		showROIs = gd.getNextBoolean();
 		clrOverlay = clrs[ gd.getNextChoiceIndex() ];
 		showSegm = gd.getNextBoolean();
 		saveSegm = gd.getNextBoolean();
+		doStack = false;
+		if (! multiChannel && image.getStackSize() > 1) {
+			doStack = gd.getNextBoolean();
+			inFlight = (int) gd.getNextNumber();
+		}
 				
 		return true;
 	}
@@ -113,6 +143,7 @@ public class SLIC_superpixels_  implements PlugInFilter {
 				process();
 				image.unlock();
 			} catch (Exception e) {
+				IJ.error("SLIC segmentation", "The segmentation failed: " + e.getMessage());
 			} finally {
 				image.unlock();
 			}
@@ -128,12 +159,24 @@ public class SLIC_superpixels_  implements PlugInFilter {
 		long startTime, estimTime;
 		
 		IJ.showProgress(0.);
+		
+		if (doStack) {
+			processStack();
+			return;
+		}
 
 		printInfo("SLIC initialisation...");
 		startTime = System.currentTimeMillis();
 		
-		// init SLIC superpixels
-		sp = new jSLIC(image);
+		// init SLIC superpixels, of the actual slice in case of stacks
+		if (image.getNChannels() > 1) {
+			sp = new HyperstackSLIC(image);
+		} else if (image.getStackSize() > 1) {
+			sp = new jSLIC(new ImagePlus(image.getTitle(), image.getProcessor()));
+		} else {
+			sp = new jSLIC(image);
+		}
+		sp.setAdaptiveCompactness(adaptive);
 		
 		IJ.showProgress(20.);
 
@@ -152,26 +195,50 @@ public class SLIC_superpixels_  implements PlugInFilter {
 		IJ.showProgress(100.);
 	}
 	
+	/**
+	 * segment all slices (or frames) of the stack concurrently, the 
+	 * result is shown as 32-bit label stack
+	 */
+	protected void processStack() {
+		long startTime = System.currentTimeMillis();
+		printInfo("SLIC processing " + image.getStackSize() + " slices...");
+		
+		StackSLIC stackSP = new StackSLIC(image);
+		stackSP.setMaxInFlight(inFlight);
+		stackSP.setAdaptiveCompactness(adaptive);
+		ImagePlus labels = stackSP.process(gSize, regul);
+		
+		ij.IJ.log("SLIC process took " + Long.toString(System.currentTimeMillis() - startTime) + "ms.");
+		IJ.showProgress(90.);
+		
+		labels.setTitle("SLIC superpixels of " + image.getTitle());
+		labels.show();
+		printInfo("SLIC finished.");
+		IJ.showProgress(100.);
+	}
+	
 	/**
 	 * used only for presenting the segmentation results
 	 */
 	protected void showSegmentation() {
+		// a view on the labels of the superpixels, no copy
+		Labelling2D segm = sp.getSegmentation();
 		// show the ROI in ROI manager
 		if (showROIs) {
 			ij.IJ.log(" -> show ROI manager");
-			sp.getSegmentation().showOverlapROIs(image);
+			segm.showOverlapROIs(image);
 		}
 		// show the general Overlay
 		if (clrOverlay != null) {
 			ij.IJ.log(" -> show contour overlap");
-			sp.getSegmentation().showOverlapContours(image, clrOverlay);
+			segm.showOverlapContours(image, clrOverlay);
 		}
 		// show the segments
 		if (showSegm) {
 			try {
 				// FIXME in case of gray images we cannot create colour segmentation mask
 				ij.IJ.log(" -> show segmentation");
-				sp.getSegmentation().showOverlapLabeling(image, 0.5);
+				segm.showOverlapLabeling(image, 0.5);
 			} catch (Exception e) {
 				IJ.error("Your image is not RGB image.");
 			}	
@@ -182,7 +249,16 @@ public class SLIC_superpixels_  implements PlugInFilter {
 			if (od.getPath() != null) {
 				ij.IJ.log(" -> export to file: "+od.getPath());
 				Logging.logMsg(" -> export to file");
-				sp.getSegmentation().exportToFile( od.getPath() );
+				// text only on request, otherwise the compact binary format
+				if (od.getPath().endsWith(".txt")) {
+					segm.exportToFile( od.getPath() );
+				} else {
+					try {
+						segm.save(Paths.get(od.getPath()), LabellingWriter.COMPRESS_RLE | LabellingWriter.COMPRESS_DEFLATE);
+					} catch (IOException e) {
+						IJ.error("Saving the segmentation failed: " + e.getMessage());
+					}
+				}
 			}
 		}
 	}
@@ -46,6 +46,9 @@ abstract public class Labelling {
 	 * @return int[maxLabel+1] of histogram
 	 */
 	public int[] getLabelHist() {
+		if (hist == null) {
+			computeHistogram();
+		}
 		return hist.clone();
 	}
 	
@@ -11,13 +11,16 @@ import ij.gui.Roi;
 import ij.plugin.frame.RoiManager;
 import ij.process.ColorProcessor;
 import ij.process.FloatPolygon;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
 import java.awt.Color;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
@@ -36,10 +39,19 @@ import sc.fiji.CMP_BIA.tools.converters.ConvertStructure;
  * @brief Derivation of an abstract class for Segmentation representation. 
  * This particular child handl only 2D images segmentations.
  * 
+ * @details The labels are stored in a flat row-major array int[width*height] 
+ * (index y*width+x), the same layout as the jSLIC buffers and the ImageJ 
+ * processors. Labelling2D(int[], w, h) wraps such array without copying, 
+ * so a label map of a large image exists in the memory only once; use 
+ * copy() whenever the owner of the array may change it later.
  */
 public class Labelling2D extends Labelling {
-	// labelling
-	private int[][] data = null;
+	// labelling, flat row-major
+	private int[] data = null;
+	// lazily created image of the labels, see toImageProcessor()
+	private ImageProcessor view = null;
+	// lazily computed properties of all segments, see getRegionProperties()
+	private RegionProperties props = null;
 
 	/**
 	 * Construct empty labelling of given size w x h
@@ -54,8 +66,37 @@ public class Labelling2D extends Labelling {
 		dims[1] = h;
 		
 		// init data array
-		data = new int[dims[0]][dims[1]];
-		for(int[] subarray : data) {   Arrays.fill(subarray, 0);   }
+		data = new int[w*h];
+	}
+	
+	/**
+	 * Wrap a flat labelling without copying it, the maximal label is found 
+	 * by a single pass and the histogram is computed only when it is needed
+	 * 
+	 * @param labels int[w*h] row-major labels indexed y*w+x, it is shared
+	 * @param w int width of the segmentation
+	 * @param h int height of the segmentation
+	 */
+	public Labelling2D(int[] labels, int w, int h) {
+		this(labels, w, h, findMaxLabel(labels));
+	}
+	
+	/**
+	 * Wrap a flat labelling without copying and without any pass over it 
+	 * when the maximal label is already known, e.g. from the superpixels
+	 * 
+	 * @param labels int[w*h] row-major labels indexed y*w+x, it is shared
+	 * @param w int width of the segmentation
+	 * @param h int height of the segmentation
+	 * @param maxLabel int the maximal label in the labelling
+	 */
+	public Labelling2D(int[] labels, int w, int h, int maxLabel) {
+		if (labels.length != w*h) {
+			throw new IllegalArgumentException("the labelling size " + labels.length + " does not match " + w + "x" + h + ".");
+		}
+		dims = new int[]{w, h};
+		data = labels;
+		this.maxLabel = maxLabel;
 	}
 	
 	/**
@@ -91,12 +132,14 @@ public class Labelling2D extends Labelling {
 		dims[1] = d[0].length;
 		
 		// init data array
-		data = new int[dims[0]][dims[1]];
+		data = new int[dims[0]*dims[1]];
+		view = null;
+		props = null;
 		
 		// copy data
 		for (int i=0; i<d.length; i++) {
 			for (int j=0; j<d[i].length; j++) {
-				data[i][j] = d[i][j];
+				data[j*dims[0] + i] = d[i][j];
 				if (d[i][j] > maxLabel) {
 					maxLabel = d[i][j];
 				}
@@ -104,6 +147,86 @@ public class Labelling2D extends Labelling {
 		}
 	}
 	
+	/**
+	 * find the maximal value in the labels
+	 * 
+	 * @param labels int[] flat labelling
+	 * @return int maximal label, -1 for empty array
+	 */
+	private static int findMaxLabel(int[] labels) {
+		int max = -1;
+		for (int i=0; i<labels.length; i++) {
+			if (labels[i] > max) {
+				max = labels[i];
+			}
+		}
+		return max;
+	}
+	
+	/**
+	 * Deep copy of the labelling which does not share the labels with this 
+	 * one any more, so it can be kept when the original owner reuses its 
+	 * array (e.g. jSLIC processing the next image)
+	 * 
+	 * @return Labelling2D independent copy
+	 */
+	public Labelling2D copy() {
+		Labelling2D lb = new Labelling2D(data.clone(), dims[0], dims[1], maxLabel);
+		if (hist != null) {
+			lb.hist = hist.clone();
+		}
+		return lb;
+	}
+	
+	/**
+	 * gives the labels themselves, not a copy; after changing them call 
+	 * computeHistogram() to refresh the cached histogram and properties
+	 * 
+	 * @return int[width*height] reference to the flat row-major labels
+	 */
+	public int[] getLabels() {
+		return data;
+	}
+	
+	/**
+	 * Image of the labels which is created at the first call and then kept 
+	 * until the labelling changes, a 16-bit ShortProcessor when all labels 
+	 * fit in it otherwise a 32-bit FloatProcessor (exact up to 2^24 labels)
+	 * 
+	 * @return ImageProcessor of the labelling
+	 */
+	public ImageProcessor toImageProcessor() {
+		if (view == null) {
+			final int n = data.length;
+			if (maxLabel < 65536) {
+				short[] px = new short[n];
+				for (int i=0; i<n; i++) {
+					px[i] = (short) data[i];
+				}
+				view = new ShortProcessor(dims[0], dims[1], px, null);
+			} else {
+				float[] px = new float[n];
+				for (int i=0; i<n; i++) {
+					px[i] = data[i];
+				}
+				view = new FloatProcessor(dims[0], dims[1], px, null);
+			}
+		}
+		return view;
+	}
+	
+	/**
+	 * Zero-copy view of the labels as an RGB processor sharing the label 
+	 * array, so the changes are visible in both; the labels below 2^24 are 
+	 * stored in the RGB channels exactly as they are, e.g. to save them 
+	 * lossless as a 24-bit image (ImageJ has no int[] based gray processor)
+	 * 
+	 * @return ColorProcessor backed by the labels
+	 */
+	public ColorProcessor toColorProcessor() {
+		return new ColorProcessor(dims[0], dims[1], data);
+	}
+	
 	/**
 	 * Gets the label in chosen position, in case out of segmentation it throws 
 	 * an exception
@@ -117,7 +240,7 @@ public class Labelling2D extends Labelling {
 		if (x<0 || y<0 || x>=dims[0] || y>=dims[1]) {
 			throw new IndexOutOfBoundsException();
 		}
-		return data[x][y];
+		return data[y*dims[0] + x];
 	}
 	
 	/**
@@ -129,21 +252,30 @@ public class Labelling2D extends Labelling {
 	 * @param l int new label
 	 */
 	public void setLabel(int x, int y, int l) {
-		maxLabel = -1;
 		// check out of image
 		if (x<0 || y<0 || x>=dims[0] || y>=dims[1]) {
 			throw new IndexOutOfBoundsException();
 		}
+		// a new maximal label does not fit in the histogram
+		if (l > maxLabel) {
+			maxLabel = l;
+			hist = null;
+		}
+		props = null;
 		// update histogram
 		if (hist != null) {
-			hist[ data[x][y] ] --;
+			hist[ data[y*dims[0] + x] ] --;
 			hist[ l ] ++;
 		}
 		// assigne
-		data[x][y] = l;
-		// update max label
-		if (l > maxLabel) {
-			maxLabel = l;
+		data[y*dims[0] + x] = l;
+		// keep the image of labels up to date while the label fits in it
+		if (view != null) {
+			if (l < 65536 || view instanceof FloatProcessor) {
+				view.setf(x, y, l);
+			} else {
+				view = null;
+			}
 		}
 	}
 	
@@ -153,15 +285,11 @@ public class Labelling2D extends Labelling {
 	 */
 	@Override
 	public int[] computeHistogram() {
-		maxLabel = -1;
 		// find new max labels 
-		for (int i=0; i<data.length; i++) {
-			for (int j=0; j<data[i].length; j++) {
-				if (maxLabel < data[i][j]) {
-					maxLabel = data[i][j];
-				}
-			}
-		}
+		maxLabel = findMaxLabel(data);
+		// the labels may be changed through getLabels()
+		view = null;
+		props = null;
 
 		// init hist. array		
 		hist = new int[maxLabel+1];
@@ -169,9 +297,7 @@ public class Labelling2D extends Labelling {
 		
 		// compute histogram
 		for (int i=0; i<data.length; i++) {
-			for (int j=0; j<data[i].length; j++) {
-				hist[ data[i][j] ] ++;
-			}
+			hist[ data[i] ] ++;
 		}
 		return hist;
 	}
@@ -181,16 +307,8 @@ public class Labelling2D extends Labelling {
 	 */
 	@Override
 	public void showLabelling() {
-		// create ImageJ ShortProcessor
-		ShortProcessor segm = new ShortProcessor(dims[0], dims[1]);
-		for (int x=0; x<dims[0]; x++ ) {
-			for (int y=0; y<dims[1]; y++ ) {
-				segm.set(x, y, data[x][y]);
-			}
-		}
-		
 		// create Processor to ImagePlus
-		ImagePlus img = new ImagePlus("Segmentation", segm);
+		ImagePlus img = new ImagePlus("Segmentation", toImageProcessor());
 		img.show();
 	}
 
@@ -218,11 +336,11 @@ public class Labelling2D extends Labelling {
 		
 		// relabel actual labelling and compute histogram
 		for (int i=0; i<data.length; i++) {
-			for (int j=0; j<data[i].length; j++) {
-				data[i][j] = LUT[ data[i][j] ];
-				hist[ data[i][j] ] ++;
-			}
+			data[i] = LUT[ data[i] ];
+			hist[ data[i] ] ++;
 		}
+		view = null;
+		props = null;
 	}
 	
 	/**
@@ -230,7 +348,7 @@ public class Labelling2D extends Labelling {
 	 */
 	@Override
 	public int[][] findSegmentsConnectivity(int[][] neighbors) {
-		return ConvertStructure.arrayLists2intMatrix( Connectivity2D.findSegmetNeighbors2D(data, maxLabel+1, neighbors) );
+		return ConvertStructure.arrayLists2intMatrix( Connectivity2D.findSegmetNeighbors2D(data, dims[0], dims[1], maxLabel+1, neighbors) );
 	}
 
 	/**
@@ -238,18 +356,99 @@ public class Labelling2D extends Labelling {
 	 */
 	@Override
 	public ArrayList<ArrayList<int[]>> findElementsBoundaries(int[][] neighborhood) {
-		return Connectivity2D.segmentBoundariesRaw(data, maxLabel+1, neighborhood);
+		return Connectivity2D.segmentBoundariesRaw(data, dims[0], dims[1], maxLabel+1, neighborhood);
 	}
 	
 	public ArrayList<ArrayList<int[]>> findElementsBoundariesPolygon() {
 		// treat all point and then simplify
 		Logging.logMsg("   -> segment boundaries..");
-		ArrayList<ArrayList<int[]>> bounds = Connectivity2D.segmentBoundaries(data, maxLabel+1);
+		RegionProperties rp = getRegionProperties();
+		int[] start = new int[rp.getNbRegions()];
+		for (int l=0; l<start.length; l++) {
+			start[l] = findStart(rp, l);
+		}
+		ArrayList<ArrayList<int[]>> bounds = Connectivity2D.segmentBoundaries(data, dims[0], dims[1], start);
 		Logging.logMsg("   -> simplify polygon...");
 		Connectivity2D.simplifyPolygon(bounds);
 		return bounds;
 	}
 
+	/**
+	 * The simplified closed boundary of a single segment, it costs only 
+	 * the height of its bounding box and the length of the boundary
+	 * 
+	 * @param label int the segment
+	 * @return ArrayList<int[2]> polygon vertexes or null for missing label
+	 */
+	public ArrayList<int[]> findElementBoundaryPolygon(int label) {
+		int start = findStart(getRegionProperties(), label);
+		if (start < 0) {
+			return null;
+		}
+		ArrayList<ArrayList<int[]>> bounds = new ArrayList<ArrayList<int[]>>();
+		bounds.add( Connectivity2D.traceBoundary(data, dims[0], dims[1], label, start) );
+		Connectivity2D.simplifyPolygon(bounds);
+		return bounds.get(0);
+	}
+	
+	/**
+	 * the most left and then top pixel of a segment, searched only in the 
+	 * first column of its bounding box
+	 * 
+	 * @return int index of the pixel or -1 for missing label
+	 */
+	private int findStart(RegionProperties rp, int label) {
+		int[] bbox = rp.getBoundingBox(label);
+		if (bbox == null) {
+			return -1;
+		}
+		for (int y=bbox[1]; y<=bbox[3]; y++) {
+			if (data[y*dims[0] + bbox[0]] == label) {
+				return y*dims[0] + bbox[0];
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Properties (area, bounding box, centroid and moments) of all segments, 
+	 * they are computed at the first call by one parallel pass and kept 
+	 * until the labelling changes
+	 * 
+	 * @return RegionProperties of labels {0,..,maxLabel}
+	 */
+	public RegionProperties getRegionProperties() {
+		if (props == null) {
+			props = RegionProperties.compute(data, dims[0], dims[1], maxLabel+1);
+		}
+		return props;
+	}
+	
+	/**
+	 * Flat indexes of all pixels of a segment in the row-major order, only 
+	 * the bounding box of the segment is scanned
+	 * 
+	 * @param label int the segment
+	 * @return int[area] indexes y*width+x of the pixels
+	 */
+	public int[] getRegionIndexes(int label) {
+		RegionProperties rp = getRegionProperties();
+		int[] idx = new int[rp.getArea(label)];
+		int[] bbox = rp.getBoundingBox(label);
+		if (bbox == null) {
+			return idx;
+		}
+		int n = 0;
+		for (int y=bbox[1]; y<=bbox[3]; y++) {
+			for (int i=y*dims[0]+bbox[0]; i<=y*dims[0]+bbox[2]; i++) {
+				if (data[i] == label) {
+					idx[n++] = i;
+				}
+			}
+		}
+		return idx;
+	}
+
 	/**
 	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling#showOverlapLabeling(ImagePlus img, float opticaly)
 	 */
@@ -280,16 +479,17 @@ public class Labelling2D extends Labelling {
 
 		// pixel values (local)
 		int c[] = null; 	
+		int l;
 		// create colour segmentation
 		ImageProcessor ip = img.getProcessor().convertToRGB();
 		ImageProcessor segm = new ColorProcessor(dims[0], dims[1]);
-		for (int i=0; i<data.length; i++) {
-			for (int j=0; j<data[i].length; j++) {
-				// segm.set(i, j, lut[ data[i][j] ]);
+		for (int j=0, k=0; j<dims[1]; j++) {
+			for (int i=0; i<dims[0]; i++, k++) {
+				l = data[k];
 				c = ip.getPixel(i, j, c); 
-				clr = new Color((int) (opticaly*c[0]) + lutRGB[data[i][j]][0],
-								(int) (opticaly*c[1]) + lutRGB[data[i][j]][1], 
-								(int) (opticaly*c[2]) + lutRGB[data[i][j]][2]);
+				clr = new Color((int) (opticaly*c[0]) + lutRGB[l][0],
+								(int) (opticaly*c[1]) + lutRGB[l][1], 
+								(int) (opticaly*c[2]) + lutRGB[l][2]);
 				segm.set(i, j, clr.getRGB() );
 			}
 		}
@@ -420,7 +620,7 @@ public class Labelling2D extends Labelling {
 		// go throw overlap of both segmentations
 		for (int i=0; i<end[0]; i++) {
 			for (int j=0; j<end[1]; j++) {
-				overlap[ this.data[i+lShiftA[0]][j+lShiftA[1]] ][ lb.data[i+lShiftB[0]][j+lShiftB[1]] ] ++;
+				overlap[ this.data[(j+lShiftA[1])*this.dims[0] + i+lShiftA[0]] ][ lb.data[(j+lShiftB[1])*lb.dims[0] + i+lShiftB[0]] ] ++;
 			}
 		}
 		
@@ -432,7 +632,7 @@ public class Labelling2D extends Labelling {
 	 */
 	@Override
 	public int[][] findMultiClassBoundaryPoints(int[][] neighbors) {
-		return ConvertStructure.arrayList2intMatrix( Connectivity2D.findBoundaryPoints2D(data, neighbors) );
+		return ConvertStructure.arrayList2intMatrix( Connectivity2D.findBoundaryPoints2D(data, dims[0], dims[1], neighbors) );
 	}
 
 	/**
@@ -440,11 +640,35 @@ public class Labelling2D extends Labelling {
 	 */
 	@Override
 	public Object clone() {
-		return new Labelling2D( this.data );
+		return copy();
 	}
 
 	/**
+	 * Save the labelling in the compact binary format, see LabellingWriter
+	 * 
+	 * @param path Path of the output file
+	 * @param compression int flags LabellingWriter.COMPRESS_RLE and 
+	 * LabellingWriter.COMPRESS_DEFLATE
+	 * @throws IOException
+	 */
+	public void save(Path path, int compression) throws IOException {
+		LabellingWriter.write(path, this, compression);
+	}
+	
+	/**
+	 * Load a labelling saved by save(Path, int)
 	 * 
+	 * @param path Path of the file
+	 * @return Labelling2D loaded labelling
+	 * @throws IOException
+	 */
+	public static Labelling2D load(Path path) throws IOException {
+		return LabellingReader.read(path);
+	}
+
+	/**
+	 * export as a text, one line per column; it is large and slow for big 
+	 * images, see save(Path, int)
 	 */
 	@Override
 	public void exportToFile(String path) {
@@ -459,9 +683,9 @@ public class Labelling2D extends Labelling {
 			out = new PrintWriter(path, "UTF-8");
 			// write data
 			out.println(strDims);
-			for (int i=0; i<data.length; i++) {
-				for (int j=0; j<data[i].length; j++) {
-					out.print( Integer.toString( data[i][j] ) + " ");
+			for (int i=0; i<dims[0]; i++) {
+				for (int j=0; j<dims[1]; j++) {
+					out.print( Integer.toString( data[j*dims[0] + i] ) + " ");
 				}
 				out.println();
 			}
@@ -481,9 +705,9 @@ public class Labelling2D extends Labelling {
 	 */
 	@Override
 	public void printData() {
-		for (int i=0; i<data.length; i++) {
-			for (int j=0; j<data[i].length; j++) {
-				System.out.print( Integer.toString( data[i][j] ) + ", ");
+		for (int i=0; i<dims[0]; i++) {
+			for (int j=0; j<dims[1]; j++) {
+				System.out.print( Integer.toString( data[j*dims[0] + i] ) + ", ");
 			}
 			System.out.println();
 		}
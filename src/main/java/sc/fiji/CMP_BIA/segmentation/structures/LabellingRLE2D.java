@@ -0,0 +1,628 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.structures;
+
+import ij.ImagePlus;
+
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import sc.fiji.CMP_BIA.tools.Threading;
+import sc.fiji.CMP_BIA.tools.converters.ConvertStructure;
+
+/**
+ * @class Labelling RLE 2D
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Run-length encoded 2D labelling for keeping many large label maps
+ * in the memory. Superpixels form long horizontal runs of the same label,
+ * so each row is stored as a sequence of runs (end and label) and the
+ * histogram, relabelling, overlaps, segment neighbours and boundaries are
+ * computed on the runs without decoding the pixels.
+ *
+ * @details All runs are in two flat primitive arrays and rowRuns[y] is the
+ * index of the first run of the row y, so a labelling with R runs takes
+ * 8*R + 4*height bytes instead of 4*width*height. Neighbouring runs in a
+ * row have always different labels, the relabelling merges the runs
+ * which got the same label. The boundary points are listed by rows (by
+ * columns in Labelling2D) and the neighbours of each segment are sorted,
+ * otherwise the results are the same as by Labelling2D; only the greedy
+ * choice of the multi-class points follows the rows too. The neighbourhoods
+ * are assumed to be within distance one, e.g. Connectivity2D.CONNECT4/8.
+ */
+public class LabellingRLE2D extends Labelling {
+	// index of the first run of each row - dim int[height+1]
+	private int[] rowRuns = null;
+	// x position after the last pixel of each run
+	private int[] runEnd = null;
+	// label of each run
+	private int[] runLabel = null;
+	// lazily computed properties of all segments
+	private RegionProperties props = null;
+
+	/**
+	 * Encode a flat row-major labelling
+	 *
+	 * @param labels int[w*h] labels indexed y*w+x
+	 * @param w int width of the segmentation
+	 * @param h int height of the segmentation
+	 */
+	public LabellingRLE2D(final int[] labels, final int w, final int h) {
+		if (labels.length != w*h) {
+			throw new IllegalArgumentException("the labelling size " + labels.length + " does not match " + w + "x" + h + ".");
+		}
+		dims = new int[]{w, h};
+		rowRuns = new int[h+1];
+		// count the runs in each row
+		Threading.parallelFor(0, h, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int y=begin; y<end; y++) {
+					int n = 1;
+					for (int i=y*w+1; i<(y+1)*w; i++) {
+						if (labels[i] != labels[i-1]) {
+							n ++;
+						}
+					}
+					rowRuns[y+1] = n;
+				}
+			}
+		});
+		for (int y=0; y<h; y++) {
+			rowRuns[y+1] += rowRuns[y];
+		}
+		runEnd = new int[rowRuns[h]];
+		runLabel = new int[rowRuns[h]];
+		// fill the runs
+		Threading.parallelFor(0, h, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int y=begin; y<end; y++) {
+					int r = rowRuns[y];
+					int i0 = y*w;
+					for (int x=1; x<w; x++) {
+						if (labels[i0+x] != labels[i0+x-1]) {
+							runEnd[r] = x;
+							runLabel[r++] = labels[i0+x-1];
+						}
+					}
+					runEnd[r] = w;
+					runLabel[r] = labels[i0+w-1];
+				}
+			}
+		});
+		computeHistogram();
+	}
+
+	/**
+	 * Encode a labelling
+	 *
+	 * @param lb Labelling2D to be compressed
+	 */
+	public LabellingRLE2D(Labelling2D lb) {
+		this(lb.getLabels(), lb.dims[0], lb.dims[1]);
+	}
+
+	/**
+	 * Copy constructor
+	 */
+	private LabellingRLE2D(LabellingRLE2D lb) {
+		dims = lb.dims.clone();
+		rowRuns = lb.rowRuns.clone();
+		runEnd = lb.runEnd.clone();
+		runLabel = lb.runLabel.clone();
+		maxLabel = lb.maxLabel;
+		hist = (lb.hist != null) ? lb.hist.clone() : null;
+	}
+
+	/**
+	 * @return int number of all runs, the memory is proportional to it
+	 */
+	public int getNbRuns() {
+		return runEnd.length;
+	}
+
+	/**
+	 * the first pixel of a run
+	 *
+	 * @param r int index of the run
+	 * @param y int row of the run
+	 * @return int x position
+	 */
+	private int runStart(int r, int y) {
+		return (r == rowRuns[y]) ? 0 : runEnd[r-1];
+	}
+
+	/**
+	 * find the run of the row containing given position by binary search
+	 *
+	 * @param y int row
+	 * @param x int position in the row
+	 * @return int index of the run
+	 */
+	private int findRun(int y, int x) {
+		int lo = rowRuns[y], hi = rowRuns[y+1] - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (runEnd[mid] <= x) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Gets the label in chosen position, in case out of segmentation it throws
+	 * an exception
+	 *
+	 * @param x int position in the first dimension
+	 * @param y int position in the second dimension
+	 * @return int label
+	 */
+	public int getLabel(int x, int y) {
+		if (x<0 || y<0 || x>=dims[0] || y>=dims[1]) {
+			throw new IndexOutOfBoundsException();
+		}
+		return runLabel[ findRun(y, x) ];
+	}
+
+	/**
+	 * decode a single row into given array
+	 *
+	 * @param y int row
+	 * @param row int[width] output labels
+	 */
+	private void decodeRow(int y, int[] row) {
+		for (int r=rowRuns[y], x=0; r<rowRuns[y+1]; r++) {
+			Arrays.fill(row, x, runEnd[r], runLabel[r]);
+			x = runEnd[r];
+		}
+	}
+
+	/**
+	 * Decode the whole labelling into uncompressed one
+	 *
+	 * @return Labelling2D with the same labels
+	 */
+	public Labelling2D toLabelling2D() {
+		final int w = dims[0];
+		final int[] labels = new int[w*dims[1]];
+		Threading.parallelFor(0, dims[1], new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int y=begin; y<end; y++) {
+					for (int r=rowRuns[y], x=0; r<rowRuns[y+1]; r++) {
+						Arrays.fill(labels, y*w + x, y*w + runEnd[r], runLabel[r]);
+						x = runEnd[r];
+					}
+				}
+			}
+		});
+		return new Labelling2D(labels, w, dims[1], maxLabel);
+	}
+
+	/**
+	 * Properties of all segments computed directly from the runs at the 
+	 * first call, see Labelling2D.getRegionProperties()
+	 * 
+	 * @return RegionProperties of labels {0,..,maxLabel}
+	 */
+	public RegionProperties getRegionProperties() {
+		if (props == null) {
+			props = new RegionProperties(maxLabel+1);
+			for (int y=0; y<dims[1]; y++) {
+				for (int r=rowRuns[y], x=0; r<rowRuns[y+1]; r++) {
+					props.addRun(runLabel[r], y, x, runEnd[r]);
+					x = runEnd[r];
+				}
+			}
+		}
+		return props;
+	}
+
+	/**
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling#computeHistogram()
+	 */
+	@Override
+	public int[] computeHistogram() {
+		maxLabel = -1;
+		for (int r=0; r<runLabel.length; r++) {
+			if (maxLabel < runLabel[r]) {
+				maxLabel = runLabel[r];
+			}
+		}
+		hist = new int[maxLabel+1];
+		for (int y=0; y<dims[1]; y++) {
+			for (int r=rowRuns[y], x=0; r<rowRuns[y+1]; r++) {
+				hist[ runLabel[r] ] += runEnd[r] - x;
+				x = runEnd[r];
+			}
+		}
+		return hist;
+	}
+
+	/**
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling#reLabel(int[] LUT)
+	 */
+	@Override
+	public void reLabel(int[] LUT) {
+		if ((maxLabel+1) != LUT.length) {
+			throw new IndexOutOfBoundsException("segmentation and new labelling LUT are not same.");
+		}
+
+		assert LUT.length > 0;
+		int newMax = LUT[0];
+		for (int i=1; i<LUT.length; i++) {
+			if (newMax < LUT[i]) {
+				newMax = LUT[i];
+			}
+		}
+		// the histogram is merged by the LUT
+		int[] newHist = new int[newMax+1];
+		if (hist == null) {
+			computeHistogram();
+		}
+		for (int i=0; i<hist.length; i++) {
+			newHist[ LUT[i] ] += hist[i];
+		}
+
+		// relabel the runs and merge the neighbours with the same label
+		int n = 0, first;
+		for (int y=0; y<dims[1]; y++) {
+			first = n;
+			for (int r=rowRuns[y]; r<rowRuns[y+1]; r++) {
+				int l = LUT[ runLabel[r] ];
+				if (n > first && runLabel[n-1] == l) {
+					runEnd[n-1] = runEnd[r];
+				} else {
+					runEnd[n] = runEnd[r];
+					runLabel[n++] = l;
+				}
+			}
+			rowRuns[y] = first;
+		}
+		rowRuns[dims[1]] = n;
+		if (n < runEnd.length) {
+			runEnd = Arrays.copyOf(runEnd, n);
+			runLabel = Arrays.copyOf(runLabel, n);
+		}
+		maxLabel = newMax;
+		hist = newHist;
+		props = null;
+	}
+
+	/**
+	 * Compute the overlap histogram of two segmentations on their runs,
+	 * see Labelling2D.overlaps(Labelling2D, int[])
+	 *
+	 * @param lb is the other segmentation of the same dimension
+	 * @param shift is the relative shift of the second segmentation in relation to this one
+	 * @return int[this.maxLabel][lb.maxLabel] is sparse matrix
+	 */
+	public int[][] overlaps(LabellingRLE2D lb, int[] shift) {
+		int[][] overlap = new int[this.maxLabel+1][lb.maxLabel+1];
+		// shifts and the common range as in Labelling2D
+		final int sA0 = (shift[0] >= 0) ? shift[0] : 0, sA1 = (shift[1] >= 0) ? shift[1] : 0;
+		final int sB0 = (shift[0] < 0) ? -shift[0] : 0, sB1 = (shift[1] < 0) ? -shift[1] : 0;
+		int end0 = (shift[0] < 0) ? this.dims[0]+shift[0] : lb.dims[0]-shift[0];
+		int end1 = (shift[1] < 0) ? this.dims[1]+shift[1] : lb.dims[1]-shift[1];
+		// for segmentations of different sizes stay inside both
+		end0 = Math.min(end0, Math.min(this.dims[0]-sA0, lb.dims[0]-sB0));
+		end1 = Math.min(end1, Math.min(this.dims[1]-sA1, lb.dims[1]-sB1));
+		if (end0 <= 0) {
+			return overlap;
+		}
+
+		int a, b, aEnd, bEnd, x, xNext;
+		for (int j=0; j<end1; j++) {
+			// walk both rows together, positions are relative to the range
+			a = this.findRun(j+sA1, sA0);
+			b = lb.findRun(j+sB1, sB0);
+			x = 0;
+			while (x < end0) {
+				aEnd = this.runEnd[a] - sA0;
+				bEnd = lb.runEnd[b] - sB0;
+				xNext = Math.min(Math.min(aEnd, bEnd), end0);
+				overlap[ this.runLabel[a] ][ lb.runLabel[b] ] += xNext - x;
+				x = xNext;
+				if (aEnd == x) {	a ++;	}
+				if (bEnd == x) {	b ++;	}
+			}
+		}
+		return overlap;
+	}
+
+	/**
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling#findSegmentsConnectivity(int[][])
+	 */
+	@Override
+	public int[][] findSegmentsConnectivity(int[][] neighbors) {
+		final int w = dims[0], h = dims[1];
+		ArrayList<ArrayList<Integer>> segmNeighbors = new ArrayList<ArrayList<Integer>>();
+		for (int i=0; i<=maxLabel; i++) {
+			segmNeighbors.add(i, new ArrayList<Integer>() );
+		}
+		int l, lo, hi, yN, q;
+
+		// the inner pixels of each run compared to the runs under the shifted range
+		for (int y=1; y<h-1; y++) {
+			for (int r=rowRuns[y]; r<rowRuns[y+1]; r++) {
+				lo = Math.max(runStart(r, y), 1);
+				hi = Math.min(runEnd[r], w-1);
+				if (lo >= hi) {		continue;		}
+				l = runLabel[r];
+				for (int n=0; n<neighbors.length; n++) {
+					yN = y + neighbors[n][1];
+					q = findRun(yN, lo + neighbors[n][0]);
+					for (; q<rowRuns[yN+1] && runStart(q, yN) < hi + neighbors[n][0]; q++) {
+						if (runLabel[q] != l && ! segmNeighbors.get(l).contains(runLabel[q])) {
+							segmNeighbors.get(l).add(runLabel[q]);
+						}
+					}
+				}
+			}
+		}
+		for (ArrayList<Integer> list : segmNeighbors) {
+			Collections.sort(list);
+		}
+		return ConvertStructure.arrayLists2intMatrix(segmNeighbors);
+	}
+
+	/**
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling#findElementsBoundaries(int[][] neighborhood)
+	 */
+	@Override
+	public ArrayList<ArrayList<int[]>> findElementsBoundaries(int[][] neighborhood) {
+		final int w = dims[0], h = dims[1];
+		ArrayList<ArrayList<int[]>> boundaryCoords = new ArrayList<ArrayList<int[]>>();
+		for (int i=0; i<=maxLabel; i++) {
+			boundaryCoords.add(i, new ArrayList<int[]>() );
+		}
+		// intervals of boundary pixels in the actual run
+		int[] ivBegin = new int[16], ivEnd = new int[16];
+		int nbIv, s, e, l, lo, hi, dx, yN, q;
+
+		for (int y=0; y<h; y++) {
+			for (int r=rowRuns[y]; r<rowRuns[y+1]; r++) {
+				s = runStart(r, y);
+				e = runEnd[r];
+				l = runLabel[r];
+				ArrayList<int[]> bounds = boundaryCoords.get(l);
+				// all image boundaries are segment boundaries
+				if (y == 0 || y == h-1) {
+					for (int x=s; x<e; x++) {
+						bounds.add( new int[]{x, y} );
+					}
+					continue;
+				}
+				nbIv = 0;
+				if (s == 0) {
+					ivBegin[nbIv] = 0;		ivEnd[nbIv++] = 1;
+				}
+				if (e == w) {
+					ivBegin[nbIv] = w-1;	ivEnd[nbIv++] = w;
+				}
+				lo = Math.max(s, 1);
+				hi = Math.min(e, w-1);
+				for (int n=0; lo<hi && n<neighborhood.length; n++) {
+					dx = neighborhood[n][0];
+					yN = y + neighborhood[n][1];
+					if (yN == y) {
+						// in the same row only the pixels next to other runs
+						if (dx < 0 && lo < Math.min(hi, s-dx)) {
+							if (nbIv+1 >= ivBegin.length) {
+								ivBegin = Arrays.copyOf(ivBegin, 2*ivBegin.length);
+								ivEnd = Arrays.copyOf(ivEnd, 2*ivEnd.length);
+							}
+							ivBegin[nbIv] = lo;		ivEnd[nbIv++] = Math.min(hi, s-dx);
+						} else if (dx > 0 && Math.max(lo, e-dx) < hi) {
+							if (nbIv+1 >= ivBegin.length) {
+								ivBegin = Arrays.copyOf(ivBegin, 2*ivBegin.length);
+								ivEnd = Arrays.copyOf(ivEnd, 2*ivEnd.length);
+							}
+							ivBegin[nbIv] = Math.max(lo, e-dx);		ivEnd[nbIv++] = hi;
+						}
+						continue;
+					}
+					// the pixels above or below a run with other label
+					q = findRun(yN, lo + dx);
+					for (; q<rowRuns[yN+1] && runStart(q, yN) < hi + dx; q++) {
+						if (runLabel[q] != l) {
+							if (nbIv+1 >= ivBegin.length) {
+								ivBegin = Arrays.copyOf(ivBegin, 2*ivBegin.length);
+								ivEnd = Arrays.copyOf(ivEnd, 2*ivEnd.length);
+							}
+							ivBegin[nbIv] = Math.max(runStart(q, yN) - dx, lo);
+							ivEnd[nbIv++] = Math.min(runEnd[q] - dx, hi);
+						}
+					}
+				}
+				addIntervals(bounds, y, ivBegin, ivEnd, nbIv);
+			}
+		}
+		return boundaryCoords;
+	}
+
+	/**
+	 * sort the intervals by the beginning and add the points of their union
+	 *
+	 * @param bounds is the list of points to be extended
+	 * @param y int row of all points
+	 * @param ivBegin int[] first pixel of each interval
+	 * @param ivEnd int[] pixel after the last one of each interval
+	 * @param nbIv int number of the intervals
+	 */
+	private static void addIntervals(ArrayList<int[]> bounds, int y, int[] ivBegin, int[] ivEnd, int nbIv) {
+		int b, e, k;
+		// insertion sort, there is just a few intervals
+		for (int i=1; i<nbIv; i++) {
+			b = ivBegin[i];
+			e = ivEnd[i];
+			for (k=i-1; k>=0 && ivBegin[k]>b; k--) {
+				ivBegin[k+1] = ivBegin[k];
+				ivEnd[k+1] = ivEnd[k];
+			}
+			ivBegin[k+1] = b;
+			ivEnd[k+1] = e;
+		}
+		int x = Integer.MIN_VALUE;
+		for (int i=0; i<nbIv; i++) {
+			for (x=Math.max(x, ivBegin[i]); x<ivEnd[i]; x++) {
+				bounds.add( new int[]{x, y} );
+			}
+		}
+	}
+
+	/**
+	 * @ see {@link sc.fiji.CMP_BIA.segmentation.structures.Labelling#findMultiClassBoundaryPoints(int[][])}
+	 *
+	 * The rows are decoded one by one so only three of them are in the memory.
+	 */
+	@Override
+	public int[][] findMultiClassBoundaryPoints(int[][] neighbors) {
+		final int w = dims[0], h = dims[1];
+		ArrayList<int[]> boundaryPoints = new ArrayList<int[]>();
+		if (w < 3 || h < 3) {
+			return ConvertStructure.arrayList2intMatrix(boundaryPoints);
+		}
+		// three decoded rows around the actual one
+		int[][] rows = new int[3][w];
+		decodeRow(0, rows[0]);
+		decodeRow(1, rows[1]);
+		int[] tmpLb = new int[neighbors.length+1];
+		int nbLb, l, count, firstNear = 0, prevRow = 0;
+
+		for (int j=1; j<h-1; j++) {
+			decodeRow(j+1, rows[(j+1) % 3]);
+			// only the points of the previous and actual row may be neighbours
+			firstNear = prevRow;
+			prevRow = boundaryPoints.size();
+			for (int i=1; i<w-1; i++) {
+				tmpLb[0] = rows[j % 3][i];
+				nbLb = 1;
+				for (int n=0; n<neighbors.length; n++) {
+					l = rows[(j + neighbors[n][1] + 3) % 3][ i + neighbors[n][0] ];
+					int k = 0;
+					while (k < nbLb && tmpLb[k] != l) {		k ++;		}
+					if (k == nbLb) {
+						tmpLb[nbLb++] = l;
+					}
+				}
+				// if in neighbourhood are 3 and more different labels
+				if (nbLb >= 3) {
+					count = 0;
+					for (int n=0; n<neighbors.length; n++) {
+						for (int m=firstNear; m<boundaryPoints.size(); m++) {
+							if (boundaryPoints.get(m)[0]==i+neighbors[n][0] && boundaryPoints.get(m)[1]==j+neighbors[n][1]) {
+								count ++;
+							}
+						}
+					}
+					if (count == 0) {
+						boundaryPoints.add( new int[]{i,j} );
+					}
+				}
+			}
+		}
+		return ConvertStructure.arrayList2intMatrix(boundaryPoints);
+	}
+
+	/**
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling#showLabelling()
+	 */
+	@Override
+	public void showLabelling() {
+		// the image needs all pixels anyway
+		toLabelling2D().showLabelling();
+	}
+
+	/**
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling#showOverlapLabeling(ImagePlus img, float opticaly)
+	 */
+	@Override
+	public void showOverlapLabeling(ImagePlus img, double opticaly) {
+		toLabelling2D().showOverlapLabeling(img, opticaly);
+	}
+
+	/**
+	 * @see sc.fiji.CMP_BIA.segmentation.structures.Labelling#showOverlapContours(ImagePlus img)
+	 */
+	@Override
+	public void showOverlapContours(ImagePlus img, java.awt.Color clr) {
+		toLabelling2D().showOverlapContours(img, clr);
+	}
+
+	/**
+	 * @ see {@link sc.fiji.CMP_BIA.segmentation.structures.Labelling#clone()}
+	 */
+	@Override
+	public Object clone() {
+		return new LabellingRLE2D(this);
+	}
+
+	/**
+	 * write the labels by columns in the same format as Labelling2D, each
+	 * row keeps own cursor of the actual run
+	 *
+	 * @param out PrintWriter output
+	 * @param sep String separator of the labels
+	 */
+	private void printColumns(PrintWriter out, String sep) {
+		int[] cursor = Arrays.copyOf(rowRuns, dims[1]);
+		for (int x=0; x<dims[0]; x++) {
+			for (int y=0; y<dims[1]; y++) {
+				if (runEnd[cursor[y]] <= x) {
+					cursor[y] ++;
+				}
+				out.print( Integer.toString( runLabel[cursor[y]] ) + sep);
+			}
+			out.println();
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public void exportToFile(String path) {
+		PrintWriter out = null;
+		// create the string
+		String strDims = new String("Dims:");
+		for (int i = 0; i < dims.length; i++) {
+			strDims += " " + Integer.toString(dims[i]);
+		}
+		// IO process
+		try {
+			out = new PrintWriter(path, "UTF-8");
+			out.println(strDims);
+			printColumns(out, " ");
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Override
+	public void printData() {
+		PrintWriter out = new PrintWriter(System.out);
+		printColumns(out, ", ");
+		out.flush();
+	}
+
+}
@@ -0,0 +1,219 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.structures;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import sc.fiji.CMP_BIA.tools.Threading;
+
+/**
+ * @class Labelling reader
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Reader of the binary label maps written by LabellingWriter. The
+ * file is memory-mapped; uncompressed maps are decoded directly from the
+ * mapping in parallel by rows (by parts of at most 1GB for huge files) and
+ * the compressed ones are decoded sequentially as they were written.
+ */
+public final class LabellingReader {
+
+	private LabellingReader() {
+	}
+
+	/**
+	 * Read a label map
+	 *
+	 * @param path Path of the file
+	 * @return Labelling2D owning the loaded labels
+	 * @throws IOException if the file is not a valid label map
+	 */
+	public static Labelling2D read(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < LabellingWriter.HEADER_SIZE) {
+				throw new IOException("the file '" + path + "' is too short for a label map.");
+			}
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, LabellingWriter.HEADER_SIZE);
+			byte[] magic = new byte[LabellingWriter.MAGIC.length];
+			header.get(magic);
+			if (! Arrays.equals(magic, LabellingWriter.MAGIC) || header.get() != LabellingWriter.VERSION) {
+				throw new IOException("the file '" + path + "' is not a label map of a supported version.");
+			}
+			final int bytes = header.get();
+			final int compression = header.get();
+			header.get();
+			final int w = header.getInt(), h = header.getInt(), maxLabel = header.getInt();
+			if ((bytes != 1 && bytes != 2 && bytes != 4) || w <= 0 || h <= 0 || maxLabel < 0 || (long)w*h > Integer.MAX_VALUE
+					|| (compression & ~(LabellingWriter.COMPRESS_RLE | LabellingWriter.COMPRESS_DEFLATE)) != 0) {
+				throw new IOException("the file '" + path + "' has corrupted header.");
+			}
+			final int[] labels = new int[w*h];
+
+			if (compression == LabellingWriter.COMPRESS_NONE) {
+				if (size < LabellingWriter.HEADER_SIZE + (long)w*h*bytes) {
+					throw new IOException("the file '" + path + "' is shorter then the label map.");
+				}
+				readRaw(channel, labels, w, h, bytes);
+			} else {
+				// the compressed maps are small, the huge ones are streamed
+				long len = size - LabellingWriter.HEADER_SIZE;
+				InputStream in;
+				if (len <= Integer.MAX_VALUE) {
+					in = new BufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, LabellingWriter.HEADER_SIZE, len));
+				} else {
+					channel.position(LabellingWriter.HEADER_SIZE);
+					in = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16);
+				}
+				Inflater inflater = null;
+				if ((compression & LabellingWriter.COMPRESS_DEFLATE) != 0) {
+					inflater = new Inflater();
+					in = new BufferedInputStream(new InflaterInputStream(in, inflater, 1 << 16), 1 << 16);
+				}
+				try {
+					DataInputStream din = new DataInputStream(in);
+					if ((compression & LabellingWriter.COMPRESS_RLE) != 0) {
+						readRLE(din, labels, w, bytes);
+					} else {
+						byte[] row = new byte[w*bytes];
+						for (int y=0; y<h; y++) {
+							din.readFully(row);
+							decodeRow(ByteBuffer.wrap(row), 0, labels, y*w, w, bytes);
+						}
+					}
+				} finally {
+					if (inflater != null) {
+						inflater.end();
+					}
+				}
+			}
+			return new Labelling2D(labels, w, h, maxLabel);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * decode uncompressed rows from the mapped file in parallel, the rows
+	 * are mapped by parts of at most 1GB
+	 */
+	private static void readRaw(FileChannel channel, final int[] labels, final int w, int h, final int bytes) throws IOException {
+		final long rowBytes = (long)w * bytes;
+		final int rowsPerMap = (int) Math.max(1, (1 << 30) / rowBytes);
+		for (int y0=0; y0<h; y0+=rowsPerMap) {
+			final int nbRows = Math.min(rowsPerMap, h-y0);
+			final int first = y0;
+			final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+					LabellingWriter.HEADER_SIZE + y0*rowBytes, nbRows*rowBytes);
+			Threading.parallelFor(0, nbRows, new Threading.RangeTask() {
+				@Override
+				public void run(int begin, int end) {
+					for (int j=begin; j<end; j++) {
+						decodeRow(map, (int) (j*rowBytes), labels, (first+j)*w, w, bytes);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * decode a single uncompressed row by absolute reads, so the buffer may
+	 * be shared by several threads
+	 */
+	private static void decodeRow(ByteBuffer buf, int pos, int[] labels, int offset, int w, int bytes) {
+		switch (bytes) {
+			case 1:
+				for (int x=0; x<w; x++) {
+					labels[offset + x] = buf.get(pos + x) & 0xff;
+				}
+				break;
+			case 2:
+				for (int x=0; x<w; x++) {
+					labels[offset + x] = buf.getShort(pos + 2*x) & 0xffff;
+				}
+				break;
+			default:
+				for (int x=0; x<w; x++) {
+					labels[offset + x] = buf.getInt(pos + 4*x);
+				}
+		}
+	}
+
+	/**
+	 * decode the run-length encoded rows
+	 */
+	private static void readRLE(DataInputStream din, int[] labels, int w, int bytes) throws IOException {
+		int len, shift, b, l;
+		for (int i=0, x=0; i<labels.length; x=(x < w) ? x : 0) {
+			// the run length as varint
+			len = 0;
+			shift = 0;
+			do {
+				b = din.readUnsignedByte();
+				len |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			switch (bytes) {
+				case 1:		l = din.readUnsignedByte();		break;
+				case 2:		l = din.readUnsignedShort();	break;
+				default:	l = din.readInt();
+			}
+			// the runs do not cross the rows
+			if (len <= 0 || x + len > w) {
+				throw new IOException("corrupted run of length " + len + " at position " + i + ".");
+			}
+			Arrays.fill(labels, i, i + len, l);
+			i += len;
+			x += len;
+		}
+	}
+
+	/**
+	 * Input stream over a (mapped) byte buffer
+	 */
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer buf;
+
+		BufferInputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public int read() {
+			return buf.hasRemaining() ? (buf.get() & 0xff) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (! buf.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buf.remaining();
+		}
+	}
+
+}
@@ -0,0 +1,247 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.structures;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * @class Labelling writer
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Streaming writer of 2D label maps in a compact binary format, the
+ * rows are written one by one so the whole map does not have to be in the
+ * memory at once. See LabellingReader for reading it back.
+ *
+ * @details The file starts by a header of 20 bytes (big-endian):
+ * magic "LBL2", version, bytes per label (1, 2 or 4 chosen by the maximal
+ * label), compression flags, a reserved byte, width, height and the maximal
+ * label. Then follow the rows; without RLE each label takes the given bytes,
+ * with RLE each row is a sequence of runs - the run length as unsigned
+ * LEB128 varint and the label. With the DEFLATE flag all the rows (not the
+ * header) are compressed by deflate.
+ */
+public class LabellingWriter implements Closeable {
+	/** raw labels */
+	public static final int COMPRESS_NONE = 0;
+	/** run-length encoded rows */
+	public static final int COMPRESS_RLE = 1;
+	/** deflate of the rows, can be combined with RLE */
+	public static final int COMPRESS_DEFLATE = 2;
+
+	// format identification
+	static final byte[] MAGIC = {'L', 'B', 'L', '2'};
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 20;
+
+	// output stream of the rows
+	private OutputStream out;
+	private Deflater deflater = null;
+	// map sizes
+	private final int width, height, maxLabel;
+	private final int bytes, compression;
+	// encoded row, large enough for the worst case of RLE
+	private final byte[] buffer;
+	// number of already written rows
+	private int nbRows = 0;
+
+	/**
+	 * Open a file and write the header
+	 *
+	 * @param path Path of the output file, it is replaced
+	 * @param w int width of the label map
+	 * @param h int height of the label map
+	 * @param maxLabel int maximal label, labels are in {0,..,maxLabel}
+	 * @param compression int flags COMPRESS_RLE and COMPRESS_DEFLATE
+	 * @throws IOException
+	 */
+	public LabellingWriter(Path path, int w, int h, int maxLabel, int compression) throws IOException {
+		this(Files.newOutputStream(path), w, h, maxLabel, compression);
+	}
+
+	/**
+	 * Write the header into a stream, the stream is closed by close()
+	 *
+	 * @param os OutputStream output
+	 * @param w int width of the label map
+	 * @param h int height of the label map
+	 * @param maxLabel int maximal label, labels are in {0,..,maxLabel}
+	 * @param compression int flags COMPRESS_RLE and COMPRESS_DEFLATE
+	 * @throws IOException
+	 */
+	public LabellingWriter(OutputStream os, int w, int h, int maxLabel, int compression) throws IOException {
+		if (w <= 0 || h <= 0 || maxLabel < 0) {
+			os.close();
+			throw new IllegalArgumentException("wrong label map " + w + "x" + h + " with maximal label " + maxLabel + ".");
+		}
+		if ((compression & ~(COMPRESS_RLE | COMPRESS_DEFLATE)) != 0) {
+			os.close();
+			throw new IllegalArgumentException("unknown compression " + compression + ".");
+		}
+		this.width = w;
+		this.height = h;
+		this.maxLabel = maxLabel;
+		this.compression = compression;
+		this.bytes = bytesPerLabel(maxLabel);
+		// a run takes at most 5 bytes of its length and the label
+		this.buffer = new byte[((compression & COMPRESS_RLE) != 0) ? w*(5+bytes) : w*bytes];
+
+		out = new BufferedOutputStream(os, 1 << 16);
+		byte[] header = new byte[HEADER_SIZE];
+		System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+		header[4] = (byte) VERSION;
+		header[5] = (byte) bytes;
+		header[6] = (byte) compression;
+		putInt(header, 8, w);
+		putInt(header, 12, h);
+		putInt(header, 16, maxLabel);
+		out.write(header);
+		if ((compression & COMPRESS_DEFLATE) != 0) {
+			// the saving should be I/O bound, so the fastest level
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			out = new DeflaterOutputStream(out, deflater, 1 << 16);
+		}
+	}
+
+	/**
+	 * the smallest number of bytes holding all labels
+	 *
+	 * @param maxLabel int maximal label
+	 * @return int 1, 2 or 4
+	 */
+	static int bytesPerLabel(int maxLabel) {
+		if (maxLabel < (1 << 8)) {
+			return 1;
+		}
+		return (maxLabel < (1 << 16)) ? 2 : 4;
+	}
+
+	private static void putInt(byte[] b, int i, int v) {
+		b[i] = (byte) (v >>> 24);
+		b[i+1] = (byte) (v >>> 16);
+		b[i+2] = (byte) (v >>> 8);
+		b[i+3] = (byte) v;
+	}
+
+	/**
+	 * put a label of the given bytes in big-endian
+	 *
+	 * @return int position after the label
+	 */
+	private int putLabel(int i, int l) {
+		if (l < 0 || l > maxLabel) {
+			throw new IllegalArgumentException("label " + l + " is out of range {0,.." + maxLabel + "}.");
+		}
+		switch (bytes) {
+			case 1:
+				buffer[i++] = (byte) l;
+				break;
+			case 2:
+				buffer[i++] = (byte) (l >>> 8);
+				buffer[i++] = (byte) l;
+				break;
+			default:
+				putInt(buffer, i, l);
+				i += 4;
+		}
+		return i;
+	}
+
+	/**
+	 * Write the next row of labels
+	 *
+	 * @param labels int[] array containing the row
+	 * @param offset int index of the first label of the row
+	 * @throws IOException
+	 */
+	public void writeRow(int[] labels, int offset) throws IOException {
+		if (nbRows >= height) {
+			throw new IOException("all " + height + " rows were already written.");
+		}
+		int n = 0;
+		if ((compression & COMPRESS_RLE) != 0) {
+			for (int x=0, s=0; x<width; s=x) {
+				int l = labels[offset + x];
+				while (x < width && labels[offset + x] == l) {
+					x ++;
+				}
+				// the run length as varint
+				int len = x - s;
+				while (len >= 0x80) {
+					buffer[n++] = (byte) (len | 0x80);
+					len >>>= 7;
+				}
+				buffer[n++] = (byte) len;
+				n = putLabel(n, l);
+			}
+		} else {
+			for (int x=0; x<width; x++) {
+				n = putLabel(n, labels[offset + x]);
+			}
+		}
+		out.write(buffer, 0, n);
+		nbRows ++;
+	}
+
+	/**
+	 * Write all remaining rows from a flat row-major array
+	 *
+	 * @param labels int[] labels indexed y*width+x
+	 * @throws IOException
+	 */
+	public void writeRows(int[] labels) throws IOException {
+		for (int y=nbRows; y<height; y++) {
+			writeRow(labels, y*width);
+		}
+	}
+
+	/**
+	 * Finish the compression and close the output
+	 *
+	 * @throws IOException also in case that not all rows were written
+	 */
+	@Override
+	public void close() throws IOException {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.close();
+		} finally {
+			out = null;
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+		if (nbRows != height) {
+			throw new IOException("only " + nbRows + " of " + height + " rows were written.");
+		}
+	}
+
+	/**
+	 * Save a whole labelling
+	 *
+	 * @param path Path of the output file
+	 * @param lb Labelling2D to be saved
+	 * @param compression int flags COMPRESS_RLE and COMPRESS_DEFLATE
+	 * @throws IOException
+	 */
+	public static void write(Path path, Labelling2D lb, int compression) throws IOException {
+		int[] dims = lb.getDims();
+		LabellingWriter writer = new LabellingWriter(path, dims[0], dims[1], Math.max(0, lb.getMaxLabel()), compression);
+		try {
+			writer.writeRows(lb.getLabels());
+		} finally {
+			writer.close();
+		}
+	}
+
+}
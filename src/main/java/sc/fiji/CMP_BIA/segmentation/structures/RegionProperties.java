@@ -0,0 +1,213 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.structures;
+
+import java.util.Arrays;
+
+import sc.fiji.CMP_BIA.tools.Threading;
+
+/**
+ * @class Region properties
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Table of the basic geometric properties of all segments of a 2D
+ * labelling - area, bounding box, centroid and second central moments. It
+ * is computed by a single pass over the labels and then the per-segment
+ * work (boundaries, pixel lists, descriptors) can be limited to the
+ * bounding box of the segment instead of the whole image.
+ *
+ * @details The labelling is processed by horizontal runs of the same label
+ * so the sums of coordinates are added per run in closed form. The rows are
+ * split into stripes with own accumulators which are merged at the end; the
+ * number of stripes is limited such that all accumulators together are
+ * smaller then the labelling itself. The sums are exact in long.
+ */
+public final class RegionProperties {
+	// number of regions (labels)
+	private final int nbRegions;
+	// number of pixels of each region
+	private final int[] area;
+	// bounding box of each region, included
+	private final int[] minX, minY, maxX, maxY;
+	// sums of coordinates and their products of each region
+	private final long[] sumX, sumY, sumXX, sumYY, sumXY;
+
+	/**
+	 * empty accumulators
+	 *
+	 * @param nbRegions int number of regions
+	 */
+	RegionProperties(int nbRegions) {
+		this.nbRegions = nbRegions;
+		area = new int[nbRegions];
+		minX = new int[nbRegions];
+		minY = new int[nbRegions];
+		maxX = new int[nbRegions];
+		maxY = new int[nbRegions];
+		Arrays.fill(minX, Integer.MAX_VALUE);
+		Arrays.fill(minY, Integer.MAX_VALUE);
+		Arrays.fill(maxX, -1);
+		Arrays.fill(maxY, -1);
+		sumX = new long[nbRegions];
+		sumY = new long[nbRegions];
+		sumXX = new long[nbRegions];
+		sumYY = new long[nbRegions];
+		sumXY = new long[nbRegions];
+	}
+
+	/**
+	 * Compute the properties of a flat row-major labelling
+	 *
+	 * @param labels int[w*h] labels indexed y*w+x in range {0,..,nbRegions-1}
+	 * @param w int width of the labelling
+	 * @param h int height of the labelling
+	 * @param nbRegions int number of regions
+	 * @return RegionProperties of all regions
+	 */
+	public static RegionProperties compute(final int[] labels, final int w, final int h, final int nbRegions) {
+		// all accumulators should take less memory then the labels
+		long perStripe = 56L * Math.max(1, nbRegions);
+		final int nbStripes = (int) Math.max(1, Math.min(Math.min(Threading.nbAvailableThread(), h), (4L * labels.length) / perStripe));
+		final RegionProperties[] parts = new RegionProperties[nbStripes];
+		Threading.parallelFor(0, nbStripes, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int p=begin; p<end; p++) {
+					RegionProperties rp = new RegionProperties(nbRegions);
+					for (int y=Threading.split(h, nbStripes, p); y<Threading.split(h, nbStripes, p+1); y++) {
+						int i0 = y*w, s = 0;
+						for (int x=1; x<w; x++) {
+							if (labels[i0+x] != labels[i0+s]) {
+								rp.addRun(labels[i0+s], y, s, x);
+								s = x;
+							}
+						}
+						rp.addRun(labels[i0+s], y, s, w);
+					}
+					parts[p] = rp;
+				}
+			}
+		});
+		for (int p=1; p<nbStripes; p++) {
+			parts[0].merge(parts[p]);
+		}
+		return parts[0];
+	}
+
+	/**
+	 * sum of squares 0^2 + .. + m^2
+	 */
+	private static long sumSquares(long m) {
+		return m * (m+1) * (2*m+1) / 6;
+	}
+
+	/**
+	 * Add a horizontal run of pixels [s, e) in row y to a region
+	 *
+	 * @param l int region
+	 * @param y int row
+	 * @param s int first pixel of the run
+	 * @param e int pixel after the last one
+	 */
+	void addRun(int l, int y, int s, int e) {
+		final long n = e - s;
+		// the product is always even
+		final long sx = (s + e - 1L) * n / 2;
+		area[l] += n;
+		sumX[l] += sx;
+		sumY[l] += y * n;
+		sumXX[l] += sumSquares(e-1) - sumSquares(s-1);
+		sumYY[l] += (long) y * y * n;
+		sumXY[l] += y * sx;
+		if (s < minX[l]) {		minX[l] = s;		}
+		if (e-1 > maxX[l]) {	maxX[l] = e-1;		}
+		if (y < minY[l]) {		minY[l] = y;		}
+		if (y > maxY[l]) {		maxY[l] = y;		}
+	}
+
+	/**
+	 * Add accumulators of other part of the same labelling
+	 *
+	 * @param o RegionProperties of the same number of regions
+	 */
+	void merge(RegionProperties o) {
+		for (int l=0; l<nbRegions; l++) {
+			if (o.area[l] == 0) {	continue;	}
+			area[l] += o.area[l];
+			sumX[l] += o.sumX[l];
+			sumY[l] += o.sumY[l];
+			sumXX[l] += o.sumXX[l];
+			sumYY[l] += o.sumYY[l];
+			sumXY[l] += o.sumXY[l];
+			minX[l] = Math.min(minX[l], o.minX[l]);
+			minY[l] = Math.min(minY[l], o.minY[l]);
+			maxX[l] = Math.max(maxX[l], o.maxX[l]);
+			maxY[l] = Math.max(maxY[l], o.maxY[l]);
+		}
+	}
+
+	/**
+	 * @return int number of regions (maximal label + 1)
+	 */
+	public int getNbRegions() {
+		return nbRegions;
+	}
+
+	/**
+	 * @param l int region
+	 * @return int number of pixels of the region, zero for missing label
+	 */
+	public int getArea(int l) {
+		return area[l];
+	}
+
+	/**
+	 * @return int[nbRegions] number of pixels of all regions, it is the
+	 * histogram of the labelling (a copy)
+	 */
+	public int[] getAreas() {
+		return area.clone();
+	}
+
+	/**
+	 * @param l int region
+	 * @return int[4] bounding box {minX, minY, maxX, maxY} included, or
+	 * null for missing label
+	 */
+	public int[] getBoundingBox(int l) {
+		if (area[l] == 0) {
+			return null;
+		}
+		return new int[]{minX[l], minY[l], maxX[l], maxY[l]};
+	}
+
+	/**
+	 * @param l int region
+	 * @return double[2] centroid {x, y}, or null for missing label
+	 */
+	public double[] getCentroid(int l) {
+		if (area[l] == 0) {
+			return null;
+		}
+		return new double[]{ (double) sumX[l] / area[l], (double) sumY[l] / area[l] };
+	}
+
+	/**
+	 * Second central moments normalised by the area, i.e. the covariance of
+	 * the pixel coordinates
+	 *
+	 * @param l int region
+	 * @return double[3] {mu20, mu02, mu11}, or null for missing label
+	 */
+	public double[] getSecondMoments(int l) {
+		if (area[l] == 0) {
+			return null;
+		}
+		double n = area[l];
+		double cx = sumX[l] / n, cy = sumY[l] / n;
+		return new double[]{ sumXX[l]/n - cx*cx, sumYY[l]/n - cy*cy, sumXY[l]/n - cx*cy };
+	}
+
+}
@@ -0,0 +1,162 @@
+/**
+ * @file
+ */
+
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @class Abstract SLIC superpixels
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief The parameters, the STOP criteria and the iteration statistics
+ * shared by the 2D superpixels (jSLIC) and the 3D supervoxels (jSLICf),
+ * together with the union-find forest of the connectivity.
+ *
+ * @details Each derivation stores its own image, labels and clusters, so
+ * only the methods which make sense for both dimensions are here.
+ */
+abstract public class AbstractSLIC {
+
+	// clone of original image we work with
+	protected ImagePlus image;
+	protected int Width, Height;
+	// initial regular grid size
+	protected int gridSize;
+	// superpixel elasticity in range (0,1)
+	protected float regul;
+	// according the VLFeat library the regul is in range {0,1}
+	protected float factor;
+	// number of estimated segments (labels)
+	protected int nbLabels;
+	// number of channel
+	protected int nbChannels = 3;
+	// stopping treshold value in percent of initial error
+	protected float errTreshold = 0.1f;
+	// union-find forest of the connectivity, it is also the buffer of the
+	// previous labels in the assignment; kept for the next image
+	protected int[] forest = null;
+	// number of relabelled pixels from the last assignment
+	protected long changedPixels = 0;
+	// maximal displacement of a cluster centre in the last update
+	protected float maxShift = 0;
+	// STOP criterion - maximal fraction of relabelled pixels and centre shift
+	protected float changeTreshold = 0.f, shiftTreshold = 0.f;
+	// observers of the iterations and the statistics of the last run
+	protected List<IterationListener> listeners = new ArrayList<IterationListener>();
+	protected List<IterationStats> iterationStats = new ArrayList<IterationStats>();
+
+	/**
+	 * Process the whole segmentation process
+	 *
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 */
+	public void process (int grid, float reg) {
+		process (grid, reg, 9, 0.1f);
+	}
+
+	/**
+	 * Process the whole segmentation process
+	 *
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 * @param maxIter number of maximal iterations
+	 * @param sizeTrashold says till which size superpixels will by terminated
+	 */
+	abstract public void process (int grid, float reg, int maxIter, float sizeTrashold);
+
+	/**
+	 * Set the additional STOP criterion, the iterations terminate when both
+	 * the fraction of relabelled pixels and the maximal shift of cluster
+	 * centres are at most the given tresholds
+	 *
+	 * @param changed float fraction of relabelled pixels in range (0,1)
+	 * @param shift float maximal shift of cluster centre in pixels
+	 */
+	public void setConvergence(float changed, float shift) {
+		this.changeTreshold = (changed < 0) ? 0 : changed;
+		this.shiftTreshold = (shift < 0) ? 0 : shift;
+	}
+
+	/**
+	 * @param listener IterationListener called after each iteration
+	 */
+	public void addIterationListener(IterationListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener IterationListener to be removed
+	 */
+	public void removeIterationListener(IterationListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return List<IterationStats> statistics of all iterations of the last run
+	 */
+	public List<IterationStats> getIterationStats() {
+		return iterationStats;
+	}
+
+	/**
+	 * store the statistics and pass them to all listeners
+	 *
+	 * @param stats IterationStats of the finished iteration
+	 */
+	protected void notifyListeners(IterationStats stats) {
+		iterationStats.add(stats);
+		for (IterationListener l : listeners) {
+			l.iterationDone(stats);
+		}
+	}
+
+	/**
+	 * gives the number of all various labels in segmentation, where the
+	 * max labels are {0,..,(n-1)}
+	 *
+	 * @return int number of labels
+	 */
+	public int getNbLabels() {
+		return this.nbLabels;
+	}
+
+	/**
+	 * join two trees of the union-find forest, the smaller index is the root
+	 *
+	 * @param parent int[] the forest
+	 * @param a int first element
+	 * @param b int second element
+	 */
+	protected static void union(int[] parent, int a, int b) {
+		a = find(parent, a);
+		b = find(parent, b);
+		if (a < b) {
+			parent[b] = a;
+		} else if (b < a) {
+			parent[a] = b;
+		}
+	}
+
+	/**
+	 * find the root of an element with path halving
+	 *
+	 * @param parent int[] the forest
+	 * @param a int element
+	 * @return int root
+	 */
+	protected static int find(int[] parent, int a) {
+		while (parent[a] != a) {
+			parent[a] = parent[parent[a]];
+			a = parent[a];
+		}
+		return a;
+	}
+
+}
@@ -0,0 +1,37 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+/**
+ * @class Assignment kernel
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief The inner loop of the SLIC assignment, the distance of pixels in
+ * a rectangle of the cluster window to a single cluster with LAB colour.
+ * Pixels which are closer then theirs actual distance get the cluster label.
+ * An alternative implementation (e.g. SIMD) has to give exactly the same
+ * result as the scalar loop in ThreadAssignment.
+ */
+interface AssignmentKernel {
+
+	/**
+	 * @param buf - image planes, labelling and distances
+	 * @param k - cluster index
+	 * @param cL - cluster colour, the L channel
+	 * @param cA - cluster colour, the A channel
+	 * @param cB - cluster colour, the B channel
+	 * @param wc - weight of the colour distance, one for fixed compactness
+	 * @param distGrid - spatial distances of the window, row-major
+	 * @param g0 - index in the distance grid of the pixel (xB, yB)
+	 * @param sz - row length of the distance grid
+	 * @param xB - start in width dim
+	 * @param xE - end in width dim
+	 * @param yB - start in height dim
+	 * @param yE - end in height dim
+	 */
+	public void assign(PixelBuffer2D buf, int k, float cL, float cA, float cB, float wc,
+			float[] distGrid, int g0, int sz, int xB, int xE, int yB, int yE);
+
+}
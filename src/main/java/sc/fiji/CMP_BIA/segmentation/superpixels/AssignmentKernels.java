@@ -0,0 +1,53 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import sc.fiji.CMP_BIA.tools.Logging;
+
+/**
+ * @class Assignment kernels
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Lookup of the optional assignment kernels. The SIMD kernel uses the
+ * incubator Vector API, it is compiled only with JDK 16+ (the "java16" build
+ * profile) and it runs only if the JVM is started with
+ * "--add-modules jdk.incubator.vector"; otherwise the scalar kernel is used.
+ */
+final class AssignmentKernels {
+	// name of the SIMD kernel class, it is loaded by reflection
+	private static final String VECTOR_KERNEL = "sc.fiji.CMP_BIA.segmentation.superpixels.VectorAssignmentKernel";
+	// the loaded kernel and whether we already tried
+	private static AssignmentKernel vector = null;
+	private static boolean loaded = false;
+
+	private AssignmentKernels() {
+	}
+
+	/**
+	 * gives the SIMD kernel if it is available on this JVM
+	 *
+	 * @return AssignmentKernel or null for the scalar kernel
+	 */
+	static synchronized AssignmentKernel vector() {
+		if (! loaded) {
+			loaded = true;
+			try {
+				AssignmentKernel kernel = (AssignmentKernel) Class.forName(VECTOR_KERNEL).newInstance();
+				// the first use resolves the Vector API classes
+				PixelBuffer2D buf = new PixelBuffer2D(1, 1, new float[3][1]);
+				buf.fillDistances(Float.MAX_VALUE);
+				kernel.assign(buf, 0, 0, 0, 0, 1.f, new float[1], 0, 1, 0, 1, 0, 1);
+				vector = kernel;
+				Logging.logMsg("SLIC: SIMD assignment kernel is used.");
+			} catch (Exception e) {
+				Logging.logMsg("SLIC: SIMD assignment kernel is not available - " + e.toString());
+			} catch (LinkageError e) {
+				Logging.logMsg("SLIC: SIMD assignment kernel is not available - " + e.toString());
+			}
+		}
+		return vector;
+	}
+
+}
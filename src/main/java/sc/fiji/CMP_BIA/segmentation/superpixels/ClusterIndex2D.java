@@ -0,0 +1,194 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import java.util.Arrays;
+
+/**
+ * @class Cluster index 2D
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Spatial index of cluster centres - the image is covered by regular
+ * cells (buckets) and the clusters are sorted by the cell containing theirs
+ * centre (counting sort), so all clusters near a given image region are
+ * found by visiting only a few cells.
+ */
+class ClusterIndex2D {
+	// image sizes
+	protected final int width, height;
+	// size of a single cell
+	protected final int cellSize;
+	// number of cells in each dimension
+	protected final int nbCellsX, nbCellsY;
+	// start of each cell in the sorted list - dim int[nbCells+1]
+	protected final int[] cellStart;
+	// cluster indexes sorted by cells - dim int[nbClusters]
+	protected int[] cellClusters = null;
+
+	/**
+	 * Constructor of an empty index
+	 *
+	 * @param w int image width
+	 * @param h int image height
+	 * @param cell int size of the cell, usually the grid size
+	 */
+	public ClusterIndex2D(int w, int h, int cell) {
+		this.width = w;
+		this.height = h;
+		this.cellSize = Math.max(1, cell);
+		this.nbCellsX = (w + cellSize - 1) / cellSize;
+		this.nbCellsY = (h + cellSize - 1) / cellSize;
+		this.cellStart = new int[nbCellsX*nbCellsY + 1];
+	}
+
+	/**
+	 * cell index of a cluster centre, positions out of image are clipped
+	 *
+	 * @param x int position of the centre in width dim
+	 * @param y int position of the centre in height dim
+	 * @return int cell index
+	 */
+	protected int cellOf(int x, int y) {
+		int cx = Math.min(Math.max(x, 0), width-1) / cellSize;
+		int cy = Math.min(Math.max(y, 0), height-1) / cellSize;
+		return cy*nbCellsX + cx;
+	}
+
+	/**
+	 * rebuild the whole index for new cluster positions
+	 *
+	 * @param clusterPosition int[nbClusters][2] cluster centres
+	 */
+	public void rebuild(int[][] clusterPosition) {
+		if (cellClusters == null || cellClusters.length != clusterPosition.length) {
+			cellClusters = new int[clusterPosition.length];
+		}
+		// histogram of cells shifted by one
+		Arrays.fill(cellStart, 0);
+		for (int k=0; k<clusterPosition.length; k++) {
+			cellStart[ cellOf(clusterPosition[k][0], clusterPosition[k][1]) +1 ] ++;
+		}
+		// cumulative sum gives the beginnings
+		for (int c=1; c<cellStart.length; c++) {
+			cellStart[c] += cellStart[c-1];
+		}
+		// fill the sorted list, keep the cluster order inside a cell
+		int[] next = Arrays.copyOf(cellStart, cellStart.length-1);
+		for (int k=0; k<clusterPosition.length; k++) {
+			cellClusters[ next[cellOf(clusterPosition[k][0], clusterPosition[k][1])]++ ] = k;
+		}
+	}
+
+	/**
+	 * rebuild the whole index for new cluster positions stored flat
+	 *
+	 * @param clusterPosition int[2*nbClusters] cluster centres {x0,y0,x1,y1,..}
+	 */
+	public void rebuild(int[] clusterPosition) {
+		final int nbClusters = clusterPosition.length / 2;
+		if (cellClusters == null || cellClusters.length != nbClusters) {
+			cellClusters = new int[nbClusters];
+		}
+		// histogram of cells shifted by one
+		Arrays.fill(cellStart, 0);
+		for (int k=0; k<nbClusters; k++) {
+			cellStart[ cellOf(clusterPosition[2*k], clusterPosition[2*k+1]) +1 ] ++;
+		}
+		// cumulative sum gives the beginnings
+		for (int c=1; c<cellStart.length; c++) {
+			cellStart[c] += cellStart[c-1];
+		}
+		// fill the sorted list, keep the cluster order inside a cell
+		int[] next = Arrays.copyOf(cellStart, cellStart.length-1);
+		for (int k=0; k<nbClusters; k++) {
+			cellClusters[ next[cellOf(clusterPosition[2*k], clusterPosition[2*k+1])]++ ] = k;
+		}
+	}
+
+	/**
+	 * find all clusters which centre is closer then given radius to the image
+	 * region [xB,xE) x [yB,yE), meaning theirs window of size 2*radius
+	 * intersects the region
+	 *
+	 * @param xB int start of the region in width dim
+	 * @param xE int end of the region in width dim
+	 * @param yB int start of the region in height dim
+	 * @param yE int end of the region in height dim
+	 * @param radius int half size of the cluster window
+	 * @param clusterPosition int[nbClusters][2] cluster centres
+	 * @return int[] indexes of the found clusters in increasing order
+	 */
+	public int[] query(int xB, int xE, int yB, int yE, int radius, int[][] clusterPosition) {
+		// range of cells which may contain such centres
+		int cxB = Math.max(0, xB-radius+1) / cellSize;
+		int cxE = Math.min(width-1, xE+radius-1) / cellSize;
+		int cyB = Math.max(0, yB-radius+1) / cellSize;
+		int cyE = Math.min(height-1, yE+radius-1) / cellSize;
+		// count candidates
+		int nb = 0;
+		for (int cy=cyB; cy<=cyE; cy++) {
+			nb += cellStart[cy*nbCellsX + cxE +1] - cellStart[cy*nbCellsX + cxB];
+		}
+		int[] found = new int[nb];
+		int n = 0, k;
+		for (int cy=cyB; cy<=cyE; cy++) {
+			for (int i=cellStart[cy*nbCellsX + cxB]; i<cellStart[cy*nbCellsX + cxE +1]; i++) {
+				k = cellClusters[i];
+				// exact test of the window overlap
+				if (clusterPosition[k][0]-radius < xE && clusterPosition[k][0]+radius > xB
+						&& clusterPosition[k][1]-radius < yE && clusterPosition[k][1]+radius > yB) {
+					found[n++] = k;
+				}
+			}
+		}
+		found = Arrays.copyOf(found, n);
+		// keep the same order of evaluation as a scan over all clusters
+		Arrays.sort(found);
+		return found;
+	}
+
+	/**
+	 * find all clusters which centre is closer then given radius to the image
+	 * region [xB,xE) x [yB,yE), meaning theirs window of size 2*radius
+	 * intersects the region
+	 *
+	 * @param xB int start of the region in width dim
+	 * @param xE int end of the region in width dim
+	 * @param yB int start of the region in height dim
+	 * @param yE int end of the region in height dim
+	 * @param radius int half size of the cluster window
+	 * @param clusterPosition int[2*nbClusters] cluster centres stored flat
+	 * @return int[] indexes of the found clusters in increasing order
+	 */
+	public int[] query(int xB, int xE, int yB, int yE, int radius, int[] clusterPosition) {
+		// range of cells which may contain such centres
+		int cxB = Math.max(0, xB-radius+1) / cellSize;
+		int cxE = Math.min(width-1, xE+radius-1) / cellSize;
+		int cyB = Math.max(0, yB-radius+1) / cellSize;
+		int cyE = Math.min(height-1, yE+radius-1) / cellSize;
+		// count candidates
+		int nb = 0;
+		for (int cy=cyB; cy<=cyE; cy++) {
+			nb += cellStart[cy*nbCellsX + cxE +1] - cellStart[cy*nbCellsX + cxB];
+		}
+		int[] found = new int[nb];
+		int n = 0, k;
+		for (int cy=cyB; cy<=cyE; cy++) {
+			for (int i=cellStart[cy*nbCellsX + cxB]; i<cellStart[cy*nbCellsX + cxE +1]; i++) {
+				k = cellClusters[i];
+				// exact test of the window overlap
+				if (clusterPosition[2*k]-radius < xE && clusterPosition[2*k]+radius > xB
+						&& clusterPosition[2*k+1]-radius < yE && clusterPosition[2*k+1]+radius > yB) {
+					found[n++] = k;
+				}
+			}
+		}
+		found = Arrays.copyOf(found, n);
+		// keep the same order of evaluation as a scan over all clusters
+		Arrays.sort(found);
+		return found;
+	}
+
+}
@@ -0,0 +1,103 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+
+/**
+ * @class EPFL SLIC engine
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief The transcription of the original EPFL code (see SLIC) behind the
+ * SuperpixelEngine interface, mainly as a reference for benchmarks. It runs
+ * ten iterations in double precision with seed perturbation; the range of
+ * gray images is mapped to 256 gray levels.
+ *
+ * @details The number of superpixels is K = Width*Height/grid^2 and the
+ * compactness M is chosen to give the same spatial weight as in jSLIC, so
+ * M^2/grid^2 = regul^2*grid.
+ */
+public class EPFLSLICEngine implements SuperpixelEngine {
+	// segmentation parameters
+	protected int grid = 30;
+	protected float regul = 0.2f;
+	// number of superpixels and time of the last segmentation
+	protected int nbLabels = 0;
+	protected long time = 0;
+
+	@Override
+	public String getName() {
+		return "EPFL SLIC";
+	}
+
+	@Override
+	public void setParameters(int grid, float regul) {
+		this.grid = grid;
+		this.regul = regul;
+	}
+
+	@Override
+	public Labelling2D segment(ImageProcessor ip) {
+		long start = System.currentTimeMillis();
+		final int w = ip.getWidth(), h = ip.getHeight();
+		int[] rgb = (ip instanceof ColorProcessor) ? (int[]) ip.getPixels() : gray2rgb(ip);
+		int[] labels = new int[w*h];
+		int K = Math.max(1, (w*h) / (grid*grid));
+		double M = regul * Math.pow(grid, 1.5);
+
+		SLIC slic = new SLIC();
+		nbLabels = slic.DoSuperpixelSegmentation_ForGivenK(rgb, w, h, labels, 0, K, M, true);
+
+		time = System.currentTimeMillis() - start;
+		return new Labelling2D(labels, w, h, nbLabels-1);
+	}
+
+	/**
+	 * gray levels packed as RGB, the intensity range is mapped to 0..255
+	 */
+	protected static int[] gray2rgb(ImageProcessor ip) {
+		final int w = ip.getWidth(), h = ip.getHeight();
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE, v;
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				v = ip.getf(x, y);
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+		}
+		float scale = (max > min) ? 255.f / (max - min) : 0;
+		int[] rgb = new int[w*h];
+		int c;
+		for (int y=0, i=0; y<h; y++) {
+			for (int x=0; x<w; x++, i++) {
+				c = Math.round((ip.getf(x, y) - min) * scale);
+				rgb[i] = (c << 16) | (c << 8) | c;
+			}
+		}
+		return rgb;
+	}
+
+	@Override
+	public int getNbLabels() {
+		return nbLabels;
+	}
+
+	@Override
+	public long getTime() {
+		return time;
+	}
+
+	@Override
+	public List<IterationStats> getIterationStats() {
+		return new ArrayList<IterationStats>();
+	}
+
+}
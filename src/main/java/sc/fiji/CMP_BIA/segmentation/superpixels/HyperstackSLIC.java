@@ -0,0 +1,200 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import sc.fiji.CMP_BIA.tools.Logging;
+import sc.fiji.CMP_BIA.tools.converters.ConvertImage;
+
+/**
+ * @class Hyperstack SLIC superpixels
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief SLIC superpixels for multi-channel images (e.g. multiplexed
+ * fluorescence) with any number of channels. The channels of a single
+ * slice and frame of the hyperstack are read directly into the image planes,
+ * so the memory is a single float plane per channel.
+ *
+ * @details Each channel range is mapped to 256 levels (as for single 16-bit
+ * images in jSLIC) and multiplied by the square root of the channel weight,
+ * so the colour distance is the weighted sum of squared channel differences.
+ * Note that the colour distance grows with the number of channels, so for
+ * many channels the regularisation should be larger or the weights smaller.
+ */
+public class HyperstackSLIC extends jSLIC {
+	// weights of the channels - dim float[channels]
+	protected float[] weights;
+	// multipliers applied to the native intensities - dim float[channels]
+	protected float[] scales;
+	// actually loaded slice and frame
+	protected int slice = 1, frame = 1;
+
+	/**
+	 * Constructor over the actual slice and frame of a hyperstack
+	 *
+	 * @param im ImagePlus hyperstack with one or more channels
+	 * @param w float[nbChannels] channel weights, null means all ones
+	 */
+	public HyperstackSLIC(ImagePlus im, float[] w) {
+		super(new PixelBuffer2D(im.getWidth(), im.getHeight()));
+		this.image = im;
+		int nbCh = im.getNChannels();
+		if (w != null && w.length != nbCh) {
+			throw new IllegalArgumentException("number of weights differs from the number of channels.");
+		}
+		this.weights = new float[nbCh];
+		for (int c=0; c<nbCh; c++) {
+			weights[c] = (w == null) ? 1.f : w[c];
+			if (weights[c] < 0) {
+				throw new IllegalArgumentException("channel weights have to be non-negative.");
+			}
+		}
+		this.scales = new float[nbCh];
+		Logging.logMsg("SLIC: hyperstack convert, " + nbCh + " channels.");
+		setPosition(im.getSlice(), im.getFrame());
+	}
+
+	/**
+	 * Constructor over the actual slice and frame of a hyperstack with all
+	 * channels weighted equally
+	 *
+	 * @param im ImagePlus hyperstack with one or more channels
+	 */
+	public HyperstackSLIC(ImagePlus im) {
+		this(im, null);
+	}
+
+	/**
+	 * Load all channels of other slice and frame of the same hyperstack,
+	 * the channel scales from the first loaded position are kept so the
+	 * distances are comparable, e.g. for a warm start in time; the planes 
+	 * of the previous position are refilled
+	 *
+	 * @param slice int slice (z) position starting from 1
+	 * @param frame int frame (t) position starting from 1
+	 */
+	public void setPosition(int slice, int frame) {
+		this.slice = slice;
+		this.frame = frame;
+		ImageStack stack = image.getStack();
+		int nbCh = weights.length;
+		float[][] planes = buffer.planes;
+		if (planes == null || planes.length != nbCh) {
+			planes = new float[nbCh][Width*Height];
+		}
+		for (int c=0; c<nbCh; c++) {
+			loadChannel(stack.getProcessor( image.getStackIndex(c+1, slice, frame) ), planes, c);
+		}
+		buffer.setPlanes(planes);
+		this.nbChannels = nbCh;
+	}
+
+	/**
+	 * Read a single channel into its plane and scale it by the channel 
+	 * scale and weight
+	 *
+	 * @param ip ImageProcessor gray image of the channel
+	 * @param planes float[nbChannels][Width*Height] image planes
+	 * @param c int channel index starting from 0
+	 */
+	protected void loadChannel(ImageProcessor ip, float[][] planes, int c) {
+		ConvertImage.gray2planes(ip, 1.f, new float[][]{ planes[c] });
+		if (scales[c] <= 0) {
+			scales[c] = defaultIntensityScale(planes[c], image.getType());
+		}
+		scalePlane(planes[c], scales[c] * (float) Math.sqrt(weights[c]));
+	}
+
+	/**
+	 * Change the channel weights of the loaded image, the planes are
+	 * rescaled in place
+	 *
+	 * @param w float[nbChannels] new channel weights
+	 */
+	public void setChannelWeights(float[] w) {
+		if (w.length != weights.length) {
+			throw new IllegalArgumentException("number of weights differs from the number of channels.");
+		}
+		for (int c=0; c<w.length; c++) {
+			if (w[c] < 0) {
+				throw new IllegalArgumentException("channel weights have to be non-negative.");
+			}
+		}
+		final float[][] planes = buffer.planes;
+		for (int c=0; c<w.length; c++) {
+			// a zero weight can not be reverted by rescaling so reload it
+			if (weights[c] == 0 && w[c] > 0) {
+				weights = w.clone();
+				setPosition(slice, frame);
+				return;
+			}
+		}
+		for (int c=0; c<w.length; c++) {
+			if (weights[c] > 0 && w[c] != weights[c]) {
+				scalePlane(planes[c], (float) Math.sqrt(w[c] / weights[c]));
+			}
+		}
+		weights = w.clone();
+	}
+
+	/**
+	 * @return float[nbChannels] copy of the channel weights
+	 */
+	public float[] getChannelWeights() {
+		return weights.clone();
+	}
+
+	/**
+	 * Set a common multiplier of the native intensities of all channels 
+	 * instead of the default per-channel ones, the loaded planes are 
+	 * rescaled in place and the following positions use it too
+	 *
+	 * @param scale float positive multiplier
+	 */
+	@Override
+	public void setIntensityScale(float scale) {
+		if (scale <= 0) {
+			return;
+		}
+		final float[][] planes = buffer.planes;
+		for (int c=0; c<scales.length; c++) {
+			scalePlane(planes[c], scale / scales[c]);
+			scales[c] = scale;
+		}
+		intensityScale = scale;
+		userIntensityScale = true;
+	}
+
+	/**
+	 * @return float the common multiplier of all channels, or zero while 
+	 * each channel has its own default one
+	 */
+	@Override
+	public float getIntensityScale() {
+		return intensityScale;
+	}
+
+	/**
+	 * Load a plain gray processor as the first channel, e.g. the next frame 
+	 * of a single-channel sequence; the other channels are kept, so use 
+	 * setPosition() to load all channels of a hyperstack
+	 *
+	 * @param ip ImageProcessor gray image of the same size
+	 */
+	@Override
+	public void setFrame(ImageProcessor ip) {
+		if (ip.getWidth() != Width || ip.getHeight() != Height) {
+			throw new IllegalArgumentException("the frame size differs from the image size.");
+		}
+		if (ip.getNChannels() != 1) {
+			throw new IllegalArgumentException("the frame has to be a gray image.");
+		}
+		loadChannel(ip, buffer.planes, 0);
+	}
+
+}
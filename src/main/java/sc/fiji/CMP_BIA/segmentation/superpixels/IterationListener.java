@@ -0,0 +1,23 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+/**
+ * @class Iteration listener
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Receives the statistics after each superpixel iteration, it is
+ * called from the thread running the segmentation.
+ */
+public interface IterationListener {
+
+	/**
+	 * called after each finished iteration
+	 *
+	 * @param stats IterationStats of the finished iteration
+	 */
+	public void iterationDone(IterationStats stats);
+
+}
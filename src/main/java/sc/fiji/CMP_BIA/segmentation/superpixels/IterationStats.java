@@ -0,0 +1,89 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+/**
+ * @class Iteration statistics
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Convergence statistics of a single superpixel iteration (assignment
+ * and update), so the iteration budget can be tuned from measured data.
+ */
+public class IterationStats {
+	// index of the iteration starting from 1
+	protected final int iteration;
+	// duration of the iteration in milliseconds
+	protected final long time;
+	// sum of distances to the assigned clusters
+	protected final float residual;
+	// number of pixels which label was changed in the assignment
+	protected final long changedPixels;
+	// number of all image pixels
+	protected final long nbPixels;
+	// maximal displacement of a cluster centre in the update [pixels]
+	protected final float maxShift;
+	// fraction of cluster windows skipped in the assignment
+	protected final float skippedFraction;
+
+	/**
+	 * Constructor
+	 *
+	 * @param iter int index of the iteration
+	 * @param t long duration in milliseconds
+	 * @param res float residual distance
+	 * @param changed long number of relabelled pixels
+	 * @param nb long number of all pixels
+	 * @param shift float maximal displacement of a centre
+	 * @param skipped float fraction of skipped assignment work
+	 */
+	public IterationStats(int iter, long t, float res, long changed, long nb, float shift, float skipped) {
+		this.iteration = iter;
+		this.time = t;
+		this.residual = res;
+		this.changedPixels = changed;
+		this.nbPixels = nb;
+		this.maxShift = shift;
+		this.skippedFraction = skipped;
+	}
+
+	public int getIteration() {
+		return iteration;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public float getResidual() {
+		return residual;
+	}
+
+	public long getChangedPixels() {
+		return changedPixels;
+	}
+
+	/**
+	 * @return float fraction of relabelled pixels in range (0,1)
+	 */
+	public float getChangedFraction() {
+		return (nbPixels == 0) ? 0 : (float) changedPixels / (float) nbPixels;
+	}
+
+	public float getMaxShift() {
+		return maxShift;
+	}
+
+	public float getSkippedFraction() {
+		return skippedFraction;
+	}
+
+	@Override
+	public String toString() {
+		return "iter " + iteration + ", time " + time + "ms, residual " + residual 
+				+ ", changed " + changedPixels + " px, max shift " + maxShift 
+				+ ", skipped " + skippedFraction;
+	}
+
+}
@@ -0,0 +1,83 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+
+/**
+ * @class jSLIC engine
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief The optimised jSLIC behind the SuperpixelEngine interface, the
+ * internal buffers are reused while the image size and type stay the same.
+ */
+public class JSLICEngine implements SuperpixelEngine {
+	// reusable jSLIC instance
+	protected jSLIC slic = null;
+	// segmentation parameters
+	protected int grid = 30;
+	protected float regul = 0.2f;
+	// time of the last segmentation
+	protected long time = 0;
+
+	@Override
+	public String getName() {
+		return "jSLIC";
+	}
+
+	@Override
+	public void setParameters(int grid, float regul) {
+		this.grid = grid;
+		this.regul = regul;
+	}
+
+	@Override
+	public Labelling2D segment(ImageProcessor ip) {
+		long start = System.currentTimeMillis();
+		int channels = (ip instanceof ColorProcessor) ? 3 : 1;
+		if (slic == null || slic.Width != ip.getWidth() || slic.Height != ip.getHeight()
+				|| slic.getBuffer().getNbChannels() != channels) {
+			slic = new jSLIC(ip.getWidth(), ip.getHeight(), channels);
+		}
+		slic.setParameters(grid, regul, 9, 0.1f);
+		slic.segment(ip);
+		time = System.currentTimeMillis() - start;
+		// the buffer is reused by the next image
+		return slic.getSegmentation().copy();
+	}
+
+	@Override
+	public int getNbLabels() {
+		return (slic == null) ? 0 : slic.getNbLabels();
+	}
+
+	@Override
+	public long getTime() {
+		return time;
+	}
+
+	@Override
+	public List<IterationStats> getIterationStats() {
+		if (slic == null) {
+			return new ArrayList<IterationStats>();
+		}
+		return slic.getIterationStats();
+	}
+
+	/**
+	 * @return jSLIC the underlying instance for jSLIC specific settings
+	 * (e.g. pyramid or incremental mode), null before the first image
+	 */
+	public jSLIC getSLIC() {
+		return slic;
+	}
+
+}
@@ -0,0 +1,169 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import java.util.Arrays;
+
+/**
+ * @class Pixel buffer 2D
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Internal storage of the SLIC superpixels for 2D images. The image is
+ * kept as a set of contiguous channel planes (structure of arrays) and the
+ * labelling and the distances are also flat arrays, all in row-major order
+ * so the pixel (x,y) is stored at index y*width+x.
+ *
+ * @details Compared to int[Width][Height][channels] it avoids an object
+ * header per pixel and the inner loops run over primitive arrays only.
+ */
+public class PixelBuffer2D {
+	// image sizes
+	protected final int width, height;
+	// image channels - dim float[channels][width*height]
+	protected float[][] planes = null;
+	// labeling per each image pixel - dim int[width*height]
+	protected int[] labels = null;
+	// minimal distance according the assigned label - dim float[width*height]
+	protected float[] distances = null;
+
+	/**
+	 * Constructor allocating the labelling and the distances for an image
+	 * of given size
+	 *
+	 * @param w int image width
+	 * @param h int image height
+	 */
+	public PixelBuffer2D(int w, int h) {
+		this.width = w;
+		this.height = h;
+		this.labels = new int[w*h];
+		this.distances = new float[w*h];
+	}
+
+	/**
+	 * Constructor with given image planes
+	 *
+	 * @param w int image width
+	 * @param h int image height
+	 * @param img float[channels][w*h] is the image in row-major order
+	 */
+	public PixelBuffer2D(int w, int h, float[][] img) {
+		this(w, h);
+		setPlanes(img);
+	}
+
+	/**
+	 * set new image planes; the buffer only keeps the reference
+	 *
+	 * @param img float[channels][width*height] is the image in row-major order
+	 */
+	public void setPlanes(float[][] img) {
+		for (int c=0; c<img.length; c++) {
+			if (img[c].length != width*height) {
+				throw new IndexOutOfBoundsException("image plane and buffer sizes are not same.");
+			}
+		}
+		this.planes = img;
+	}
+
+	/**
+	 * @return int width of the image
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return int height of the image
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return int number of image channels
+	 */
+	public int getNbChannels() {
+		return (planes == null) ? 0 : planes.length;
+	}
+
+	/**
+	 * linear index of given pixel in all flat arrays
+	 *
+	 * @param x int position in the first dimension
+	 * @param y int position in the second dimension
+	 * @return int index y*width+x
+	 */
+	public final int index(int x, int y) {
+		return y*width + x;
+	}
+
+	/**
+	 * @return float[channels][width*height] reference to the image planes
+	 */
+	public float[][] getPlanes() {
+		return planes;
+	}
+
+	/**
+	 * @return int[width*height] reference to the flat labelling
+	 */
+	public int[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return float[width*height] reference to the flat distances
+	 */
+	public float[] getDistances() {
+		return distances;
+	}
+
+	/**
+	 * reset all distances to given value
+	 *
+	 * @param val float new distance
+	 */
+	public void fillDistances(float val) {
+		Arrays.fill(distances, val);
+	}
+
+	/**
+	 * compatibility view of the image as the old jagged array, values are
+	 * rounded to integers
+	 *
+	 * @return int[width][height][channels] copy of the image
+	 */
+	public int[][][] toImageArray() {
+		int nbChannels = getNbChannels();
+		int[][][] img = new int[width][height][nbChannels];
+		for (int y=0; y<height; y++) {
+			int i = y*width;
+			for (int x=0; x<width; x++, i++) {
+				for (int c=0; c<nbChannels; c++) {
+					img[x][y][c] = Math.round(planes[c][i]);
+				}
+			}
+		}
+		return img;
+	}
+
+	/**
+	 * compatibility view of the labelling as the old jagged array
+	 *
+	 * @return int[width][height] copy of the labelling
+	 */
+	public int[][] toLabelArray() {
+		int[][] lab = new int[width][height];
+		for (int y=0; y<height; y++) {
+			int i = y*width;
+			for (int x=0; x<width; x++, i++) {
+				lab[x][y] = labels[i];
+			}
+		}
+		return lab;
+	}
+
+}
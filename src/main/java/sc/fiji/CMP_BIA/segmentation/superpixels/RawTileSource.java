@@ -0,0 +1,158 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @class Raw tile source
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Tile source reading from an uncompressed raw file, 8-bit gray or
+ * interleaved 24-bit RGB pixels stored row by row after a header of given
+ * length. Only the rows of a requested region are memory-mapped, so the
+ * whole image never has to fit into the heap. Uncompressed TIFF files with
+ * contiguous strips have the same layout and can be opened by fromTiff().
+ */
+public class RawTileSource implements TileSource {
+	// image sizes
+	protected final int width, height;
+	// bytes per pixel - 1 for gray and 3 for RGB
+	protected final int bytesPerPixel;
+	// position of the first pixel in the file
+	protected final long offset;
+	// opened file
+	protected RandomAccessFile file = null;
+	protected FileChannel channel = null;
+
+	/**
+	 * Constructor opening a raw file
+	 *
+	 * @param f File raw image
+	 * @param w int image width
+	 * @param h int image height
+	 * @param bytes int bytes per pixel, 1 for gray or 3 for RGB
+	 * @param off long header length in bytes
+	 * @throws IOException if the file can not be opened or it is too short
+	 */
+	public RawTileSource(File f, int w, int h, int bytes, long off) throws IOException {
+		if (bytes != 1 && bytes != 3) {
+			throw new IllegalArgumentException("only 8-bit gray and 24-bit RGB images are supported.");
+		}
+		this.width = w;
+		this.height = h;
+		this.bytesPerPixel = bytes;
+		this.offset = off;
+		this.file = new RandomAccessFile(f, "r");
+		this.channel = file.getChannel();
+		if (channel.size() < offset + (long)w*h*bytes) {
+			close();
+			throw new IOException("the file '" + f.getPath() + "' is shorter then the image.");
+		}
+	}
+
+	/**
+	 * open an uncompressed single image TIFF with contiguous strips
+	 *
+	 * @param f File TIFF image
+	 * @return RawTileSource reading the image data
+	 * @throws IOException if the TIFF layout is not supported
+	 */
+	public static RawTileSource fromTiff(File f) throws IOException {
+		String dir = f.getAbsoluteFile().getParent() + File.separator;
+		FileInfo[] info = new TiffDecoder(dir, f.getName()).getTiffInfo();
+		if (info == null || info.length == 0) {
+			throw new IOException("the file '" + f.getPath() + "' is not a TIFF image.");
+		}
+		FileInfo fi = info[0];
+		if (fi.compression != FileInfo.COMPRESSION_NONE) {
+			throw new IOException("compressed TIFF images are not supported.");
+		}
+		int bytes;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8:	bytes = 1;	break;
+			case FileInfo.RGB:		bytes = 3;	break;
+			default:
+				throw new IOException("only 8-bit gray and RGB TIFF images are supported.");
+		}
+		// the strips have to follow each other
+		if (fi.stripOffsets != null && fi.stripLengths != null) {
+			long pos = fi.getOffset();
+			for (int i=0; i<fi.stripOffsets.length; i++) {
+				if ((fi.stripOffsets[i] & 0xffffffffL) != pos) {
+					throw new IOException("TIFF images with not contiguous strips are not supported.");
+				}
+				pos += fi.stripLengths[i] & 0xffffffffL;
+			}
+		}
+		return new RawTileSource(f, fi.width, fi.height, bytes, fi.getOffset());
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public ImageProcessor readRegion(int x, int y, int w, int h) throws IOException {
+		if (x < 0 || y < 0 || x+w > width || y+h > height) {
+			throw new IndexOutOfBoundsException("the region is out of image.");
+		}
+		long rowBytes = (long)width * bytesPerPixel;
+		// map only the rows covering the region, a single map is limited to 2GB
+		int rowsPerMap = (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+		MappedByteBuffer map = null;
+		byte[] row = new byte[w * bytesPerPixel];
+		byte[] grays = (bytesPerPixel == 1) ? new byte[w*h] : null;
+		int[] colours = (bytesPerPixel == 1) ? null : new int[w*h];
+		for (int j=0, i=0; j<h; j++) {
+			if (j % rowsPerMap == 0) {
+				map = channel.map(FileChannel.MapMode.READ_ONLY, offset + (y+j)*rowBytes, Math.min(rowsPerMap, h-j)*rowBytes);
+			}
+			map.position((int) ((j % rowsPerMap)*rowBytes + (long)x*bytesPerPixel));
+			if (grays != null) {
+				map.get(grays, j*w, w);
+				continue;
+			}
+			map.get(row);
+			for (int k=0; k<row.length; k+=3, i++) {
+				colours[i] = ((row[k]&0xff) << 16) | ((row[k+1]&0xff) << 8) | (row[k+2]&0xff);
+			}
+		}
+		if (grays != null) {
+			return new ByteProcessor(w, h, grays);
+		}
+		return new ColorProcessor(w, h, colours);
+	}
+
+	/**
+	 * close the underlying file
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+			file = null;
+			channel = null;
+		}
+	}
+
+}
@@ -299,6 +299,10 @@ class SLIC {
 
             for (int x = 0; x < m_width; x++) {
                 int X = (int) (x * step + xoff);
+                // the same shifted rows as in GetLABXYSeeds_ForGivenStepSize
+                if (y%2==0) {
+                    X += xoff;
+                }
                 if (X > m_width - 1) {
                     break;
                 }
@@ -717,7 +721,7 @@ class SLIC {
            nlabels[s] = -1;
         }
       
-       EnforceLabelConnectivity(klabels, m_width, m_height, nlabels, numlabels, K);
+       numlabels = EnforceLabelConnectivity(klabels, m_width, m_height, nlabels, numlabels, K);
        System.arraycopy(nlabels, 0, klabels, 0, sz);
         
        return (numlabels);
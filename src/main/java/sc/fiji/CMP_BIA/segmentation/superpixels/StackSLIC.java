@@ -0,0 +1,170 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sc.fiji.CMP_BIA.tools.Logging;
+import sc.fiji.CMP_BIA.tools.Threading;
+
+/**
+ * @class Stack SLIC superpixels
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief SLIC superpixels of every plane (slice or frame) of a stack. Each
+ * plane is segmented independently by its own jSLIC instance and the planes
+ * run concurrently, which scales much better for long stacks of small planes
+ * then the parallelism inside a single plane. Only a limited number of planes
+ * is in flight at once, so the memory is bounded by this number and the
+ * output label stack.
+ *
+ * @details The result is a 32-bit stack of the same dimensions as the input
+ * where each plane has own labels {0,..,n-1}; for consistent labels across
+ * slices see jSLICf.
+ */
+public class StackSLIC {
+	// input stack
+	protected ImagePlus image;
+	// maximal number of planes processed at once
+	protected int maxInFlight;
+	// per-cluster compactness (SLICO) of all planes
+	protected boolean adaptive = false;
+	// number of superpixels per plane
+	protected int[] nbLabels = null;
+	// number of already finished planes
+	protected final AtomicInteger nbDone = new AtomicInteger(0);
+
+	/**
+	 * Constructor, by default as many planes are in flight as the workers
+	 *
+	 * @param im ImagePlus stack with a single channel (gray or RGB)
+	 */
+	public StackSLIC(ImagePlus im) {
+		if (im.getNChannels() > 1) {
+			throw new IllegalArgumentException("multi-channel stacks are not supported, see HyperstackSLIC.");
+		}
+		this.image = im;
+		this.maxInFlight = Threading.nbAvailableThread();
+	}
+
+	/**
+	 * Set the maximal number of planes segmented at once
+	 *
+	 * @param n int number of planes, at least one
+	 */
+	public void setMaxInFlight(int n) {
+		this.maxInFlight = Math.max(1, n);
+	}
+
+	/**
+	 * Switch the adaptive compactness of all planes, see jSLIC
+	 *
+	 * @param enable boolean switch the SLICO mode on
+	 */
+	public void setAdaptiveCompactness(boolean enable) {
+		this.adaptive = enable;
+	}
+
+	/**
+	 * Process all planes with default parameters
+	 *
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 * @return ImagePlus 32-bit label stack
+	 */
+	public ImagePlus process(int grid, float reg) {
+		return process(grid, reg, 9, 0.1f);
+	}
+
+	/**
+	 * Process all planes of the stack concurrently
+	 *
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 * @param maxIter number of maximal iterations
+	 * @param sizeTrashold says till which size superpixels will by terminated
+	 * @return ImagePlus 32-bit label stack
+	 */
+	public ImagePlus process(final int grid, final float reg, final int maxIter, final float sizeTrashold) {
+		final ImageStack stack = image.getStack();
+		final int nbPlanes = stack.getSize();
+		final int width = image.getWidth(), height = image.getHeight();
+		final float[][] planes = new float[nbPlanes][];
+		nbLabels = new int[nbPlanes];
+		nbDone.set(0);
+
+		// the pool size bounds the number of planes in flight, a plane is
+		// converted only when its task starts
+		ExecutorService exec = Executors.newFixedThreadPool(Math.min(maxInFlight, nbPlanes));
+		List<Future<?>> tasks = new ArrayList<Future<?>>(nbPlanes);
+		try {
+			for (int n=0; n<nbPlanes; n++) {
+				final int p = n;
+				tasks.add(exec.submit(new Runnable() {
+					@Override
+					public void run() {
+						jSLIC sp = new jSLIC(new ImagePlus("plane", stack.getProcessor(p+1)));
+						sp.setAdaptiveCompactness(adaptive);
+						sp.process(grid, reg, maxIter, sizeTrashold);
+						int[] labels = sp.getBuffer().getLabels();
+						float[] px = new float[labels.length];
+						for (int i=0; i<labels.length; i++) {
+							px[i] = labels[i];
+						}
+						planes[p] = px;
+						nbLabels[p] = sp.getNbLabels();
+						Logging.logMsg("StackSLIC: plane " + (p+1) + " done, " + nbDone.incrementAndGet() + "/" + nbPlanes);
+					}
+				}));
+			}
+			for (Future<?> f : tasks) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			exec.shutdownNow();
+		}
+
+		// gather the results into the label stack
+		ImageStack out = new ImageStack(width, height);
+		for (int n=0; n<nbPlanes; n++) {
+			out.addSlice(null, new FloatProcessor(width, height, planes[n]));
+		}
+		ImagePlus imp = new ImagePlus("superpixels", out);
+		imp.setDimensions(1, image.getNSlices(), image.getNFrames());
+		imp.setCalibration(image.getCalibration());
+		return imp;
+	}
+
+	/**
+	 * @return int[nbPlanes] number of superpixels per plane
+	 */
+	public int[] getNbLabels() {
+		return nbLabels;
+	}
+
+	/**
+	 * @return int number of planes finished in the actual run, e.g. for
+	 * a progress bar from other thread
+	 */
+	public int getNbDone() {
+		return nbDone.get();
+	}
+
+}
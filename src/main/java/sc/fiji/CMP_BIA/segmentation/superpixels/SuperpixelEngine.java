@@ -0,0 +1,62 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.process.ImageProcessor;
+
+import java.util.List;
+
+import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+
+/**
+ * @class Superpixel engine
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief Common interface of the SLIC implementations, so the engine can be
+ * chosen per image type and the engines can be benchmarked on the same data.
+ * The parameters are the jSLIC ones - the initial grid size and the
+ * regularisation in range (0,1); each engine maps them to own parameters.
+ */
+public interface SuperpixelEngine {
+
+	/**
+	 * @return String short name of the engine
+	 */
+	public String getName();
+
+	/**
+	 * Set the segmentation parameters used by following segment() calls
+	 *
+	 * @param grid int initial regular grid size in pixels
+	 * @param regul float superpixel elasticity in range (0,1)
+	 */
+	public void setParameters(int grid, float regul);
+
+	/**
+	 * Segment a single 2D image (RGB or gray)
+	 *
+	 * @param ip ImageProcessor input image
+	 * @return Labelling2D superpixels with labels {0,..,n-1}
+	 */
+	public Labelling2D segment(ImageProcessor ip);
+
+	/**
+	 * @return int number of superpixels of the last segmentation
+	 */
+	public int getNbLabels();
+
+	/**
+	 * @return long time of the last segmentation in ms including the colour
+	 * conversion
+	 */
+	public long getTime();
+
+	/**
+	 * @return List<IterationStats> statistics of the iterations of the last
+	 * segmentation, empty if the engine does not provide them
+	 */
+	public List<IterationStats> getIterationStats();
+
+}
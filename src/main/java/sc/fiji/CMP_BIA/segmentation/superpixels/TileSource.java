@@ -0,0 +1,42 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+
+/**
+ * @class Tile source
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief A large 2D image which is not loaded into memory at once, only
+ * rectangular regions are read on demand (e.g. from a file on disk).
+ */
+public interface TileSource {
+
+	/**
+	 * @return int width of the whole image
+	 */
+	public int getWidth();
+
+	/**
+	 * @return int height of the whole image
+	 */
+	public int getHeight();
+
+	/**
+	 * read a rectangular region of the image, the region has to be inside
+	 *
+	 * @param x int left side of the region
+	 * @param y int top side of the region
+	 * @param w int width of the region
+	 * @param h int height of the region
+	 * @return ImageProcessor new processor with a copy of the region
+	 * @throws IOException if the region can not be read
+	 */
+	public ImageProcessor readRegion(int x, int y, int w, int h) throws IOException;
+
+}
@@ -0,0 +1,600 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import sc.fiji.CMP_BIA.tools.Logging;
+
+/**
+ * @class Tiled SLIC superpixels
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief SLIC superpixels for images larger then the memory (e.g. whole-slide
+ * scans). The image is streamed from a TileSource tile by tile and only the
+ * cluster centres are kept for the whole image. Each iteration reads all
+ * tiles, assigns theirs pixels to the shared centres by the standard jSLIC
+ * kernels and sums them into the global cluster means, so all tiles see the
+ * same centres and the assignment does not depend on the tiling. The gray
+ * intensities of 16-bit and 32-bit sources are scaled by the range of the
+ * whole image, so a centre means the same in all tiles.
+ *
+ * @details The peak memory is given by the tile and by the number of
+ * superpixels, not by the pixels. The tiles are converted into a few reused
+ * jSLIC buffers (one per tile size) and the per-cluster state is kept in
+ * flat primitive arrays - the centre, the colour, the sums of the means, the
+ * spatial index and the stitching forest. It takes about 90 bytes per
+ * superpixel for RGB images, e.g. 0.5 GB for 80000x60000 pixels and grid 30,
+ * and it grows with the image area over the squared grid size.
+ *
+ * @details The tiles are stitched by a seam pass. After the last iteration
+ * each connected component of a cluster inside a tile gets a provisional
+ * label and the components of the same cluster touching across a seam are
+ * joined by union-find. Then the components smaller then a quarter of the
+ * initial superpixel are merged to an adjacent one (as jSLIC does) and the
+ * output is relabelled in place to compact labels {0,..,nbLabels-1} in
+ * raster order, so each label is a single connected superpixel. The output
+ * is a raw file of 32-bit big-endian labels in row-major order.
+ */
+public class TiledSLIC {
+	// input image
+	protected TileSource source;
+	// requested size of the tile core
+	protected int tileSize;
+	// number of grid cells in width dimension and number of final labels
+	protected int nbGridX, nbLabels = 0;
+	// shared cluster centres stored flat - dim int[2*nbClusters] as 
+	// {x0,y0,x1,y1,..} and float[nbClusters*channels]
+	protected int[] clusterPosition = null;
+	protected float[] clusterColour = null;
+	protected int nbChannels = 0;
+	// image type of the tiles as ImagePlus.getType() and the multiplier of 
+	// the native gray intensities common for all tiles
+	protected int imageType = ImagePlus.COLOR_RGB;
+	protected float intensityScale = 1.f;
+	// sums of the cluster pixels over all tiles - colours, positions, counts
+	protected double[] sumColour;
+	protected long[] sumX, sumY;
+	protected int[] nbPixels;
+	// forest of the provisional labels over all tiles, theirs sizes and 
+	// an adjacent provisional label found before in raster order (or -1)
+	protected int[] compParent, compSize, compNeighbour;
+	protected int nbComponents = 0;
+	// reused engines of the tiles, one per tile size - the inner tiles, 
+	// the last column, the last row and the corner
+	protected TileSLIC[] tileEngines = new TileSLIC[4];
+	// reused buffers of the tile labelling - components and provisional 
+	// labels of the tile core and a row of the output
+	protected int[] tileParent = null, tileCore = null;
+	protected ByteBuffer tileRow = null;
+
+	/**
+	 * Constructor
+	 *
+	 * @param src TileSource large input image
+	 * @param tile int size of the tile in pixels, it is rounded to
+	 * a multiple of the grid size
+	 */
+	public TiledSLIC(TileSource src, int tile) {
+		this.source = src;
+		this.tileSize = tile;
+	}
+
+	/**
+	 * Process the whole segmentation with default parameters
+	 *
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 * @param output File where the raw labelling is written
+	 * @throws IOException if reading or writing fails
+	 */
+	public void process(int grid, float reg, File output) throws IOException {
+		process(grid, reg, 9, 0.1f, output);
+	}
+
+	/**
+	 * Process the whole segmentation; the image is read once for the initial 
+	 * clusters, once per iteration and once more for the final labelling
+	 *
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 * @param maxIter number of maximal iterations
+	 * @param sizeTrashold says till which size superpixels will by terminated
+	 * @param output File where the raw labelling is written
+	 * @throws IOException if reading or writing fails
+	 */
+	public void process(int grid, float reg, int maxIter, float sizeTrashold, File output) throws IOException {
+		final int width = source.getWidth();
+		final int height = source.getHeight();
+		final int gridSize = (grid < 5) ? 5 : grid;
+		// tile borders are aligned with the grid
+		final int tile = Math.max(1, tileSize / gridSize) * gridSize;
+		nbGridX = (width + gridSize - 1) / gridSize;
+		final int nbClusters = nbGridX * ((height + gridSize - 1) / gridSize);
+		clusterPosition = new int[2*nbClusters];
+		clusterColour = null;
+		Arrays.fill(tileEngines, null);
+		tileParent = new int[tile*tile];
+		tileCore = new int[tile*tile];
+		tileRow = ByteBuffer.allocate(4 * tile);
+		// clusters near each tile are found by the centres sorted by grid cells
+		ClusterIndex2D index = new ClusterIndex2D(width, height, gridSize);
+		float err, lastErr = Float.MAX_VALUE;
+
+		// the initial clusters are the means of the grid cells of the native 
+		// intensities, the range of the whole image is found by the way
+		Logging.logMsg("TiledSLIC: initial clusters.");
+		intensityScale = 1.f;
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		for (int y0=0; y0<height; y0+=tile) {
+			for (int x0=0; x0<width; x0+=tile) {
+				TileSLIC sp = readTile(x0, y0, Math.min(x0+tile, width), Math.min(y0+tile, height), gridSize);
+				if (imageType == ImagePlus.GRAY16 || imageType == ImagePlus.GRAY32) {
+					for (float v : sp.getBuffer().getPlanes()[0]) {
+						if (v < min) {		min = v;		}
+						if (v > max) {		max = v;		}
+					}
+				}
+				accumulate(sp);
+			}
+		}
+		updateClusters();
+		// the same scale of gray intensities as jSLIC uses for the whole image
+		if (imageType == ImagePlus.GRAY16 || imageType == ImagePlus.GRAY32) {
+			intensityScale = jSLIC.rangeIntensityScale(min, max);
+			for (int i=0; i<clusterColour.length; i++) {
+				clusterColour[i] *= intensityScale;
+			}
+		}
+
+		for (int iter=0; iter<maxIter; iter++) {
+			index.rebuild(clusterPosition);
+			err = 0;
+			for (int y0=0; y0<height; y0+=tile) {
+				for (int x0=0; x0<width; x0+=tile) {
+					TileSLIC sp = assignTile(index, x0, y0, Math.min(x0+tile, width), Math.min(y0+tile, height), gridSize, reg);
+					err += accumulate(sp);
+				}
+			}
+			updateClusters();
+			Logging.logMsg("TiledSLIC:  iter " + (iter+1) + ", inter. distance is " + err);
+			// STOP criterion, the residual grows; jSLIC also stops if it drops 
+			// less then errTreshold times the residual of the previous frame, 
+			// but there is no previous frame for a new image
+			if (err > lastErr) {
+				break;
+			}
+			lastErr = err;
+		}
+
+		// the final labelling by the converged centres
+		index.rebuild(clusterPosition);
+		nbComponents = 0;
+		// nearly each cluster gives a single component, the fragments on 
+		// the seams are added by growing the forest
+		int initSize = nbClusters + (nbClusters >> 2) + 16;
+		compParent = new int[initSize];
+		compSize = new int[initSize];
+		compNeighbour = new int[initSize];
+		// the last row of the tiles above and the last column of the tile 
+		// on the left - cluster and provisional label
+		final int[] upCluster = new int[width], upLabel = new int[width];
+		final int[] leftCluster = new int[tile], leftLabel = new int[tile];
+
+		RandomAccessFile out = new RandomAccessFile(output, "rw");
+		try {
+			FileChannel channel = out.getChannel();
+			out.setLength(4L * width * height);
+			int x1, y1;
+			for (int y0=0; y0<height; y0+=tile) {
+				for (int x0=0; x0<width; x0+=tile) {
+					x1 = Math.min(x0+tile, width);
+					y1 = Math.min(y0+tile, height);
+					TileSLIC sp = assignTile(index, x0, y0, x1, y1, gridSize, reg);
+					int[] core = labelCore(sp.getGlobalLabels(), x0, x1, y0, y1, upCluster, upLabel, leftCluster, leftLabel);
+					writeCore(channel, core, width, x0, x1, y0, y1);
+				}
+			}
+			Logging.logMsg("TiledSLIC: stitching " + nbComponents + " tile components.");
+			mergeComponents((gridSize*gridSize) >> 2);
+			relabel(channel, width, height);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * read and convert a tile into the reused engine of its size, the pixels 
+	 * are not assigned yet
+	 */
+	private TileSLIC readTile(int x0, int y0, int x1, int y1, int gridSize) throws IOException {
+		Logging.logMsg("TiledSLIC: tile [" + x0 + "," + y0 + "] - [" + x1 + "," + y1 + "]");
+		ImageProcessor ip = source.readRegion(x0, y0, x1-x0, y1-y0);
+		imageType = jSLIC.typeOf(ip);
+		int channels = (imageType == ImagePlus.COLOR_RGB) ? 3 : 1;
+		TileSLIC sp = null;
+		for (int t=0; t<tileEngines.length && sp == null; t++) {
+			if (tileEngines[t] == null) {
+				tileEngines[t] = new TileSLIC(x1-x0, y1-y0, channels, gridSize, nbGridX);
+				sp = tileEngines[t];
+			} else if (tileEngines[t].Width == x1-x0 && tileEngines[t].Height == y1-y0 
+					&& tileEngines[t].getBuffer().getNbChannels() == channels) {
+				sp = tileEngines[t];
+			}
+		}
+		if (sp == null) {
+			throw new IOException("the tile source changed the image type.");
+		}
+		sp.load(ip, x0, y0, intensityScale);
+		return sp;
+	}
+
+	/**
+	 * read a tile and assign its pixels to the clusters which windows 
+	 * overlap it, in the same order as jSLIC over the whole image
+	 */
+	private TileSLIC assignTile(ClusterIndex2D index, int x0, int y0, int x1, int y1, int gridSize, float reg) throws IOException {
+		TileSLIC sp = readTile(x0, y0, x1, y1, gridSize);
+		int[] ids = index.query(x0, x1, y0, y1, gridSize, clusterPosition);
+		sp.assign(reg, ids, clusterPosition, clusterColour);
+		return sp;
+	}
+
+	/**
+	 * add the tile pixels to the sums of theirs clusters
+	 *
+	 * @return float sum of distances to the assigned clusters
+	 */
+	private float accumulate(TileSLIC sp) {
+		final PixelBuffer2D buf = sp.getBuffer();
+		final float[][] img = buf.getPlanes();
+		final int nbClusters = clusterPosition.length / 2;
+		if (clusterColour == null) {
+			nbChannels = img.length;
+			clusterColour = new float[nbClusters*nbChannels];
+		}
+		if (sumColour == null || sumX.length != nbClusters || sumColour.length != nbClusters*nbChannels) {
+			sumColour = new double[nbClusters*nbChannels];
+			sumX = new long[nbClusters];
+			sumY = new long[nbClusters];
+			nbPixels = new int[nbClusters];
+		}
+		final int[] labels = sp.getGlobalLabels();
+		final float[] distances = buf.getDistances();
+		final int w = buf.getWidth(), h = buf.getHeight();
+		double err = 0;
+		int k;
+		for (int y=0, i=0; y<h; y++) {
+			for (int x=0; x<w; x++, i++) {
+				k = labels[i];
+				for (int c=0; c<nbChannels; c++) {
+					sumColour[k*nbChannels + c] += img[c][i];
+				}
+				sumX[k] += sp.offsetX + x;
+				sumY[k] += sp.offsetY + y;
+				nbPixels[k] ++;
+				if (distances[i] < Float.MAX_VALUE) {
+					err += distances[i];
+				}
+			}
+		}
+		return (float) err;
+	}
+
+	/**
+	 * set the cluster centres to the means of the summed pixels, clusters 
+	 * without any pixel stay, and clear the sums
+	 */
+	private void updateClusters() {
+		for (int k=0; k<nbPixels.length; k++) {
+			if (nbPixels[k] == 0) {		continue;	}
+			for (int c=0; c<nbChannels; c++) {
+				clusterColour[k*nbChannels + c] = (float) (sumColour[k*nbChannels + c] / nbPixels[k]);
+			}
+			clusterPosition[2*k] = (int) (sumX[k] / nbPixels[k]);
+			clusterPosition[2*k+1] = (int) (sumY[k] / nbPixels[k]);
+		}
+		Arrays.fill(sumColour, 0);
+		Arrays.fill(sumX, 0);
+		Arrays.fill(sumY, 0);
+		Arrays.fill(nbPixels, 0);
+	}
+
+	/**
+	 * Label the connected components of the clusters in the tile by new 
+	 * provisional labels and join them with the components of the same 
+	 * clusters in the previous tiles across the seams
+	 *
+	 * @param cluster int[(x1-x0)*(y1-y0)] clusters of the tile pixels
+	 * @return int[] provisional labels of the tile in the first 
+	 * (x1-x0)*(y1-y0) elements, the buffer is reused by the next tile
+	 */
+	private int[] labelCore(int[] cluster, int x0, int x1, int y0, int y1,
+			int[] upCluster, int[] upLabel, int[] leftCluster, int[] leftLabel) {
+		final int cw = x1 - x0, ch = y1 - y0;
+		// components in the core (4-connectivity), the root is the first 
+		// pixel in raster order
+		final int[] parent = tileParent;
+		for (int y=0, i=0; y<ch; y++) {
+			for (int x=0; x<cw; x++, i++) {
+				parent[i] = i;
+				if (x > 0 && cluster[i-1] == cluster[i]) {
+					jSLIC.union(parent, i-1, i);
+				}
+				if (y > 0 && cluster[i-cw] == cluster[i]) {
+					jSLIC.union(parent, i-cw, i);
+				}
+			}
+		}
+		// provisional labels in raster order, the roots are labelled first
+		final int[] core = tileCore;
+		int r, nb;
+		for (int y=0, i=0; y<ch; y++) {
+			for (int x=0; x<cw; x++, i++) {
+				r = jSLIC.find(parent, i);
+				if (r == i) {
+					// an adjacent label above or on the left as jSLIC prefers
+					if (y > 0) {				nb = core[i-cw];			}
+					else if (y0 > 0) {			nb = upLabel[x0+x];			}
+					else if (x > 0) {			nb = core[i-1];				}
+					else if (x0 > 0) {			nb = leftLabel[y];			}
+					else {						nb = -1;					}
+					core[i] = addComponent(nb);
+				} else {
+					core[i] = core[r];
+				}
+				compSize[core[i]] ++;
+			}
+		}
+		// the seams with the tile on the left and the tiles above
+		if (x0 > 0) {
+			for (int y=0; y<ch; y++) {
+				if (leftCluster[y] == cluster[y*cw]) {
+					jSLIC.union(compParent, leftLabel[y], core[y*cw]);
+				}
+			}
+		}
+		if (y0 > 0) {
+			for (int x=0; x<cw; x++) {
+				if (upCluster[x0+x] == cluster[x]) {
+					jSLIC.union(compParent, upLabel[x0+x], core[x]);
+				}
+			}
+		}
+		// the borders for the next tiles
+		for (int y=0; y<ch; y++) {
+			leftCluster[y] = cluster[y*cw + cw-1];
+			leftLabel[y] = core[y*cw + cw-1];
+		}
+		System.arraycopy(cluster, (ch-1)*cw, upCluster, x0, cw);
+		System.arraycopy(core, (ch-1)*cw, upLabel, x0, cw);
+		return core;
+	}
+
+	/**
+	 * new provisional label, the forest is enlarged if needed
+	 *
+	 * @param nb int adjacent provisional label or -1
+	 * @return int the new label
+	 */
+	private int addComponent(int nb) {
+		if (nbComponents == compParent.length) {
+			int sz = compParent.length + (compParent.length >> 1);
+			compParent = Arrays.copyOf(compParent, sz);
+			compSize = Arrays.copyOf(compSize, sz);
+			compNeighbour = Arrays.copyOf(compNeighbour, sz);
+		}
+		compParent[nbComponents] = nbComponents;
+		compSize[nbComponents] = 0;
+		compNeighbour[nbComponents] = nb;
+		return nbComponents++;
+	}
+
+	/**
+	 * Sum the sizes of the stitched components and merge the small ones to 
+	 * an adjacent component; the first pixel of a component in raster order 
+	 * is the first one of some tile component and its upper (or left) 
+	 * neighbour belongs to other component, so an adjacent one is always 
+	 * found except the component at the image origin
+	 *
+	 * @param minSize int components of this size or smaller are merged
+	 */
+	private void mergeComponents(int minSize) {
+		int r, q;
+		for (int p=0; p<nbComponents; p++) {
+			r = jSLIC.find(compParent, p);
+			if (r != p) {
+				compSize[r] += compSize[p];
+			}
+		}
+		for (int p=0; p<nbComponents; p++) {
+			if (compNeighbour[p] < 0) {		continue;	}
+			r = jSLIC.find(compParent, p);
+			q = jSLIC.find(compParent, compNeighbour[p]);
+			if (r != q && compSize[r] <= minSize) {
+				jSLIC.union(compParent, r, q);
+				compSize[Math.min(r, q)] = compSize[r] + compSize[q];
+			}
+		}
+	}
+
+	/**
+	 * Replace the provisional labels in the output by the compact labels 
+	 * of the stitched components numbered in raster order
+	 */
+	private void relabel(FileChannel channel, int width, int height) throws IOException {
+		// the sizes are not needed after the merging
+		final int[] compact = compSize;
+		Arrays.fill(compact, 0, nbComponents, -1);
+		nbLabels = 0;
+		ByteBuffer row = ByteBuffer.allocate(4 * width);
+		long pos;
+		int r;
+		for (int y=0; y<height; y++) {
+			row.clear();
+			pos = 4L * y * width;
+			while (row.hasRemaining()) {
+				int n = channel.read(row, pos);
+				if (n < 0) {
+					throw new IOException("the output ended at row " + y + ".");
+				}
+				pos += n;
+			}
+			for (int x=0; x<width; x++) {
+				r = jSLIC.find(compParent, row.getInt(4*x));
+				if (compact[r] < 0) {
+					compact[r] = nbLabels++;
+				}
+				row.putInt(4*x, compact[r]);
+			}
+			row.flip();
+			pos = 4L * y * width;
+			while (row.hasRemaining()) {
+				pos += channel.write(row, pos);
+			}
+		}
+	}
+
+	/**
+	 * write the provisional labels of the tile into the output file
+	 */
+	private void writeCore(FileChannel channel, int[] core, int width, int x0, int x1, int y0, int y1) throws IOException {
+		final int cw = x1 - x0;
+		final ByteBuffer row = tileRow;
+		long pos;
+		for (int y=y0, i=0; y<y1; y++) {
+			row.clear();
+			row.limit(4 * cw);
+			for (int x=0; x<cw; x++, i++) {
+				row.putInt( core[i] );
+			}
+			row.flip();
+			pos = 4L * ((long)y*width + x0);
+			while (row.hasRemaining()) {
+				pos += channel.write(row, pos);
+			}
+		}
+	}
+
+	/**
+	 * gives the number of labels after the last processing
+	 *
+	 * @return int number of labels
+	 */
+	public int getNbLabels() {
+		return nbLabels;
+	}
+
+}
+
+
+/**
+ * @class Tile SLIC
+ *
+ * @brief A tile buffer of TiledSLIC converted by jSLIC, it is refilled by 
+ * all tiles of the same size and its pixels are assigned to the shared 
+ * clusters of the whole image by the jSLIC kernels.
+ */
+class TileSLIC extends jSLIC {
+	// position of the tile in the whole image
+	protected int offsetX, offsetY;
+	// number of grid cells in width dimension of the whole image
+	protected int nbGridX;
+	// global cluster of each local cluster, null before the assignment
+	protected int[] globalIds = null;
+	// global clusters of the tile pixels
+	protected final int[] global;
+
+	/**
+	 * Constructor of a reusable tile buffer
+	 *
+	 * @param w int tile width
+	 * @param h int tile height
+	 * @param channels int number of channels, 3 for RGB and 1 for gray images
+	 * @param grid int grid size of the whole image
+	 * @param gridX int number of grid cells in width dimension of the whole image
+	 */
+	public TileSLIC(int w, int h, int channels, int grid, int gridX) {
+		super(w, h, channels);
+		this.gridSize = grid;
+		this.nbGridX = gridX;
+		this.global = new int[w*h];
+	}
+
+	/**
+	 * convert next tile of the same size into the buffer
+	 *
+	 * @param ip ImageProcessor pixels of the tile
+	 * @param offX int left side of the tile in the whole image
+	 * @param offY int top side of the tile in the whole image
+	 * @param scale float multiplier of native gray intensities of all tiles
+	 */
+	public void load(ImageProcessor ip, int offX, int offY, float scale) {
+		this.offsetX = offX;
+		this.offsetY = offY;
+		this.globalIds = null;
+		intensityScale = scale;
+		userIntensityScale = true;
+		convertProcessor(ip, typeOf(ip));
+	}
+
+	/**
+	 * assign the tile pixels to the given clusters of the whole image, the 
+	 * centres may be outside the tile
+	 *
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 * @param ids int[] global clusters which windows overlap the tile
+	 * @param gPos int[2*nbClusters] global cluster positions stored flat
+	 * @param gClr float[nbClusters*channels] global cluster colours stored flat
+	 */
+	public void assign(float reg, int[] ids, int[] gPos, float[] gClr) {
+		this.regul = reg;
+		this.factor = (regul*regul) * (float)(gridSize);
+		globalIds = ids;
+		if (clusterPosition == null || clusterPosition.length != ids.length) {
+			clusterPosition = new int[ids.length][2];
+			clusterColour = new float[ids.length][nbChannels];
+		}
+		for (int k=0; k<ids.length; k++) {
+			clusterPosition[k][0] = gPos[2*ids[k]] - offsetX;
+			clusterPosition[k][1] = gPos[2*ids[k]+1] - offsetY;
+			System.arraycopy(gClr, ids[k]*nbChannels, clusterColour[k], 0, nbChannels);
+		}
+		indexClusters();
+		assignmentFastParallel();
+	}
+
+	/**
+	 * global clusters of the tile pixels; before the assignment and for 
+	 * pixels out of all cluster windows it is the initial grid cell
+	 *
+	 * @return int[Width*Height] global clusters, the buffer is reused by 
+	 * the next tile
+	 */
+	public int[] getGlobalLabels() {
+		final int[] labels = buffer.labels;
+		final float[] distances = buffer.distances;
+		for (int y=0, i=0; y<Height; y++ ) {
+			int row = ((offsetY + y)/gridSize) * nbGridX;
+			for (int x=0; x<Width; x++, i++ ) {
+				if (globalIds != null && distances[i] < Float.MAX_VALUE) {
+					global[i] = globalIds[labels[i]];
+				} else {
+					global[i] = row + (offsetX + x)/gridSize;
+				}
+			}
+		}
+		return global;
+	}
+
+}
@@ -6,6 +6,10 @@ package sc.fiji.CMP_BIA.segmentation.superpixels;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 
 import java.lang.Math;
 import java.util.Arrays;
@@ -50,36 +54,59 @@ import sc.fiji.CMP_BIA.tools.converters.ConvertImage;
  * [1] Achanta, Radhakrishna, Appu Shaji, Kevin Smith, Aurelien Lucchi, Pascal Fua, and Sabine S??sstrunk. 
  * "Slic superpixels." ??cole Polytechnique Federal de Lausssanne (EPFL), Tech. Rep 149300 (2010).
  */
-public class jSLIC {
+public class jSLIC extends AbstractSLIC {
 
-	// clone of original image we work with
-	protected ImagePlus image;
-	private int Width, Height;
-	// image converted into LAB colour space - dim int[Width][Height][channels]
-	protected int[][][] img = null;
-	// initial regular grid size
-	protected int gridSize;
-	// superpixel elasticity in range (0,1)  
-	protected float regul;
-	// labeling per each image pixel - dim int[Width][Height]
-	protected int[][] labels = null;
-	// protected ShortProcessor labels; // it is 7x slower then int[][]
-	// minimal distance according the assigned label 
-	protected float[][] distances = null;
-	// number of estimated segments (labels)
-	protected int nbLabels;
-	// vector of cluster's colours - dim int[nbClusters][channels]
-	protected int[][] clusterColour = null;
+	// image converted into LAB colour space together with labels and distances
+	// all stored as flat row-major planes - see PixelBuffer2D
+	protected PixelBuffer2D buffer = null;
+	// vector of cluster's colours - dim float[nbClusters][channels]
+	protected float[][] clusterColour = null;
 	// vector of cluster's positions - dim int[nbClusters][positions]
 	protected int[][] clusterPosition = null;
-	// stopping treshold value in percent of initial error
-	protected float errTreshold = 0.1f;
-	// according the VLFeat library the regul is in range {0,1}
-	protected float factor;
-	// number of channel
-	protected int nbChannels = 3;
-	// precomputed distances
+	// precomputed distances and the factor they were computed for
 	protected float[] distGrid = null;
+	protected float distGridFactor = -1;
+	// masks of the boundary pixels and the band around them for the pyramid 
+	// refinement, kept for the next image - dim boolean[Width*Height]
+	protected boolean[] edgeMask = null, bandMask = null;
+	// parameters of the reusable engine, see segment()
+	protected int engineGrid = 30, engineMaxIter = 9;
+	protected float engineRegul = 0.2f, engineSizeTrashold = 0.1f;
+	// spatial index of cluster centres by grid cells
+	protected ClusterIndex2D clusterIndex = null;
+	// incremental assignment - re-evaluate only windows around moved clusters
+	protected boolean incremental = false;
+	// tolerated shift of cluster centre in pixels and colour units
+	protected float shiftTolerance = 1.f;
+	// cluster centres from the previous iteration
+	protected int[][] prevPosition = null;
+	protected float[][] prevColour = null;
+	// clusters which moved in the last update and clusters to be re-evaluated
+	protected boolean[] moved = null, active = null;
+	// fraction of the window pixels skipped in the last assignment
+	protected float skippedFraction = 0;
+	// residual from the last assignment
+	protected float lastResidual = 0;
+	// seed the next frame by the clusters of the previous one
+	protected boolean warmStart = false;
+	// number of pyramid levels (each halves the image) and number of final 
+	// iterations at full resolution near the boundaries
+	protected int pyramidLevels = 0, fineIterations = 1;
+	// use the SIMD assignment kernel if the JVM supports it
+	protected boolean vectorKernel = true;
+	// multiplier of native gray intensities, zero means not set yet; the 
+	// default one is computed for each image unless it was set by the user
+	protected float intensityScale = 0;
+	protected boolean userIntensityScale = false;
+	// SLICO mode, the colour distance is normalised per cluster
+	protected boolean adaptive = false;
+	// running maximal colour distance of the cluster pixels and the derived 
+	// weights of the colour distance - dim float[nbClusters]
+	protected float[] clusterMaxColour = null, colourWeight = null;
+	// the smallest maximal colour distance given by the regularisation, so 
+	// flat clusters are not more sensitive to colour noise then with the 
+	// fixed compactness
+	protected float minMaxColour = 1.f;
 
 	// TODO - avoiding computations with real numbers
 	
@@ -95,14 +122,37 @@ public class jSLIC {
 		initInternalVaribales();		
 	}
 	
+	/**
+	 * Constructor over an already converted image, e.g. a pyramid level
+	 * 
+	 * @param buf PixelBuffer2D with filled image planes
+	 */
+	protected jSLIC (PixelBuffer2D buf) {
+		this.Width = buf.getWidth();
+		this.Height = buf.getHeight();
+		this.buffer = buf;
+	}
+	
+	/**
+	 * Constructor of a reusable engine for many images of the same size, 
+	 * all buffers are allocated once and reused by each segment() call
+	 * 
+	 * @param width int image width
+	 * @param height int image height
+	 * @param channels int number of channels, 3 for RGB and 1 for gray images
+	 */
+	public jSLIC (int width, int height, int channels) {
+		this(new PixelBuffer2D(width, height, new float[channels][width*height]));
+		this.nbChannels = channels;
+	}
+	
 	protected void initInternalVaribales() {
 		// image sizes
 		this.Width = image.getWidth();
 		this.Height = image.getHeight();
 		
 		// init other local variables according selected image 
-		labels = new int[Width][Height];
-		distances = new float[Width][Height];
+		buffer = new PixelBuffer2D(Width, Height);
 		
 		Logging.logMsg("SLIC: image convert.");
 		
@@ -121,41 +171,183 @@ public class jSLIC {
 	 * Initialise the 2D space which means initialise the label array and distances
 	 */
 	protected void convertImage() {
+		convertProcessor(image.getProcessor(), image.getType());
+	}
+	
+	/**
+	 * convert the image processor into the buffer planes
+	 * 
+	 * @param ip ImageProcessor image of the same size as the buffer
+	 * @param type int image type as ImagePlus.getType()
+	 */
+	protected void convertProcessor(ImageProcessor ip, int type) {
 
-		switch (image.getType()) {
+		switch (type) {
 			// convert image from RGB to CIE LAB colour space]
 			case ImagePlus.COLOR_RGB:
 				// converting RGB image to LAB
-				//this.img = ConvertImage.rgb2cieLAB(image.getProcessor());
-				this.img = ConvertImage.rgb2cieLABfast(image.getProcessor());
+				buffer.setPlanes( ConvertImage.rgb2cieLABplanes(ip, reusePlanes(3)) );
 				//this.nbChannels = 3;
 				break;
-			// convert the gray images
+			// the gray images keep the native intensities in a single channel
 			case ImagePlus.GRAY8:
 			case ImagePlus.GRAY16:
 			case ImagePlus.GRAY32:
-				// converting Gray image to the same format as LAB but only one channel
-				//this.img = ConvertImage.gray2bright(image.getProcessor());
-				//this.nbChannels = 1;
-				// converting Gray image to the same format as LAB but only one channel
-				this.img = ConvertImage.gray2cieLAB(image.getProcessor());
-				//this.nbChannels = 3;
+				float[][] planes = ConvertImage.gray2planes(ip, 1.f, reusePlanes(1));
+				if (! userIntensityScale) {
+					intensityScale = defaultIntensityScale(planes[0], type);
+				}
+				scalePlane(planes[0], intensityScale);
+				buffer.setPlanes( planes );
 				break;
 			default:
 				Logging.logMsg("ERROR: Not supported colour space!");
 				break;
 		}
+		this.nbChannels = buffer.getNbChannels();
 	}
 	
+	/**
+	 * the actual image planes if they have the requested number of channels, 
+	 * otherwise new planes
+	 * 
+	 * @param channels int number of channels
+	 * @return float[channels][Width*Height]
+	 */
+	protected float[][] reusePlanes(int channels) {
+		if (buffer.planes != null && buffer.planes.length == channels) {
+			return buffer.planes;
+		}
+		return new float[channels][Width*Height];
+	}
 	
 	/**
-	 * Process the whole segmentation process
+	 * image type of a processor as ImagePlus.getType()
+	 * 
+	 * @param ip ImageProcessor
+	 * @return int image type
+	 */
+	protected static int typeOf(ImageProcessor ip) {
+		if (ip instanceof ColorProcessor) {
+			return ImagePlus.COLOR_RGB;
+		} else if (ip instanceof ShortProcessor) {
+			return ImagePlus.GRAY16;
+		} else if (ip instanceof FloatProcessor) {
+			return ImagePlus.GRAY32;
+		}
+		return ImagePlus.GRAY8;
+	}
+	
+	/**
+	 * Set parameters of the reusable engine used by segment()
 	 * 
 	 * @param grid integer number defining the initial regular grid size
 	 * @param reg float defining the superpixel elasticity in range (0,1)  
+	 * @param maxIter number of maximal iterations   
+	 * @param sizeTrashold says till which size superpixels will by terminated
+	 */
+	public void setParameters(int grid, float reg, int maxIter, float sizeTrashold) {
+		this.engineGrid = grid;
+		this.engineRegul = reg;
+		this.engineMaxIter = maxIter;
+		this.engineSizeTrashold = sizeTrashold;
+	}
+	
+	/**
+	 * Segment next image of the same size and number of channels, the image 
+	 * planes, labels, distances, clusters, the distance grid and the 
+	 * connectivity buffers are reused from the previous image
+	 * 
+	 * @param ip ImageProcessor next image
+	 * @return int[Width*Height] reference to the labelling, it is valid 
+	 * only till the next call
+	 */
+	public int[] segment(ImageProcessor ip) {
+		int type = typeOf(ip);
+		int channels = (type == ImagePlus.COLOR_RGB) ? 3 : 1;
+		if (ip.getWidth() != Width || ip.getHeight() != Height || channels != buffer.getNbChannels()) {
+			throw new IllegalArgumentException("the image size or channels differ from the engine.");
+		}
+		convertProcessor(ip, type);
+		process(engineGrid, engineRegul, engineMaxIter, engineSizeTrashold);
+		return buffer.labels;
+	}
+	
+	/**
+	 * the default intensity scale maps the range of 16-bit and 32-bit images 
+	 * to 256 levels, so the regularisation has the similar meaning as for 
+	 * 8-bit images which are kept as they are
+	 * 
+	 * @param plane float[] native intensities
+	 * @param type int image type as ImagePlus.getType()
+	 * @return float scale
+	 */
+	protected static float defaultIntensityScale(float[] plane, int type) {
+		if (type == ImagePlus.GRAY8) {
+			return 1.f;
+		}
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		for (int i=0; i<plane.length; i++) {
+			if (plane[i] < min) {		min = plane[i];		}
+			if (plane[i] > max) {		max = plane[i];		}
+		}
+		return rangeIntensityScale(min, max);
+	}
+	
+	/**
+	 * the default intensity scale of 16-bit and 32-bit images of given 
+	 * range, e.g. over many tiles of an image
+	 * 
+	 * @param min float minimal native intensity
+	 * @param max float maximal native intensity
+	 * @return float scale mapping the range to 256 levels
+	 */
+	protected static float rangeIntensityScale(float min, float max) {
+		return (max > min) ? 255.f / (max - min) : 1.f;
+	}
+	
+	/**
+	 * multiply all values of the plane in parallel
+	 */
+	protected static void scalePlane(final float[] plane, final float scale) {
+		if (scale == 1.f) {		return;		}
+		Threading.parallelFor(0, plane.length, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int i=begin; i<end; i++) {
+					plane[i] *= scale;
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Set the multiplier of native gray intensities, a difference of one 
+	 * scaled level weights as one LAB unit of colour images; by default the 
+	 * 8-bit images are not scaled and the range of 16-bit and 32-bit images 
+	 * is mapped to 256 levels of each image. It has no effect on colour 
+	 * images. The given scale is kept for all following images, e.g. the 
+	 * frames of a warm start or the images of segment().
+	 * 
+	 * @param scale float positive multiplier
+	 */
+	public void setIntensityScale(float scale) {
+		if (scale <= 0) {
+			return;
+		}
+		// rescale the actual gray image, if any is loaded
+		if (intensityScale > 0 && buffer.getNbChannels() == 1) {
+			scalePlane(buffer.planes[0], scale / intensityScale);
+		}
+		intensityScale = scale;
+		userIntensityScale = true;
+	}
+	
+	/**
+	 * @return float the actual multiplier of gray intensities
 	 */
-	public void process (int grid, float reg) {
-		process (grid, reg, 9, 0.1f);
+	public float getIntensityScale() {
+		return intensityScale;
 	}
 	
 	
@@ -167,30 +359,104 @@ public class jSLIC {
 	 * @param maxIter number of maximal iterations   
 	 * @param sizeTrashold says till which size superpixels will by terminated
 	 */
+	@Override
 	public void process (int grid, float reg, int maxIter, float sizeTrashold) {
 		this.gridSize = (grid < 5) ? 5 : grid;
 		this.regul = (reg < 0) ? 0 : reg;
-		// according the VLFeat library the regul is in range {0,1}
-		this.factor = (regul*regul) * (float)(gridSize);
-		float err, lastErr = Float.MAX_VALUE;
+		// according the VLFeat library the regul is in range {0,1}, in the 
+		// adaptive mode the regul sets only the initial colour weights
+		this.factor = (adaptive) ? (float)(gridSize) : (regul*regul) * (float)(gridSize);
 		
 		Logging.logMsg("SLIC: running with gridSize: " + Integer.toString(gridSize) + " regularity " + Float.toString(regul));
 		
-		initClusters();
+		boolean warm = warmStart && canWarmStart();
+		// the pyramid needs at least a few pixels per superpixel on top level
+		boolean pyramid = ! warm && pyramidLevels > 0 && (gridSize >> pyramidLevels) >= 3;
+		if (warm) {
+			// keep the converged clusters of the previous frame
+			Logging.logMsg("SLIC: warm start from the previous clusters.");
+			active = null;
+		} else if (pyramid) {
+			// the clusters and labels come from downsampled image
+			processCoarse(maxIter);
+		} else {
+			// the residual of a reused buffer does not belong to this image
+			buffer.fillDistances(0);
+			initClusters();
+		}
+		if (adaptive && ! pyramid) {
+			initMaxColour(warm);
+		}
+		
+		if (pyramid) {
+			refineBoundaries();
+		} else {
+			iterate(maxIter);
+		}
+				
+		// At the end of the clustering procedure, some ?orphaned? pixels that 
+		// do not belong to the same connected component as their cluster center 
+		// may remain. To correct for this, such pixels are assigned the label 
+		// of the nearest cluster center using a connected components algorithm.
+		
+		// the original post-processing by authors which relabel by label on top
+		Logging.logMsg("SLIC: enforce label connectivity.");
+		if (warmStart) {
+			// temporally consistent labels are the cluster indexes
+			enforceLabelConnectivity(true);
+		} else {
+			enforceLabelConnectivity();
+		}
+		
+		Logging.logMsg("SLIC: DONE.");
+	}
+	
+	
+	/**
+	 * Iterate the assignment and update steps till the STOP criterion
+	 * 
+	 * @param maxIter number of maximal iterations
+	 */
+	protected void iterate (int maxIter) {
+		float err, lastErr = Float.MAX_VALUE;
 		
+		// in case of warm start it is the residual of the previous frame
 		float initErr = computeResidualError();
+		long time;
+		IterationStats stats;
+		iterationStats.clear();
+		// the connectivity forest is free during the iterations, it keeps the 
+		// labels of the previous assignment to count the relabelled pixels; 
+		// the initial ones are copied here and then they are stored by the 
+		// update step while it reads the labels anyway
+		if (forest == null || forest.length != Width*Height) {
+			forest = new int[Width*Height];
+		}
+		System.arraycopy(buffer.labels, 0, forest, 0, forest.length);
 				
 		for (int i=0; i<maxIter; i++) {
+			time = System.currentTimeMillis();
 		
 			//assignment();
 			//assignmentFast();
 			assignmentFastParallel();
+			if (adaptive && i == 0) {
+				// the initial guess is replaced by the observed distances
+				Arrays.fill(clusterMaxColour, minMaxColour);
+			}
 
-			err = computeResidualError();
+			// the residual is summed already in the assignment
+			err = lastResidual;
 			Logging.logMsg("SLIC:  iter " + Integer.toString(i+1) + ", inter. distance is " + Float.toString(err));
+			if (incremental) {
+				Logging.logMsg("SLIC:  iter " + Integer.toString(i+1) + ", skipped " + Float.toString(100.f*skippedFraction) + "% of assignment");
+			}
 			
 			//update();
 			updateFastParallel();
+			
+			stats = new IterationStats(i+1, System.currentTimeMillis()-time, err, changedPixels, (long)Width*Height, maxShift, skippedFraction);
+			notifyListeners(stats);
 
 			// show distance function
 			// (new ImagePlus("Estimated segmentation", PresentSegmentation.showSegmentation2D(labels))).show();  
@@ -201,24 +467,340 @@ public class jSLIC {
 			if ( (lastErr-err) < (initErr*errTreshold)) {
 				Logging.logMsg("SLIC: terminate with diff error " + (lastErr-err));
 				i = maxIter;
+			// STOP criterion, if only a few pixels changed and centres stay
+			} else if (stats.getChangedFraction() <= changeTreshold && maxShift <= shiftTreshold) {
+				Logging.logMsg("SLIC: terminate with changed pixels " + changedPixels + " and max shift " + maxShift);
+				i = maxIter;
 			} else {
 				lastErr = err;
 			}
 						
 		}
-				
-		// At the end of the clustering procedure, some ?orphaned? pixels that 
-		// do not belong to the same connected component as their cluster center 
-		// may remain. To correct for this, such pixels are assigned the label 
-		// of the nearest cluster center using a connected components algorithm.
+	}
+	
+	
+	/**
+	 * Set the coarse-to-fine mode, the iterations run on downsampled image 
+	 * and only the last ones at full resolution near the superpixel 
+	 * boundaries; used only if the grid on the top level is at least 3
+	 * 
+	 * @param levels int number of levels, 1 means 2x and 2 means 4x 
+	 * downsampled image, 0 switches the pyramid off
+	 * @param fineIter int number of iterations at full resolution
+	 */
+	public void setPyramid(int levels, int fineIter) {
+		this.pyramidLevels = (levels < 0) ? 0 : levels;
+		this.fineIterations = (fineIter < 1) ? 1 : fineIter;
+	}
+	
+	
+	/**
+	 * Run the clustering on the downsampled image and take the converged 
+	 * clusters and labelling to the full resolution
+	 * 
+	 * @param maxIter number of maximal iterations on the coarse level
+	 */
+	protected void processCoarse (int maxIter) {
+		final int f = 1 << pyramidLevels;
+		Logging.logMsg("SLIC: coarse level downsampled " + Integer.toString(f) + "x.");
 		
-		// the original post-processing by authors which relabel by label on top
-		Logging.logMsg("SLIC: enforce label connectivity.");
-		enforceLabelConnectivity();
+		jSLIC coarse = new jSLIC( downsample(buffer, f) );
+		coarse.gridSize = gridSize / f;
+		coarse.regul = regul;
+		// the same metric in the coarse pixels
+		coarse.factor = factor * f * f;
+		coarse.errTreshold = errTreshold;
+		coarse.changeTreshold = changeTreshold;
+		coarse.shiftTreshold = shiftTreshold / f;
+		coarse.listeners = listeners;
+		coarse.iterationStats = iterationStats;
+		coarse.adaptive = adaptive;
+		coarse.initClusters();
+		if (adaptive) {
+			coarse.initMaxColour(false);
+		}
+		coarse.iterate(maxIter);
 		
-		Logging.logMsg("SLIC: DONE.");
+		// take the cluster centres, the colour distances are the same
+		clusterColour = coarse.clusterColour;
+		clusterMaxColour = coarse.clusterMaxColour;
+		minMaxColour = coarse.minMaxColour;
+		clusterPosition = new int[coarse.clusterPosition.length][2];
+		for (int k=0; k<clusterPosition.length; k++) {
+			clusterPosition[k][0] = Math.min(coarse.clusterPosition[k][0]*f + f/2, Width-1);
+			clusterPosition[k][1] = Math.min(coarse.clusterPosition[k][1]*f + f/2, Height-1);
+		}
+		// take the labels
+		final int[] labels = buffer.labels;
+		final int[] coarseLabels = coarse.buffer.labels;
+		final int coarseWidth = coarse.Width;
+		Threading.parallelFor(0, Height, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int y=begin; y<end; y++) {
+					int c = (y/f)*coarseWidth;
+					for (int x=0, i=y*Width; x<coarseWidth; x++) {
+						for (int e=i+Math.min(f, Width-x*f); i<e; i++) {
+							labels[i] = coarseLabels[c + x];
+						}
+					}
+				}
+			}
+		});
+		indexClusters();
+		active = null;
+	}
+	
+	
+	/**
+	 * Downsample the image planes by averaging blocks of pixels
+	 * 
+	 * @param buf PixelBuffer2D image at full resolution
+	 * @param f int size of the block
+	 * @return PixelBuffer2D new smaller image
+	 */
+	protected static PixelBuffer2D downsample (final PixelBuffer2D buf, final int f) {
+		final int w = (buf.width + f - 1) / f;
+		final int h = (buf.height + f - 1) / f;
+		final float[][] planes = new float[buf.getNbChannels()][w*h];
+		Threading.parallelFor(0, h, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				float[] sum = new float[w];
+				for (int y=begin; y<end; y++) {
+					int yE = Math.min((y+1)*f, buf.height);
+					for (int c=0; c<planes.length; c++) {
+						final float[] plane = buf.planes[c];
+						Arrays.fill(sum, 0);
+						// sum the block rows column by column
+						for (int yy=y*f; yy<yE; yy++) {
+							for (int x=0, i=yy*buf.width; x<w; x++) {
+								float acc = 0;
+								for (int e=i+Math.min(f, buf.width-x*f); i<e; i++) {
+									acc += plane[i];
+								}
+								sum[x] += acc;
+							}
+						}
+						for (int x=0; x<w; x++) {
+							planes[c][y*w + x] = sum[x] / ((yE - y*f) * (Math.min((x+1)*f, buf.width) - x*f));
+						}
+					}
+				}
+			}
+		});
+		return new PixelBuffer2D(w, h, planes);
+	}
+	
+	
+	/**
+	 * The final iterations at full resolution, only pixels in a narrow band 
+	 * along the superpixel boundaries are reassigned
+	 */
+	protected void refineBoundaries () {
+		final int f = 1 << pyramidLevels;
+		// the connectivity forest is free here, as in iterate()
+		if (forest == null || forest.length != Width*Height) {
+			forest = new int[Width*Height];
+		}
+		final int[] prevLabels = forest;
+		for (int i=0; i<fineIterations; i++) {
+			Logging.logMsg("SLIC:  fine iter " + Integer.toString(i+1));
+			System.arraycopy(buffer.labels, 0, prevLabels, 0, prevLabels.length);
+			bandAssignment(prevLabels, findBand(prevLabels, f), f);
+			updateFastParallel();
+		}
+	}
+	
+	
+	/**
+	 * Find pixels closer then given radius to a superpixel boundary, both 
+	 * masks are reused and each pass overwrites them completely
+	 * 
+	 * @param labels int[Width*Height] labelling
+	 * @param radius int band half width
+	 * @return boolean[Width*Height] band mask, valid till the next call
+	 */
+	protected boolean[] findBand (final int[] labels, final int radius) {
+		if (bandMask == null || bandMask.length != Width*Height) {
+			edgeMask = new boolean[Width*Height];
+			bandMask = new boolean[Width*Height];
+		}
+		final boolean[] edge = edgeMask;
+		final boolean[] band = bandMask;
+		// pixels with a different 4-neighbour
+		Threading.parallelFor(0, Height, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int y=begin; y<end; y++) {
+					for (int x=0, i=y*Width; x<Width; x++, i++) {
+						edge[i] = (x > 0 && labels[i] != labels[i-1]) 
+								|| (x+1 < Width && labels[i] != labels[i+1]) 
+								|| (y > 0 && labels[i] != labels[i-Width]) 
+								|| (y+1 < Height && labels[i] != labels[i+Width]);
+					}
+				}
+			}
+		});
+		// dilation by a square - distance to the nearest edge in columns 
+		// forward and backward, for blocks of columns
+		final int blockWidth = 64;
+		Threading.parallelFor(0, (Width + blockWidth - 1) / blockWidth, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int[] dist = new int[blockWidth];
+				for (int b=begin; b<end; b++) {
+					int xB = b*blockWidth, xE = Math.min(xB+blockWidth, Width);
+					Arrays.fill(dist, radius+1);
+					for (int y=0; y<Height; y++) {
+						for (int x=xB, i=y*Width+xB; x<xE; x++, i++) {
+							dist[x-xB] = edge[i] ? 0 : dist[x-xB]+1;
+							band[i] = dist[x-xB] <= radius;
+						}
+					}
+					Arrays.fill(dist, radius+1);
+					for (int y=Height-1; y>=0; y--) {
+						for (int x=xB, i=y*Width+xB; x<xE; x++, i++) {
+							dist[x-xB] = edge[i] ? 0 : dist[x-xB]+1;
+							band[i] |= dist[x-xB] <= radius;
+						}
+					}
+				}
+			}
+		});
+		// and the same in rows, the edges are not needed any more so each 
+		// row of the column band is kept in the same row of the edge mask
+		Threading.parallelFor(0, Height, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int y=begin; y<end; y++) {
+					System.arraycopy(band, y*Width, edge, y*Width, Width);
+					int dist = radius+1;
+					for (int x=0, i=y*Width; x<Width; x++, i++) {
+						dist = edge[i] ? 0 : dist+1;
+						band[i] = dist <= radius;
+					}
+					dist = radius+1;
+					for (int x=Width-1, i=y*Width+Width-1; x>=0; x--, i--) {
+						dist = edge[i] ? 0 : dist+1;
+						band[i] |= dist <= radius;
+					}
+				}
+			}
+		});
+		return band;
+	}
+	
+	
+	/**
+	 * Reassign the band pixels to the nearest cluster among theirs label 
+	 * and the labels in distance of the band width in the main directions
+	 * 
+	 * @param prevLabels int[Width*Height] labelling before this step
+	 * @param band boolean[Width*Height] pixels to be reassigned
+	 * @param radius int band half width
+	 */
+	protected void bandAssignment (final int[] prevLabels, final boolean[] band, final int radius) {
+		final int[] labels = buffer.labels;
+		final float[] distances = buffer.distances;
+		final float[][] img = buffer.planes;
+		final float[] weights = (adaptive) ? computeColourWeights() : null;
+		Threading.parallelFor(0, Height, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int[] cand = new int[5];
+				int k, best, dx, dy;
+				float dist, bestDist, d;
+				for (int y=begin; y<end; y++) {
+					for (int x=0, i=y*Width; x<Width; x++, i++) {
+						if (! band[i]) {		continue;		}
+						cand[0] = prevLabels[i];
+						cand[1] = prevLabels[y*Width + Math.max(0, x-radius)];
+						cand[2] = prevLabels[y*Width + Math.min(Width-1, x+radius)];
+						cand[3] = prevLabels[Math.max(0, y-radius)*Width + x];
+						cand[4] = prevLabels[Math.min(Height-1, y+radius)*Width + x];
+						// inside a superpixel there is nothing to decide
+						if (cand[0] == cand[1] && cand[0] == cand[2] && cand[0] == cand[3] && cand[0] == cand[4]) {
+							continue;
+						}
+						best = prevLabels[i];
+						bestDist = Float.MAX_VALUE;
+						for (int j=0; j<cand.length; j++) {
+							k = cand[j];
+							dx = x - clusterPosition[k][0];
+							dy = y - clusterPosition[k][1];
+							// the same window as in the standard assignment
+							if (dx < -gridSize || dx >= gridSize || dy < -gridSize || dy >= gridSize) {
+								continue;
+							}
+							if (weights == null) {
+								dist = (dx*dx + dy*dy) * factor;
+								for (int c=0; c<img.length; c++) {
+									d = img[c][i] - clusterColour[k][c];
+									dist += d*d;
+								}
+							} else {
+								dist = 0;
+								for (int c=0; c<img.length; c++) {
+									d = img[c][i] - clusterColour[k][c];
+									dist += d*d;
+								}
+								dist = weights[k] * dist + (dx*dx + dy*dy) * factor;
+							}
+							// lower cluster index wins as in the window scan
+							if (dist < bestDist || (dist == bestDist && k < best)) {
+								bestDist = dist;
+								best = k;
+							}
+						}
+						labels[i] = best;
+						if (bestDist < Float.MAX_VALUE) {
+							distances[i] = bestDist;
+						}
+					}
+				}
+			}
+		});
+	}
+	
+	
+	/**
+	 * Set the streaming mode for time-lapse, the clusters converged on the 
+	 * previous frame seed the next one given by setFrame(), the buffers are 
+	 * reused and the labels are kept as the cluster indexes so the same 
+	 * superpixel has the same label in consecutive frames
+	 * 
+	 * @param enable boolean switch the warm start on
+	 */
+	public void setWarmStart(boolean enable) {
+		this.warmStart = enable;
+	}
+	
+	/**
+	 * Replace the image by the next frame of the same size, the labelling, 
+	 * distances and clusters are kept for a warm start
+	 * 
+	 * @param ip ImageProcessor next frame
+	 */
+	public void setFrame(ImageProcessor ip) {
+		if (ip.getWidth() != Width || ip.getHeight() != Height) {
+			throw new IllegalArgumentException("the frame size differs from the image size.");
+		}
+		convertProcessor(ip, typeOf(ip));
 	}
 	
+	/**
+	 * the previous clusters can seed the next run only for the same grid
+	 * 
+	 * @return boolean
+	 */
+	protected boolean canWarmStart() {
+		if (clusterPosition == null) {
+			return false;
+		}
+		int nbClusters = (int) (Math.ceil((float)Width/(float)gridSize) * Math.ceil((float)Height/(float)gridSize));
+		return clusterPosition.length == nbClusters && clusterIndex != null && clusterIndex.cellSize == gridSize;
+	}
 	
 	/**
 	 * Initialisation of all local variables as well as providing initial 
@@ -227,22 +809,27 @@ public class jSLIC {
 	protected void initClusters () {
 		// compute needed number of clusters
 		int nbClusters = (int) (Math.ceil((float)Width/(float)gridSize) * Math.ceil((float)Height/(float)gridSize));
-		// init arrays
-		clusterColour = new int[nbClusters][img[0][0].length];
-		clusterPosition = new int[nbClusters][2];
+		// init arrays, reused from the previous image if possible
+		if (clusterPosition == null || clusterPosition.length != nbClusters || clusterPosition[0].length != 2
+				|| clusterColour[0].length != buffer.getNbChannels()) {
+			clusterColour = new float[nbClusters][buffer.getNbChannels()];
+			clusterPosition = new int[nbClusters][2];
+		}
 		
 		// do initial assignment - assign labels by initial regular grid
+		int[] labels = buffer.labels;
 		int maxColumn = (int) Math.ceil(Width / (float)gridSize);
-		for (int x=0; x<Width; x++ ) {
-			for (int y=0; y<Height; y++ ) {
+		for (int y=0, i=0; y<Height; y++ ) {
+			for (int x=0; x<Width; x++, i++ ) {
 
-				labels[x][y] = (int) ((y/gridSize)*maxColumn + (x/gridSize));
+				labels[i] = (int) ((y/gridSize)*maxColumn + (x/gridSize));
 				
 			}
 		}
 
 		update();
-		distGrid = null;
+		// the first assignment is always complete
+		active = null;
 		
 		// OR - The centers are moved to seed locations corresponding to the 
 		// lowest gradient position in a 3 ?????? 3 neighborhood. This is done to 
@@ -256,16 +843,17 @@ public class jSLIC {
 	 * Assign cluster index to each pixel in image according the given metric
 	 */
 	protected void assignment () {
-		int xB, xE, yB, yE;
+		int xB, xE, yB, yE, i;
 		float dist, dLAB;
 		// temporary variables - differences
 		double distLAB, distPos, dx, dy;
 		// double dLAB
+		final float[][] img = buffer.planes;
+		final int[] labels = buffer.labels;
+		final float[] distances = buffer.distances;
 
 		// put minimal distances to maximum
-		for(float[] subarray : distances) {
-			Arrays.fill(subarray, Float.MAX_VALUE);
-		}
+		buffer.fillDistances(Float.MAX_VALUE);
 		
 		// cycle over all clusters and compute distances to all pixels in surrounding
 		for (int k=0; k<clusterPosition.length; k++) {
@@ -278,8 +866,9 @@ public class jSLIC {
 			yE = Math.min((int)(clusterPosition[k][1]+gridSize), Height);
 			
 			// cycle over all pixels in 2*gridSize region
-			for (int x=xB; x<xE; x++ ) {
-				for (int y=yB; y<yE; y++ ) {
+			for (int y=yB; y<yE; y++ ) {
+				i = y*Width + xB;
+				for (int x=xB; x<xE; x++, i++ ) {
 
 					// compute distance between given point and cluster center
 					dx = x-clusterPosition[k][0];
@@ -288,19 +877,10 @@ public class jSLIC {
 					distPos = (dx*dx) + (dy*dy);
 					// compute colour distance over all colour channels
 					distLAB = 0;
-					for (int i=0; i<nbChannels; i++) {
-						dLAB = img[x][y][i]-clusterColour[k][i];
+					for (int c=0; c<nbChannels; c++) {
+						dLAB = img[c][i]-clusterColour[k][c];
 						distLAB += dLAB*dLAB;
 					}
-										
-				//	distLAB = (img[x][y][0]-clusterColour[k][0]) * (img[x][y][0]-clusterColour[k][0]);
-				//	if (nbChannels == 3) {
-				//		distLAB += (img[x][y][1]-clusterColour[k][1]) * (img[x][y][1]-clusterColour[k][1]);
-				//		distLAB += (img[x][y][2]-clusterColour[k][2]) * (img[x][y][2]-clusterColour[k][2]);
-				//	} else if (nbChannels == 3) {
-				//		// to have in sum similar nb as 3 channels
-				//		distLAB += distLAB + distLAB;
-				//	}
 												
 					// by SLIC article
 					// dist = (float) Math.sqrt(distLAB + (distPos * Math.pow(regul/(float)gridSize, 2)));
@@ -310,9 +890,9 @@ public class jSLIC {
 					// dist = (float) (Math.sqrt(distLAB) + Math.sqrt(distPos) * (regul/(double)gridSize));
 										
 					// if actual distance is smaller then the previous give new label 
-					if (dist < distances[x][y]) {
-						labels[x][y] = k;
-						distances[x][y] = dist;
+					if (dist < distances[i]) {
+						labels[i] = k;
+						distances[i] = dist;
 					}					
 				}
 			}			
@@ -320,22 +900,29 @@ public class jSLIC {
 		
 	}
 	
+	/**
+	 * Precompute the weighted spatial distances inside the window 2*gridSize+1 
+	 * around a cluster centre, the grid is stored row-major so the distance 
+	 * for relative position (dx,dy) is at index (dy+gridSize)*sz + (dx+gridSize)
+	 */
 	protected void computeDistGrid() {
 		// if grid is not init
 		int sz = 2*gridSize +1;
-		if (distGrid == null || distGrid.length != sz) {
+		// if it is not for actual grid size and regularisation
+		if (distGrid == null || distGrid.length != sz*sz || distGridFactor != factor) {
 			Logging.logMsg(" -> pre-computing the distance grid matrix...");
-			// if it is not for actual grid size
-			distGrid = new float[sz*sz];
+			if (distGrid == null || distGrid.length != sz*sz) {
+				distGrid = new float[sz*sz];
+			}
+			distGridFactor = factor;
 			float dx, dy;
 			// fill the array
-			for (int x=0; x<sz; x++ ) {
-				for (int y=0; y<sz; y++ ) {
-					dx = x-gridSize+1;
-					dy = y-gridSize+1;
+			for (int y=0; y<sz; y++ ) {
+				for (int x=0; x<sz; x++ ) {
+					dx = x-gridSize;
+					dy = y-gridSize;
 					// compute position distance
-					//distGrid[x][y] = ((dx*dx) + (dy*dy))  * factor;
-					distGrid[x*sz +y] = ((dx*dx) + (dy*dy))  * factor;
+					distGrid[y*sz +x] = ((dx*dx) + (dy*dy))  * factor;
 				}
 			}
 		}
@@ -345,64 +932,16 @@ public class jSLIC {
 	 * Assign cluster index to each pixel in image according the given metric
 	 */
 	protected void assignmentFast () {
-		int xB, xE, yB, yE, i, j;
-		int sz = 2*gridSize +1;
-		float dist, dL, dA, dB;
-		// temporary variables - differences
-		float distLAB;
 		computeDistGrid();
 		Logging.logMsg(" -> fast assignement running...");
 
 		// put minimal distances to maximum
-		for(float[] subarray : distances) {
-			Arrays.fill(subarray, Float.MAX_VALUE);
-		}
-		
-		// cycle over all clusters and compute distances to all pixels in surrounding
-		for (int k=0; k<clusterPosition.length; k++) {
-
-			// compute region of interest for given cluster of size 2*gridSize 
-			// which is inside the image
-			xB = Math.max(0, (int)(clusterPosition[k][0]-gridSize));
-			xE = Math.min((int)(clusterPosition[k][0]+gridSize), Width);
-			yB = Math.max(0, (int)(clusterPosition[k][1]-gridSize));
-			yE = Math.min((int)(clusterPosition[k][1]+gridSize), Height);
-
-			i=clusterPosition[k][0]-xB+gridSize;
-								
-			// cycle over all pixels in 2*gridSize region
-			for (int x=xB; x<xE; x++, i-- ) {
-
-				j=clusterPosition[k][1]-yB+gridSize;
-				
-				//i = (clusterPosition[k][0]-x+gridSize) * gridSize;
-				//i += clusterPosition[k][1]-yB+gridSize;
-				
-				for (int y=yB; y<yE; y++, j-- ) {
-
-					// faster then the for cycle...
-					dL = img[x][y][0]-clusterColour[k][0];
-					dA = img[x][y][1]-clusterColour[k][1];
-					dB = img[x][y][2]-clusterColour[k][2];
-					distLAB = (dL * dL) + (dA * dA) + (dB * dB);
-					
-					// by SLIC article
-					// dist = (float) Math.sqrt(distLAB + (distPos * Math.pow(regul/(float)gridSize, 2)));
-					// dist = (float) Math.sqrt(distLAB + (distPos * coef2));
-					//dist = distLAB + distGrid[i][j];
-					dist = distLAB + distGrid[i*sz +j];
-					// by gSLIC article
-					// dist = (float) (Math.sqrt(distLAB) + Math.sqrt(distPos) * (regul/(double)gridSize));
-										
-					// if actual distance is smaller then the previous give new label 
-					if (dist < distances[x][y]) {
-						labels[x][y] = k;
-						distances[x][y] = dist;
-					}	
-				}
-			}			
-		}
+		buffer.fillDistances(Float.MAX_VALUE);
 		
+		// the whole image in a single task
+		ThreadAssignment th = new ThreadAssignment(buffer, gridSize, distGrid, clusterPosition, clusterColour, clusterIndex, Math.max(Width, Height));
+		th.setColourWeights( adaptive ? computeColourWeights() : null );
+		th.run(0, th.getNbTiles());
 	}
 	
 
@@ -413,105 +952,303 @@ public class jSLIC {
 		computeDistGrid();
 		Logging.logMsg(" -> fast parallel assignement running...");
 
-		// put minimal distances to maximum
-		for(float[] subarray : distances) {
-			Arrays.fill(subarray, Float.MAX_VALUE);
-		}
-		
-		final ThreadAssignment[] threads = new ThreadAssignment[Threading.nbAvailableThread()];
-		int delta = Width / threads.length;
-		
-		for (int iThread = 0; iThread < threads.length; iThread++) {
-			
-			// Concurrently run in as many threads as CPUs  
-			threads[iThread] = new ThreadAssignment(img, gridSize, distGrid, clusterPosition, clusterColour, distances, labels);
-			// for all regular regions
-			if (iThread < (threads.length-1)) {
-				threads[iThread].setRange(iThread*delta, (iThread+1)*delta, 0, Height);
-			// because of a rounding the last has to cover rest of image
-			} else {
-				threads[iThread].setRange(iThread*delta, Width, 0, Height);
-			}
-			
+		// the adaptive weights change all distances, so nothing can be skipped
+		final boolean skip = incremental && ! adaptive;
+		if (skip && active != null) {
+			// put minimal distances to maximum only around moved clusters
+			resetMovedWindows();
+		} else {
+			// put minimal distances to maximum
+			buffer.fillDistances(Float.MAX_VALUE);
 		}
 		
-		Threading.startAndJoin(threads); 
+		// rectangular tiles stolen by the workers of the shared pool, each 
+		// tile visits only the clusters which window overlaps the tile
+		ThreadAssignment task = new ThreadAssignment(buffer, gridSize, distGrid, clusterPosition, clusterColour, clusterIndex, computeTileSize());
+		task.setActive( skip ? active : null );
+		task.setColourWeights( adaptive ? computeColourWeights() : null );
+		task.setKernel( (vectorKernel && buffer.getNbChannels() == 3) ? AssignmentKernels.vector() : null );
+		// the labels of the previous assignment, see iterate()
+		task.setPrevLabels(forest);
+		Threading.parallelFor(0, task.getNbTiles(), 1, task);
+		skippedFraction = task.getSkippedFraction();
+		lastResidual = task.getResidual();
+		changedPixels = task.getChangedPixels();
 				
 	}
 	
 	/**
-	 * Update the cluster centers for a given assignment (colours and positions)
+	 * Switch the SLICO mode - each cluster normalises its colour distance by 
+	 * the maximal colour distance of its pixels seen so far, so the superpixels 
+	 * are similarly compact in flat and textured regions without tuning the 
+	 * regularisation. The regularisation gives only the compactness of flat 
+	 * regions, the clusters in textured regions weight the colour less. 
+	 * The incremental skipping of clusters is not used in this mode.
+	 * 
+	 * @param enable boolean switch the adaptive compactness on
 	 */
-	protected void update () {
-		int k; // segment index (local)
-		// reset counting pixels belongs to given clusters
-		int nbPixels[] = new int[clusterPosition.length];
-		Arrays.fill(nbPixels, 0);
-		// reset all previous cluster centers
-		for(int[] subarray : clusterColour) {			Arrays.fill(subarray, 0);		}
-		for(int[] subarray : clusterPosition) {			Arrays.fill(subarray, 0);		}
-		
-		// cycle over whole image and by labels add current value to given cluster center
-		for (int x=0; x<Width; x++ ) {
-			for (int y=0; y<Height; y++ ) {
-				k = labels[x][y];
-				// over all image channels
-				clusterColour[k][0] += img[x][y][0];
-				clusterColour[k][1] += img[x][y][1];
-				clusterColour[k][2] += img[x][y][2];
-				// over all positions
-				clusterPosition[k][0] += x;
-				clusterPosition[k][1] += y;
-				nbPixels[k] ++;
-			}
-		}
-		
-		// cycle over all clusters and divide them by nb assigned pixels (get mean)
-		for (k=0; k<clusterPosition.length; k++) {
-			if (nbPixels[k] == 0) {		continue;	}
-			// over all image channels
-			clusterColour[k][0] = clusterColour[k][0] / nbPixels[k];
-			clusterColour[k][1] = clusterColour[k][1] / nbPixels[k];
-			clusterColour[k][2] = clusterColour[k][2] / nbPixels[k];
-			// over all positions
-			clusterPosition[k][0] = clusterPosition[k][0] / nbPixels[k];
-			clusterPosition[k][1] = clusterPosition[k][1] / nbPixels[k];
-		}
+	public void setAdaptiveCompactness(boolean enable) {
+		this.adaptive = enable;
 	}
 	
-
 	/**
-	 * Assign cluster index to each pixel in image according the given metric
+	 * Initialise the maximal colour distances so the first assignment is the 
+	 * same as with the fixed compactness given by the regularisation
+	 * 
+	 * @param keep boolean keep the distances of the previous frame if possible
 	 */
-	protected void updateFastParallel () {
-		Logging.logMsg(" -> fast parallel update running...");
-
-		// reset counting pixels belongs to given clusters
-		int nbPixels[] = new int[clusterPosition.length];
-		Arrays.fill(nbPixels, 0);
-		// reset all previous cluster centers
-		for(int[] subarray : clusterColour) {			Arrays.fill(subarray, 0);		}
-		for(int[] subarray : clusterPosition) {			Arrays.fill(subarray, 0);		}
+	protected void initMaxColour(boolean keep) {
+		// the colour weight of the fixed compactness is 1/regul^2
+		minMaxColour = Math.max(1.f, gridSize * gridSize * factor * regul * regul);
+		if (keep && clusterMaxColour != null && clusterMaxColour.length == clusterPosition.length) {
+			return;
+		}
+		if (clusterMaxColour == null || clusterMaxColour.length != clusterPosition.length) {
+			clusterMaxColour = new float[clusterPosition.length];
+		}
+		Arrays.fill(clusterMaxColour, minMaxColour);
+	}
+	
+	/**
+	 * weights of the colour distance per cluster, the spatial distance at the 
+	 * grid size then equals the maximal colour distance of the cluster
+	 * 
+	 * @return float[nbClusters] weights
+	 */
+	protected float[] computeColourWeights() {
+		if (colourWeight == null || colourWeight.length != clusterMaxColour.length) {
+			colourWeight = new float[clusterMaxColour.length];
+		}
+		final float scale = gridSize * gridSize * factor;
+		for (int k=0; k<colourWeight.length; k++) {
+			colourWeight[k] = scale / Math.max(clusterMaxColour[k], minMaxColour);
+		}
+		return colourWeight;
+	}
+	
+	/**
+	 * Switch the SIMD assignment kernel (Vector API), it is used only if 
+	 * it is available on the running JVM, the results are the same
+	 * 
+	 * @param enable boolean allow the SIMD kernel
+	 */
+	public void setVectorKernel(boolean enable) {
+		this.vectorKernel = enable;
+	}
+	
+	/**
+	 * Set the incremental mode, where after the first iteration only windows 
+	 * of clusters around moved clusters are re-evaluated and the labels and 
+	 * distances are kept everywhere else; with zero tolerance it gives the 
+	 * same result as the full assignment
+	 * 
+	 * @param enable boolean switch the incremental mode on
+	 * @param tolerance float cluster shift in pixels and colour units which 
+	 * is still considered as not moving
+	 */
+	public void setIncremental(boolean enable, float tolerance) {
+		this.incremental = enable;
+		this.shiftTolerance = (tolerance < 0) ? 0 : tolerance;
+	}
+	
+	/**
+	 * gives the fraction of window pixels skipped in the last assignment 
+	 * 
+	 * @return float in range (0,1)
+	 */
+	public float getSkippedFraction() {
+		return skippedFraction;
+	}
+	
+	/**
+	 * Store actual cluster centres before they are updated
+	 */
+	protected void storeClusters() {
+		if (prevPosition == null || prevPosition.length != clusterPosition.length) {
+			prevPosition = new int[clusterPosition.length][2];
+			prevColour = new float[clusterColour.length][clusterColour[0].length];
+		}
+		for (int k=0; k<clusterPosition.length; k++) {
+			System.arraycopy(clusterPosition[k], 0, prevPosition[k], 0, 2);
+			System.arraycopy(clusterColour[k], 0, prevColour[k], 0, clusterColour[k].length);
+		}
+	}
+	
+	/**
+	 * Compare new cluster centres with the previous ones and mark moved 
+	 * clusters and all clusters which window overlaps old or new window 
+	 * of a moved cluster, these have to be re-evaluated
+	 */
+	protected void findActiveClusters() {
+		final int nbClusters = clusterPosition.length;
+		final float tol = shiftTolerance;
+		if (moved == null || moved.length != nbClusters) {
+			moved = new boolean[nbClusters];
+			active = new boolean[nbClusters];
+		}
+		final boolean[] mv = moved;
+		final boolean[] act = active;
+		Arrays.fill(act, false);
 		
-		final ThreadUpdate[] threads = new ThreadUpdate[Threading.nbAvailableThread()];
-		int delta = clusterPosition.length / threads.length;
+		// find moved clusters
+		Threading.parallelFor(0, nbClusters, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				float d, dClr;
+				for (int k=begin; k<end; k++) {
+					dClr = 0;
+					for (int c=0; c<clusterColour[k].length; c++) {
+						d = clusterColour[k][c] - prevColour[k][c];
+						dClr += d*d;
+					}
+					mv[k] = Math.abs(clusterPosition[k][0]-prevPosition[k][0]) > tol 
+							|| Math.abs(clusterPosition[k][1]-prevPosition[k][1]) > tol 
+							|| dClr > tol*tol;
+				}
+			}
+		});
 		
-		for (int iThread = 0; iThread < threads.length; iThread++) {
-			
-			// Concurrently run in as many threads as CPUs  
-			threads[iThread] = new ThreadUpdate(img, clusterPosition, clusterColour, labels, nbPixels);
-			// for all regular regions
-			if (iThread < (threads.length-1)) {
-				threads[iThread].setRange(iThread*delta, (iThread+1)*delta);
-			// because of a rounding the last has to cover rest of image
-			} else {
-				threads[iThread].setRange(iThread*delta, clusterPosition.length);
+		// activate the neighbours of moved clusters, writes are idempotent
+		Threading.parallelFor(0, nbClusters, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int k=begin; k<end; k++) {
+					if (! mv[k]) {		continue;	}
+					activateAround(prevPosition[k], act);
+					activateAround(clusterPosition[k], act);
+				}
 			}
-			
+		});
+	}
+	
+	/**
+	 * mark all clusters which window overlaps a window at given position
+	 * 
+	 * @param pos int[2] centre of the window
+	 * @param act boolean[nbClusters] flags to be set
+	 */
+	private void activateAround(int[] pos, boolean[] act) {
+		int[] clusters = clusterIndex.query(pos[0]-gridSize, pos[0]+gridSize, pos[1]-gridSize, pos[1]+gridSize, gridSize, clusterPosition);
+		for (int j=0; j<clusters.length; j++) {
+			act[clusters[j]] = true;
+		}
+	}
+	
+	/**
+	 * Put distances to maximum in old and new windows of all moved clusters
+	 */
+	protected void resetMovedWindows() {
+		final float[] distances = buffer.distances;
+		Threading.parallelFor(0, clusterPosition.length, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int k=begin; k<end; k++) {
+					if (! moved[k]) {		continue;	}
+					fillWindow(distances, prevPosition[k], Float.MAX_VALUE);
+					fillWindow(distances, clusterPosition[k], Float.MAX_VALUE);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * fill the cluster window at given position which is inside the image
+	 * 
+	 * @param array float[Width*Height] to be filled
+	 * @param pos int[2] centre of the window
+	 * @param val float new value
+	 */
+	private void fillWindow(float[] array, int[] pos, float val) {
+		int xB = Math.max(0, pos[0]-gridSize);
+		int xE = Math.min(pos[0]+gridSize, Width);
+		int yE = Math.min(pos[1]+gridSize, Height);
+		if (xE <= xB) {		return;		}
+		for (int y=Math.max(0, pos[1]-gridSize); y<yE; y++) {
+			Arrays.fill(array, y*Width + xB, y*Width + xE, val);
 		}
+	}
+	
+	/**
+	 * Update the cluster centers for a given assignment (colours and positions)
+	 */
+	protected void update () {
+		ThreadUpdate th = new ThreadUpdate(buffer, clusterPosition, clusterColour, 1);
+		th.run(0, 1);
+		th.merge(0, clusterPosition.length);
+		indexClusters();
+	}
+	
+
+	/**
+	 * Update the cluster centers for a given assignment (colours and positions)
+	 * as a parallel reduction - the image is split into horizontal stripes, 
+	 * each stripe is read once and sums its pixels into own partial sums 
+	 * which are merged afterwards per cluster ranges
+	 */
+	protected void updateFastParallel () {
+		Logging.logMsg(" -> fast parallel update running...");
+		storeClusters();
+
+		// a few stripes per worker for balancing, but each has own partial sums
+		int nbStripes = Math.min(Height, 2 * Threading.nbAvailableThread());
+		final ThreadUpdate task = new ThreadUpdate(buffer, clusterPosition, clusterColour, nbStripes);
+		// the colour distances to the centres of the last assignment
+		task.setMaxColour( adaptive ? clusterMaxColour : null );
+		task.setPrevLabels(forest);
+		Threading.parallelFor(0, nbStripes, 1, task);
+		// merge the partial sums
+		Threading.parallelFor(0, clusterPosition.length, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				task.merge(begin, end);
+			}
+		});
 		
-		Threading.startAndJoin(threads); 
-				
+		indexClusters();
+		maxShift = computeMaxShift();
+		if (incremental) {
+			findActiveClusters();
+		}
+	}
+	
+	/**
+	 * maximal displacement of cluster centres to the previous iteration
+	 * 
+	 * @return float distance in pixels
+	 */
+	protected float computeMaxShift() {
+		long d, dMax = 0;
+		for (int k=0; k<clusterPosition.length; k++) {
+			d = (long) (clusterPosition[k][0]-prevPosition[k][0]) * (clusterPosition[k][0]-prevPosition[k][0])
+					+ (long) (clusterPosition[k][1]-prevPosition[k][1]) * (clusterPosition[k][1]-prevPosition[k][1]);
+			dMax = Math.max(d, dMax);
+		}
+		return (float) Math.sqrt(dMax);
+	}
+	
+	/**
+	 * Rebuild the spatial index of actual cluster centres
+	 */
+	protected void indexClusters() {
+		if (clusterIndex == null || clusterIndex.cellSize != gridSize) {
+			clusterIndex = new ClusterIndex2D(Width, Height, gridSize);
+		}
+		clusterIndex.rebuild(clusterPosition);
+	}
+	
+	/**
+	 * Size of image tiles for the parallel assignment, big enough to amortise 
+	 * searching the clusters but giving at least a few tiles per worker
+	 * 
+	 * @return int tile size in pixels
+	 */
+	protected int computeTileSize() {
+		int minTiles = 4 * Threading.nbAvailableThread();
+		int tile = Math.max(32, 2*gridSize);
+		while (tile > 16 && ((Width+tile-1)/tile) * ((Height+tile-1)/tile) < minTiles) {
+			tile /= 2;
+		}
+		return tile;
 	}
 	/**
 	 * Count residual distance to nearest clusters by given metric
@@ -519,16 +1256,32 @@ public class jSLIC {
 	 * @return float returns a sum over all distances to nearest cluster
 	 */
 	protected float computeResidualError () {
-		// error metric
-		float err = 0;
+		final float[] distances = buffer.distances;
+		// partial sums per image part
+		final int nbParts = 4 * Threading.nbAvailableThread();
+		final double[] partErr = new double[nbParts];
 
-		// cycle over all distances
-		for (int x=0; x<Width; x++ ) {
-			for (int y=0; y<Height; y++ ) {
-				err += distances[x][y];
+		Threading.parallelFor(0, nbParts, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int p=begin; p<end; p++) {
+					int e = Threading.split(distances.length, nbParts, p+1);
+					double err = 0;
+					// cycle over all distances in this part
+					for (int i=Threading.split(distances.length, nbParts, p); i<e; i++ ) {
+						err += distances[i];
+					}
+					partErr[p] = err;
+				}
 			}
+		});
+		
+		// error metric
+		double err = 0;
+		for (int p=0; p<nbParts; p++) {
+			err += partErr[p];
 		}
-		return err;
+		return (float) err;
 	}
 	
 
@@ -542,114 +1295,166 @@ public class jSLIC {
 	 * 1. finding an adjacent label for each new component at the start
 	 * 2. if a certain component is too small, assigning the previously found
 	 *    adjacent label to this component, and not incrementing the label.
+	 * 
+	 * The components are found by union-find over stripes in parallel, so the 
+	 * result is the same as by the original region growing in raster order 
+	 * but only a single extra int[Width*Height] is needed.
 	 */
 	protected void enforceLabelConnectivity() {
-		// FIXME no memory efficient
+		enforceLabelConnectivity(false);
+	}
 	
-		// 4-connectivity
-		final int[] dx = {-1,  0,  1,  0};
-		final int[] dy = { 0, -1,  0,  1};
-
+	/**
+	 * Enforce Label Connectivity, see enforceLabelConnectivity(); the labels 
+	 * are either renumbered in raster order or they are kept as the cluster 
+	 * indexes (e.g. for the warm start) and only the small components are 
+	 * merged to an adjacent one
+	 * 
+	 * @param keepClusters boolean keep the cluster indexes as the labels
+	 */
+	protected void enforceLabelConnectivity(final boolean keepClusters) {
+		final int[] labels = buffer.labels;
 		// image size
-		int sz = Width*Height;
+		final int sz = Width*Height;
 		// area of initial superpixel
-		int SUPSZ = gridSize*gridSize;
-		// create new array of labels and fill by -1
-		int[][] nlabels = new int[Width][Height];
-		for(int[] subarray : nlabels) { Arrays.fill(subarray, -1); }
-		// coordinates to run in the image
-		int x, y;
-		int lab = 0;
-		int adjlabel = 0; //adjacent label
-		// array of coordinates for all elements in the actual segment
-		int[] xvec = new int[sz];
-		int[] yvec = new int[sz];
-        int count;
-		
-        // cycle over all pixels in image
-		for( int j = 0; j < Height; j++ ) {
-			for( int i = 0; i < Width; i++ ) {
-				
-				if( nlabels[i][j] > -1) { 	continue; 	}
-				
-				nlabels[i][j] = lab;
-				// Start a new segment
-				xvec[0] = i;
-				yvec[0] = j;
-				// Quickly find an adjacent label for use later if needed
-				for( int n = 0; n < dx.length; n++ ) {
-					x = xvec[0] + dx[n];
-					y = yvec[0] + dy[n];
-					if( (x >= 0 && x < Width) && (y >= 0 && y < Height) ) {
-						if(nlabels[x][y] >= 0) {
-							adjlabel = nlabels[x][y];
+		final int SUPSZ = gridSize*gridSize;
+		// the only extra memory - union-find forest where the root of each 
+		// component is its first pixel in raster order, reused by next image
+		if (forest == null || forest.length != sz) {
+			forest = new int[sz];
+		}
+		final int[] parent = forest;
+		final int nbStripes = Math.min(Height, 2 * Threading.nbAvailableThread());
+		
+		// 1. components inside stripes (4-connectivity)
+		Threading.parallelFor(0, nbStripes, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int s=begin; s<end; s++) {
+					int yB = Threading.split(Height, nbStripes, s);
+					int yE = Threading.split(Height, nbStripes, s+1);
+					for (int y=yB, i=yB*Width; y<yE; y++) {
+						for (int x=0; x<Width; x++, i++) {
+							parent[i] = i;
+							if (x > 0 && labels[i-1] == labels[i]) {
+								union(parent, i-1, i);
+							}
+							if (y > yB && labels[i-Width] == labels[i]) {
+								union(parent, i-Width, i);
+							}
 						}
 					}
 				}
-
-				count = 1; // segment size
-				// region growing method and storing pixels belongs to segment
-				for( int c = 0; c < count; c++ ) {
-					for( int n = 0; n < dx.length; n++ ) {
-						x = xvec[c] + dx[n];
-						y = yvec[c] + dy[n];
-						// conditions if it is still the same segment
-						if( (x >= 0 && x < Width) && (y >= 0 && y < Height) ) {
-							if( 0 > nlabels[x][y] && labels[i][j] == labels[x][y] ) {
-								xvec[count] = x;
-								yvec[count] = y;
-								nlabels[x][y] = lab;
-								count++;
-							}
-						}
+			}
+		});
+		// 2. merge the components across the stripe borders
+		for (int s=1; s<nbStripes; s++) {
+			int y = Threading.split(Height, nbStripes, s);
+			for (int i=y*Width; i<(y+1)*Width; i++) {
+				if (labels[i-Width] == labels[i]) {
+					union(parent, i-Width, i);
+				}
+			}
+		}
+		// 3. point each pixel directly to its root
+		Threading.parallelFor(0, Height, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int i=begin*Width; i<end*Width; i++) {
+					int r = i;
+					while (parent[r] != r) {
+						r = parent[r];
 					}
+					parent[i] = r;
 				}
-				// If segment size is less then a limit, assign an
-				// adjacent label found before, and decrement label count.
-				// shift by 2, which means that it reduces segments 4times smaller
-				if(count <= SUPSZ >> 2) {
-					for( int c = 0; c < count; c++ ) {
-						nlabels[xvec[c]][yvec[c]] = adjlabel;
+			}
+		});
+		// 4. component sizes are stored on the root positions of the labels 
+		// and the root keeps the cluster of its component as -(cluster+1); 
+		// the root is the first pixel so it is visited before the others
+		for (int i=0; i<sz; i++) {
+			if (parent[i] == i) {
+				parent[i] = -1 - labels[i];
+				labels[i] = 1;
+			} else {
+				labels[parent[i]] ++;
+			}
+		}
+		// 5. new labels of the components in raster order; if a component 
+		// size is less then a limit, assign an adjacent label found before 
+		// (shift by 2, which means that it reduces segments 4times smaller)
+		final int[] dx = {-1,  0,  1,  0};
+		final int[] dy = { 0, -1,  0,  1};
+		int x, y, r;
+		int lab = 0;
+		int adjlabel; //adjacent label
+		for (int i0=0; i0<sz; i0++) {
+			if (parent[i0] >= 0) { 	continue; 	}
+			// an adjacent label of already labelled components, only the 
+			// component at the origin has none
+			adjlabel = -1;
+			for (int n = 0; n < dx.length; n++) {
+				x = (i0 % Width) + dx[n];
+				y = (i0 / Width) + dy[n];
+				if( (x >= 0 && x < Width) && (y >= 0 && y < Height) ) {
+					r = y*Width + x;
+					r = (parent[r] < 0) ? r : parent[r];
+					if (r < i0) {
+						adjlabel = labels[r];
 					}
-					lab--;
 				}
-				lab++;
+			}
+			if (labels[i0] <= SUPSZ >> 2 && adjlabel >= 0) {
+				labels[i0] = adjlabel;
+			} else {
+				labels[i0] = (keepClusters) ? -1 - parent[i0] : lab++;
 			}
 		}
-		this.labels = nlabels;
-		this.nbLabels = lab;
+		// 6. propagate the labels from roots to all pixels
+		Threading.parallelFor(0, Height, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int i=begin*Width; i<end*Width; i++) {
+					if (parent[i] >= 0) {
+						labels[i] = labels[parent[i]];
+					}
+				}
+			}
+		});
+		this.nbLabels = (keepClusters) ? clusterPosition.length : lab;
 	}
 	
-	
 	/**
-	 * gives segmentation with segmented indexes
+	 * gives segmentation with segmented indexes, it wraps the internal label 
+	 * buffer without copying so it is valid only until the next segmentation 
+	 * by this instance and relabelling it changes the buffer; use 
+	 * Labelling2D.copy() to keep it
 	 * 
-	 * @return int[Width][Height] returns indexes of segmented superpixels
+	 * @return Labelling2D indexes of segmented superpixels
 	 */
 	public Labelling2D getSegmentation() {
-		return new Labelling2D(labels);
+		return new Labelling2D(buffer.getLabels(), Width, Height, nbLabels-1);
 	}	
 	
 	
 	/**
-	 * gives the number of all various labels in segmentation, where the 
-	 * max labels are {0,..,(n-1)}
+	 * get the converted image in LAB colour space in case of RGB otherwise 
+	 * only gray intensity values; it is a copy of the internal buffer
 	 * 
-	 * @return int number of labels
+	 * @return int[Width][Height][channels]
 	 */
-	public int getNbLabels() {
-		return this.nbLabels;
+	public int[][][] getImage() {
+		return buffer.toImageArray();
 	}
 	
 	
 	/**
-	 * get the converted image in LAB colour space in case of RGB otherwise 
-	 * only gray intensity values
+	 * get the internal buffer with the image planes, labels and distances
 	 * 
-	 * @return int[Width][Height][channels]
+	 * @return PixelBuffer2D reference to the internal storage
 	 */
-	public int[][][] getImage() {
-		return this.img;
+	public PixelBuffer2D getBuffer() {
+		return buffer;
 	}
 	
 }
@@ -659,30 +1464,24 @@ public class jSLIC {
  * @author JB
  *
  */
-abstract class ThreadParticularImg2D extends Thread {
-	// source image
-	protected int[][][] img = null;
+abstract class ThreadParticularImg2D implements Threading.RangeTask {
+	// source image, labelling and distances
+	protected PixelBuffer2D buffer = null;
 	// cluster centres
     protected int[][] clusterPosition = null;
-    protected int[][] clusterColour = null;
-    // labelling
-    protected int[][] labels = null;
-    	
-    { setPriority(Thread.NORM_PRIORITY); }  
+    protected float[][] clusterColour = null;
                 	
     /**
      * initialisation / copy reference to all needed variables 
      * 
-     * @param im - image
+     * @param buf - image, labelling and distances
      * @param cPos - clusters positions
      * @param cClr - cluster colours
-     * @param lab - given labelling
      */
-    public ThreadParticularImg2D(int[][][] im, int[][] cPos, int[][] cClr, int[][] lab) {
-		img = im;
+    public ThreadParticularImg2D(PixelBuffer2D buf, int[][] cPos, float[][] cClr) {
+		buffer = buf;
 		clusterPosition = cPos;
 		clusterColour = cClr;
-		labels = lab;
 	}
 }
 
@@ -696,167 +1495,672 @@ class ThreadAssignment extends ThreadParticularImg2D {
     protected int gridSize;
     // precomputed distances
     protected float[] distGrid = null;
-    // estimated distances
-    protected float[][] distances = null;
-    // set range
-    protected int beginWidth, endWidth, beginHeight, endHeight;
+    // spatial index of the cluster centres
+    protected ClusterIndex2D index = null;
+    // size of image tiles and number of tiles in each dim
+    protected int tileSize, nbTilesX, nbTilesY;
+    // clusters to be evaluated, null means all
+    protected boolean[] active = null;
+    // alternative kernel of the inner loop, null means the scalar one
+    protected AssignmentKernel kernel = null;
+    // labels of the previous assignment stored by the update step, null 
+    // means that the relabelled pixels are not counted
+    protected int[] prevLabels = null;
+    // weights of the colour distance per cluster, null means all ones
+    protected float[] colourWeight = null;
+    // all window pixels and evaluated window pixels per tile
+    protected long[] workTotal, workDone;
+    // residual and number of relabelled pixels per tile
+    protected double[] tileResidual;
+    protected long[] tileChanged;
     		
     /**
      * initialisation / copy reference to all needed variables 
      * 
-     * @param im - image
+     * @param buf - image, labelling and distances
      * @param gSize - grid size
      * @param dGrid - recomputed grid
      * @param cPos - clusters positions
      * @param cClr - cluster colours
-     * @param dist - the internal distances
-     * @param lab - given labelling
+     * @param idx - spatial index of cluster positions
+     * @param tile - size of image tiles
      */
-    public ThreadAssignment(final int[][][] im, final int gSize, final float[] dGrid, final int[][] cPos, final int[][] cClr, final float[][] dist, int[][] lab) {
-		super(im, cPos, cClr, lab);
+    public ThreadAssignment(final PixelBuffer2D buf, final int gSize, final float[] dGrid, final int[][] cPos, final float[][] cClr, final ClusterIndex2D idx, final int tile) {
+		super(buf, cPos, cClr);
     	gridSize = gSize;
 		distGrid = dGrid;
-		distances = dist;
+		index = idx;
+		tileSize = tile;
+		nbTilesX = (buf.width + tile - 1) / tile;
+		nbTilesY = (buf.height + tile - 1) / tile;
+		workTotal = new long[nbTilesX * nbTilesY];
+		workDone = new long[nbTilesX * nbTilesY];
+		tileResidual = new double[nbTilesX * nbTilesY];
+		tileChanged = new long[nbTilesX * nbTilesY];
 	}
     
     /**
-     * setting the particular rectangle in image to be processed
+     * @return int number of all image tiles
+     */
+    public int getNbTiles() {
+    	return nbTilesX * nbTilesY;
+    }
+    
+    /**
+     * set the clusters which will be evaluated, other are skipped
      * 
-     * @param sW - start in width dim
-     * @param eW - end in width dim
-     * @param sH - start in height dim
-     * @param eH - end in height dim
+     * @param act - flag per cluster or null for all clusters
      */
-    public void setRange(final int bW, final int eW, final int bH, final int eH) {
-    	beginWidth = bW;
-    	endWidth = eW;
-    	beginHeight = bH;
-    	endHeight = eH;
-	}
+    public void setActive(final boolean[] act) {
+    	active = act;
+    }
+    
+    /**
+     * set the kernel of the inner loop
+     * 
+     * @param kern - alternative kernel or null for the scalar one
+     */
+    public void setKernel(final AssignmentKernel kern) {
+    	kernel = kern;
+    }
+    
+    /**
+     * set the labels of the previous assignment, see ThreadUpdate.setPrevLabels()
+     * 
+     * @param prev - int[width*height] or null to not count relabelled pixels
+     */
+    public void setPrevLabels(final int[] prev) {
+    	prevLabels = prev;
+    }
+    
+    /**
+     * set the weights of the colour distance for the adaptive compactness
+     * 
+     * @param w - weight per cluster or null for the fixed compactness
+     */
+    public void setColourWeights(final float[] w) {
+    	colourWeight = w;
+    }
+    
+    /**
+     * @return float fraction of window pixels skipped over all tiles 
+     */
+    public float getSkippedFraction() {
+    	long total = 0, done = 0;
+    	for (int t=0; t<workTotal.length; t++) {
+    		total += workTotal[t];
+    		done += workDone[t];
+    	}
+    	return (total == 0) ? 0 : (float) (total - done) / (float) total;
+    }
+    
+    /**
+     * @return float sum of distances to the assigned clusters over all tiles
+     */
+    public float getResidual() {
+    	double err = 0;
+    	for (int t=0; t<tileResidual.length; t++) {
+    		err += tileResidual[t];
+    	}
+    	return (float) err;
+    }
     
     /**
-     * the main body of the thread
+     * @return long number of relabelled pixels over all tiles
+     */
+    public long getChangedPixels() {
+    	long nb = 0;
+    	for (int t=0; t<tileChanged.length; t++) {
+    		nb += tileChanged[t];
+    	}
+    	return nb;
+    }
+    
+    /**
+     * process image tiles in range [begin, end), tiles are ordered row-wise
+     * 
+     * @param begin - first tile
+     * @param end - tile after the last one
      */
     @Override
-    public void run() {  
-    	// init
+    public void run(final int begin, final int end) {
+    	final int[] labels = buffer.labels;
+    	final float[] distances = buffer.distances;
+    	final int[] prev = prevLabels;
+    	// distances of a window row for the many channel kernel, per task
+    	final float[] row = (buffer.planes.length > 4) ? new float[2*gridSize +1] : null;
     	int xB, xE, yB, yE, i;
-		float dist, dL, dA, dB;
-		int sz = 2*gridSize +1;
+    	for (int t=begin; t<end; t++) {
+    		xB = (t % nbTilesX) * tileSize;
+    		yB = (t / nbTilesX) * tileSize;
+    		xE = Math.min(xB+tileSize, buffer.width);
+    		yE = Math.min(yB+tileSize, buffer.height);
+    		assign(t, xB, xE, yB, yE, row);
+    		// the tile is complete, a single sweep sums the residual and 
+    		// compares the labels with the ones stored by the last update
+    		double err = 0;
+    		long changed = 0;
+    		for (int y=yB; y<yE; y++) {
+    			i = y*buffer.width + xB;
+    			for (int x=xB; x<xE; x++, i++) {
+    				err += distances[i];
+    				if (prev != null && labels[i] != prev[i]) {
+    					changed ++;
+    				}
+    			}
+    		}
+    		tileResidual[t] = err;
+    		tileChanged[t] = changed;
+    	}
+    }
+    
+    /**
+     * assignment in the particular rectangle in image, only clusters which 
+     * window overlap the rectangle are visited and inactive ones are skipped
+     * 
+     * @param t - tile index
+     * @param beginWidth - start in width dim
+     * @param endWidth - end in width dim
+     * @param beginHeight - start in height dim
+     * @param endHeight - end in height dim
+     * @param row - scratch of size 2*gridSize+1 for many channels, see assignClusterN()
+     */
+    protected void assign(final int t, final int beginWidth, final int endWidth, final int beginHeight, final int endHeight, final float[] row) {
+    	int[] clusters = index.query(beginWidth, endWidth, beginHeight, endHeight, gridSize, clusterPosition);
+    	int k;
+    	long area, total = 0, done = 0;
+    	for (int j=0; j<clusters.length; j++) {
+    		k = clusters[j];
+    		area = (long) (Math.min(clusterPosition[k][0]+gridSize, endWidth) - Math.max(beginWidth, clusterPosition[k][0]-gridSize))
+    				* (Math.min(clusterPosition[k][1]+gridSize, endHeight) - Math.max(beginHeight, clusterPosition[k][1]-gridSize));
+    		total += area;
+    		if (active != null && ! active[k]) {		continue;	}
+    		assignCluster(k, beginWidth, endWidth, beginHeight, endHeight, row);
+    		done += area;
+    	}
+    	workTotal[t] = total;
+    	workDone[t] = done;
+    }
+    
+    /**
+     * the main body for single channel images, assignment of a single 
+     * cluster in the particular rectangle in image
+     * 
+     * @param k - cluster index
+     * @param beginWidth - start in width dim
+     * @param endWidth - end in width dim
+     * @param beginHeight - start in height dim
+     * @param endHeight - end in height dim
+     */
+    protected void assignClusterGray(final int k, final int beginWidth, final int endWidth, final int beginHeight, final int endHeight) {  
+    	int xB, xE, yB, yE, cx, cy, i, g;
+		float dist, dI, cI, wc;
+		final int sz = 2*gridSize +1;
+		final int width = buffer.width;
+		final float[] img = buffer.planes[0];
+		final int[] labels = buffer.labels;
+		final float[] distances = buffer.distances;
+		
+		cx = clusterPosition[k][0];
+		cy = clusterPosition[k][1];
+		xB = Math.max(beginWidth, cx-gridSize);
+		xE = Math.min(cx+gridSize, endWidth);
+		yB = Math.max(beginHeight, cy-gridSize);
+		yE = Math.min(cy+gridSize, endHeight);
+		cI = clusterColour[k][0];
+		wc = (colourWeight == null) ? 1.f : colourWeight[k];
+		
+		for (int y=yB; y<yE; y++ ) {
+			i = y*width + xB;
+			g = (y-cy+gridSize)*sz + (xB-cx+gridSize);
+			for (int x=xB; x<xE; x++, i++, g++ ) {
+				dI = img[i]-cI;
+				dist = wc * (dI * dI) + distGrid[g];
+				if (dist < distances[i]) {
+					labels[i] = k;
+					distances[i] = dist;
+				}
+			}
+		}
+    }
+    
+    /**
+     * the main body for two channel images, see assignClusterGray()
+     */
+    protected void assignCluster2(final int k, final int beginWidth, final int endWidth, final int beginHeight, final int endHeight) {  
+    	int xB, xE, yB, yE, cx, cy, i, g;
+		float dist, d0, d1, c0, c1, wc;
+		final int sz = 2*gridSize +1;
+		final int width = buffer.width;
+		final float[] img0 = buffer.planes[0];
+		final float[] img1 = buffer.planes[1];
+		final int[] labels = buffer.labels;
+		final float[] distances = buffer.distances;
+		
+		cx = clusterPosition[k][0];
+		cy = clusterPosition[k][1];
+		xB = Math.max(beginWidth, cx-gridSize);
+		xE = Math.min(cx+gridSize, endWidth);
+		yB = Math.max(beginHeight, cy-gridSize);
+		yE = Math.min(cy+gridSize, endHeight);
+		c0 = clusterColour[k][0];
+		c1 = clusterColour[k][1];
+		wc = (colourWeight == null) ? 1.f : colourWeight[k];
+		
+		for (int y=yB; y<yE; y++ ) {
+			i = y*width + xB;
+			g = (y-cy+gridSize)*sz + (xB-cx+gridSize);
+			for (int x=xB; x<xE; x++, i++, g++ ) {
+				d0 = img0[i]-c0;
+				d1 = img1[i]-c1;
+				dist = wc * ((d0 * d0) + (d1 * d1)) + distGrid[g];
+				if (dist < distances[i]) {
+					labels[i] = k;
+					distances[i] = dist;
+				}
+			}
+		}
+    }
+    
+    /**
+     * the main body for four channel images, see assignClusterGray()
+     */
+    protected void assignCluster4(final int k, final int beginWidth, final int endWidth, final int beginHeight, final int endHeight) {  
+    	int xB, xE, yB, yE, cx, cy, i, g;
+		float dist, d0, d1, d2, d3, c0, c1, c2, c3, wc;
+		final int sz = 2*gridSize +1;
+		final int width = buffer.width;
+		final float[] img0 = buffer.planes[0];
+		final float[] img1 = buffer.planes[1];
+		final float[] img2 = buffer.planes[2];
+		final float[] img3 = buffer.planes[3];
+		final int[] labels = buffer.labels;
+		final float[] distances = buffer.distances;
+		
+		cx = clusterPosition[k][0];
+		cy = clusterPosition[k][1];
+		xB = Math.max(beginWidth, cx-gridSize);
+		xE = Math.min(cx+gridSize, endWidth);
+		yB = Math.max(beginHeight, cy-gridSize);
+		yE = Math.min(cy+gridSize, endHeight);
+		c0 = clusterColour[k][0];
+		c1 = clusterColour[k][1];
+		c2 = clusterColour[k][2];
+		c3 = clusterColour[k][3];
+		wc = (colourWeight == null) ? 1.f : colourWeight[k];
+		
+		for (int y=yB; y<yE; y++ ) {
+			i = y*width + xB;
+			g = (y-cy+gridSize)*sz + (xB-cx+gridSize);
+			for (int x=xB; x<xE; x++, i++, g++ ) {
+				d0 = img0[i]-c0;
+				d1 = img1[i]-c1;
+				d2 = img2[i]-c2;
+				d3 = img3[i]-c3;
+				dist = wc * ((d0 * d0) + (d1 * d1) + (d2 * d2) + (d3 * d3)) + distGrid[g];
+				if (dist < distances[i]) {
+					labels[i] = k;
+					distances[i] = dist;
+				}
+			}
+		}
+    }
+    
+    /**
+     * the main body for images with many channels; the distances of a whole 
+     * window row are accumulated channel by channel, so each inner loop runs 
+     * over a contiguous part of a single plane and the JIT can vectorise it
+     * 
+     * @param k - cluster index
+     * @param beginWidth - start in width dim
+     * @param endWidth - end in width dim
+     * @param beginHeight - start in height dim
+     * @param endHeight - end in height dim
+     * @param row - scratch for distances of a single window row, 
+     * dim float[2*gridSize+1] owned by the calling task
+     */
+    protected void assignClusterN(final int k, final int beginWidth, final int endWidth, final int beginHeight, final int endHeight, final float[] row) {  
+    	int xB, xE, yB, yE, cx, cy, i0, g0, n;
+    	float d, cc;
+		final int sz = 2*gridSize +1;
+		final int width = buffer.width;
+		final float[][] img = buffer.planes;
+		final float[] colour = clusterColour[k];
+		final int[] labels = buffer.labels;
+		final float[] distances = buffer.distances;
+		float[] plane;
+		
+		cx = clusterPosition[k][0];
+		cy = clusterPosition[k][1];
+		xB = Math.max(beginWidth, cx-gridSize);
+		xE = Math.min(cx+gridSize, endWidth);
+		yB = Math.max(beginHeight, cy-gridSize);
+		yE = Math.min(cy+gridSize, endHeight);
+		n = xE - xB;
+		
+		for (int y=yB; y<yE; y++ ) {
+			i0 = y*width + xB;
+			g0 = (y-cy+gridSize)*sz + (xB-cx+gridSize);
+			if (colourWeight == null) {
+				System.arraycopy(distGrid, g0, row, 0, n);
+			} else {
+				Arrays.fill(row, 0, n, 0.f);
+			}
+			for (int c=0; c<img.length; c++) {
+				plane = img[c];
+				cc = colour[c];
+				for (int x=0; x<n; x++) {
+					d = plane[i0+x] - cc;
+					row[x] += d * d;
+				}
+			}
+			if (colourWeight != null) {
+				final float wc = colourWeight[k];
+				for (int x=0; x<n; x++) {
+					row[x] = wc * row[x] + distGrid[g0+x];
+				}
+			}
+			for (int x=0; x<n; x++) {
+				if (row[x] < distances[i0+x]) {
+					labels[i0+x] = k;
+					distances[i0+x] = row[x];
+				}
+			}
+		}
+    }
+    
+    /**
+     * the main body, assignment of a single cluster in the particular 
+     * rectangle in image
+     * 
+     * @param k - cluster index
+     * @param beginWidth - start in width dim
+     * @param endWidth - end in width dim
+     * @param beginHeight - start in height dim
+     * @param endHeight - end in height dim
+     * @param row - scratch for many channels, see assignClusterN()
+     */
+    protected void assignCluster(final int k, final int beginWidth, final int endWidth, final int beginHeight, final int endHeight, final float[] row) {  
+    	// kernels specialised for the number of channels
+    	switch (buffer.planes.length) {
+    		case 1:
+    			assignClusterGray(k, beginWidth, endWidth, beginHeight, endHeight);
+    			return;
+    		case 2:
+    			assignCluster2(k, beginWidth, endWidth, beginHeight, endHeight);
+    			return;
+    		case 3:
+    			break;
+    		case 4:
+    			assignCluster4(k, beginWidth, endWidth, beginHeight, endHeight);
+    			return;
+    		default:
+    			assignClusterN(k, beginWidth, endWidth, beginHeight, endHeight, row);
+    			return;
+    	}
+    	// init
+    	int xB, xE, yB, yE, cx, cy, i, g;
+		float dist, dL, dA, dB, cL, cA, cB;
+		final int sz = 2*gridSize +1;
+		final int width = buffer.width;
+		// local references to the flat planes
+		final float[] imgL = buffer.planes[0];
+		final float[] imgA = buffer.planes[1];
+		final float[] imgB = buffer.planes[2];
+		final int[] labels = buffer.labels;
+		final float[] distances = buffer.distances;
 		// temporary variables - differences
 		float distLAB;
 		            	
-    	// cycle over all clusters and compute distances to all pixels in surrounding
-		for (int k=0; k<clusterPosition.length; k++) {
-
-			// compute region of interest for given cluster of size 2*gridSize 
-			// which is inside the image
-			xB = Math.max(beginWidth, (int)(clusterPosition[k][0]-gridSize));
-			xE = Math.min((int)(clusterPosition[k][0]+gridSize), endWidth);
-			yB = Math.max(beginHeight, (int)(clusterPosition[k][1]-gridSize));
-			yE = Math.min((int)(clusterPosition[k][1]+gridSize), endHeight);
+		cx = clusterPosition[k][0];
+		cy = clusterPosition[k][1];
+		// compute region of interest for given cluster of size 2*gridSize 
+		// which is inside the image
+		xB = Math.max(beginWidth, cx-gridSize);
+		xE = Math.min(cx+gridSize, endWidth);
+		yB = Math.max(beginHeight, cy-gridSize);
+		yE = Math.min(cy+gridSize, endHeight);
+		
+		cL = clusterColour[k][0];
+		cA = clusterColour[k][1];
+		cB = clusterColour[k][2];
+		// the colour weight of the adaptive compactness
+		final float wc = (colourWeight == null) ? 1.f : colourWeight[k];
+		
+		if (kernel != null) {
+			kernel.assign(buffer, k, cL, cA, cB, wc, distGrid, (yB-cy+gridSize)*sz + (xB-cx+gridSize), sz, xB, xE, yB, yE);
+			return;
+		}
+		
+		// cycle over all pixels in 2*gridSize region
+		for (int y=yB; y<yE; y++ ) {
 
-			//i=clusterPosition[k][0]-xB+gridSize;
+			// index in the image and in the distance grid
+			i = y*width + xB;
+			g = (y-cy+gridSize)*sz + (xB-cx+gridSize);
 			
-			// cycle over all pixels in 2*gridSize region
-			for (int x=xB; x<xE; x++ ) {
+			for (int x=xB; x<xE; x++, i++, g++ ) {
 
-				//j=clusterPosition[k][1]-yB+gridSize;
-				
-				i = (clusterPosition[k][0]-x+gridSize) * sz;
-				i += clusterPosition[k][1]-yB+gridSize;
+				// faster then the for cycle...
+				dL = imgL[i]-cL;
+				dA = imgA[i]-cA;
+				dB = imgB[i]-cB;
+				distLAB = (dL * dL) + (dA * dA) + (dB * dB);
 				
-				for (int y=yB; y<yE; y++, i-- ) {
-
-					// faster then the for cycle...
-					dL = img[x][y][0]-clusterColour[k][0];
-					dA = img[x][y][1]-clusterColour[k][1];
-					dB = img[x][y][2]-clusterColour[k][2];
-					distLAB = (dL * dL) + (dA * dA) + (dB * dB);
-					
-					// by SLIC article
-					// dist = (float) Math.sqrt(distLAB + (distPos * Math.pow(regul/(float)gridSize, 2)));
-					// dist = (float) Math.sqrt(distLAB + (distPos * coef2));
-					//dist = distLAB + distGrid[i][j];
-					dist = distLAB + distGrid[i];
-					// by gSLIC article
-					// dist = (float) (Math.sqrt(distLAB) + Math.sqrt(distPos) * (regul/(double)gridSize));
-										
-					// if actual distance is smaller then the previous give new label 
-					if (dist < distances[x][y]) {
-						labels[x][y] = k;
-						distances[x][y] = dist;
-					}
+				// by SLIC article
+				// dist = (float) Math.sqrt(distLAB + (distPos * Math.pow(regul/(float)gridSize, 2)));
+				// dist = (float) Math.sqrt(distLAB + (distPos * coef2));
+				dist = wc * distLAB + distGrid[g];
+				// by gSLIC article
+				// dist = (float) (Math.sqrt(distLAB) + Math.sqrt(distPos) * (regul/(double)gridSize));
+									
+				// if actual distance is smaller then the previous give new label 
+				if (dist < distances[i]) {
+					labels[i] = k;
+					distances[i] = dist;
 				}
-			}			
-		}
+			}
+		}			
     	
     }
 }
 
 /**
- * The particular thread for update in given region
+ * The particular thread for update in given region, the image is split into 
+ * horizontal stripes and each of them sums its pixels separately; because 
+ * the superpixels are local, a stripe only touches a narrow range of labels 
+ * so the partial sums are allocated only for this range
  * @author JB
  */
 class ThreadUpdate extends ThreadParticularImg2D {
-	// number per cluster
-	protected int[] nbPixels = null;
-    // set range
-    protected int beginK, endK;
-	
+	// number of image stripes
+	protected final int nbStripes;
+	// the first label and number of labels touched by each stripe
+	protected final int[] stripeLabel, stripeSize;
+	// partial sums per stripe - colours, positions and pixel counts
+	protected final double[][] sumColour;
+	protected final long[][] sumX, sumY;
+	protected final int[][] nbPixels;
+	// maximal colour distances to be updated and theirs partial maxima per 
+	// stripe, null if they are not needed
+	protected float[] maxColour = null;
+	protected final float[][] stripeMaxColour;
+	// copy of the labels for the next assignment, null if it is not needed
+	protected int[] prevLabels = null;
 	
     /**
      * initialisation / copy reference to all needed variables 
      * 
-     * @param im - image
+     * @param buf - image and labelling
      * @param cPos - clusters positions
      * @param cClr - cluster colours
-     * @param lab - given labelling
+     * @param nbS - number of image stripes
      */
-    public ThreadUpdate(final int[][][] im, int[][] cPos, int[][] cClr, final int[][] lab, int[] nb) {
-		super(im, cPos, cClr, lab);
-    	nbPixels = nb;
+    public ThreadUpdate(final PixelBuffer2D buf, int[][] cPos, float[][] cClr, int nbS) {
+		super(buf, cPos, cClr);
+		nbStripes = nbS;
+		stripeLabel = new int[nbS];
+		stripeSize = new int[nbS];
+		sumColour = new double[nbS][];
+		sumX = new long[nbS][];
+		sumY = new long[nbS][];
+		nbPixels = new int[nbS][];
+		stripeMaxColour = new float[nbS][];
 	}
     
-    public void setRange(final int start, final int stop) {
-    	beginK = start;
-    	endK = stop;
-	}
+    /**
+     * set the running maximal colour distances of clusters, they are raised 
+     * by the distances of the pixels to theirs actual (not updated) centres
+     * 
+     * @param m - maximal distance per cluster or null
+     */
+    public void setMaxColour(final float[] m) {
+    	maxColour = m;
+    }
+    
+    /**
+     * set a buffer where the labels are stored while they are read, so the 
+     * next assignment can count the relabelled pixels without own copy
+     * 
+     * @param prev - int[width*height] or null
+     */
+    public void setPrevLabels(final int[] prev) {
+    	prevLabels = prev;
+    }
     
+    /**
+     * compute partial sums for stripes in range [begin, end)
+     * 
+     * @param begin - first stripe
+     * @param end - stripe after the last one
+     */
     @Override
-    public void run() {
-    	int k;
-    	// cycle over whole image and by labels add current value to given cluster center
-		for (int x=0; x<img.length; x++ ) {
-			for (int y=0; y<img[0].length; y++ ) {
-				// only for selected K in range
-				if (labels[x][y] >= beginK && labels[x][y] < endK) {	
-					// save the k
-					k = labels[x][y];
-					// over all image channels
-					clusterColour[k][0] += img[x][y][0];
-					clusterColour[k][1] += img[x][y][1];
-					clusterColour[k][2] += img[x][y][2];
-					// over all positions
-					clusterPosition[k][0] += x;
-					clusterPosition[k][1] += y;
-					nbPixels[k] ++;
+    public void run(final int begin, final int end) {
+    	for (int s=begin; s<end; s++) {
+    		accumulate(s, Threading.split(buffer.height, nbStripes, s), Threading.split(buffer.height, nbStripes, s+1));
+    	}
+    }
+    
+    /**
+     * sum all pixels in the given stripe of rows by theirs labels
+     * 
+     * @param s - stripe index
+     * @param yB - first row
+     * @param yE - row after the last one
+     */
+    protected void accumulate(final int s, final int yB, final int yE) {
+		final int width = buffer.width;
+		final int nbChannels = buffer.getNbChannels();
+		final float[][] img = buffer.planes;
+		final int[] labels = buffer.labels;
+		final int[] prev = prevLabels;
+		final int iB = yB*width, iE = yE*width;
+		int k;
+		
+		// find the range of labels in this stripe and store them
+		int minK = Integer.MAX_VALUE, maxK = -1;
+		for (int i=iB; i<iE; i++) {
+			k = labels[i];
+			if (k < minK) {		minK = k;	}
+			if (k > maxK) {		maxK = k;	}
+			if (prev != null) {		prev[i] = k;	}
+		}
+		if (maxK < minK) {		return;		}
+		final int nbK = maxK - minK + 1;
+		stripeLabel[s] = minK;
+		stripeSize[s] = nbK;
+		final double[] sClr = new double[nbK * nbChannels];
+		final long[] sX = new long[nbK];
+		final long[] sY = new long[nbK];
+		final int[] nb = new int[nbK];
+		
+		// cycle over the stripe and by labels add current value to given cluster
+		for (int y=yB, i=iB; y<yE; y++ ) {
+			for (int x=0; x<width; x++, i++ ) {
+				k = labels[i] - minK;
+				// over all image channels
+				for (int c=0; c<nbChannels; c++) {
+					sClr[k*nbChannels + c] += img[c][i];
+				}
+				// over all positions
+				sX[k] += x;
+				sY[k] += y;
+				nb[k] ++;
+			}
+		}
+		
+		// the colour distances to the centres used in the last assignment
+		if (maxColour != null) {
+			final float[] sMax = new float[nbK];
+			float d, dist;
+			float[] clr;
+			for (int i=iB; i<iE; i++ ) {
+				k = labels[i];
+				clr = clusterColour[k];
+				dist = 0;
+				for (int c=0; c<nbChannels; c++) {
+					d = img[c][i] - clr[c];
+					dist += d * d;
+				}
+				if (dist > sMax[k - minK]) {
+					sMax[k - minK] = dist;
+				}
+			}
+			stripeMaxColour[s] = sMax;
+		}
+		
+		sumColour[s] = sClr;
+		sumX[s] = sX;
+		sumY[s] = sY;
+		nbPixels[s] = nb;
+    }
+    
+    /**
+     * merge partial sums of all stripes for clusters in range [beginK, endK)
+     * and set the new cluster centres as mean values
+     * 
+     * @param beginK - first cluster
+     * @param endK - cluster after the last one
+     */
+    public void merge(final int beginK, final int endK) {
+		final int nbChannels = buffer.getNbChannels();
+		final int nbK = endK - beginK;
+		final double[] sClr = new double[nbK * nbChannels];
+		final long[] sX = new long[nbK];
+		final long[] sY = new long[nbK];
+		final int[] nb = new int[nbK];
+		int k, kB, kE;
+		
+		// add all stripes overlapping this range of clusters
+		for (int s=0; s<nbStripes; s++) {
+			if (nbPixels[s] == null) {		continue;	}
+			kB = Math.max(beginK, stripeLabel[s]);
+			kE = Math.min(endK, stripeLabel[s] + stripeSize[s]);
+			for (k=kB; k<kE; k++) {
+				int j = k - stripeLabel[s];
+				for (int c=0; c<nbChannels; c++) {
+					sClr[(k-beginK)*nbChannels + c] += sumColour[s][j*nbChannels + c];
+				}
+				sX[k-beginK] += sumX[s][j];
+				sY[k-beginK] += sumY[s][j];
+				nb[k-beginK] += nbPixels[s][j];
+				if (maxColour != null && stripeMaxColour[s][j] > maxColour[k]) {
+					maxColour[k] = stripeMaxColour[s][j];
 				}
 			}
 		}
 		
 		// cycle over all clusters and divide them by nb assigned pixels (get mean)
-		for (k=beginK; k<endK; k++) {
-			if (nbPixels[k] == 0) {		continue;	}
+		for (k=0; k<nbK; k++) {
+			if (nb[k] == 0) {		continue;	}
 			// over all image channels
-			clusterColour[k][0] = clusterColour[k][0] / nbPixels[k];
-			clusterColour[k][1] = clusterColour[k][1] / nbPixels[k];
-			clusterColour[k][2] = clusterColour[k][2] / nbPixels[k];
+			for (int c=0; c<nbChannels; c++) {
+				clusterColour[beginK+k][c] = (float) (sClr[k*nbChannels + c] / nb[k]);
+			}
 			// over all positions
-			clusterPosition[k][0] = clusterPosition[k][0] / nbPixels[k];
-			clusterPosition[k][1] = clusterPosition[k][1] / nbPixels[k];
+			clusterPosition[beginK+k][0] = (int) (sX[k] / nb[k]);
+			clusterPosition[beginK+k][1] = (int) (sY[k] / nb[k]);
 		}
-    	
     }
 	
 }
@@ -5,6 +5,16 @@
 package sc.fiji.CMP_BIA.segmentation.superpixels;
 
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+import java.util.Arrays;
+
+import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+import sc.fiji.CMP_BIA.tools.Logging;
+import sc.fiji.CMP_BIA.tools.Threading;
+import sc.fiji.CMP_BIA.tools.converters.ConvertImage;
 
 /**
  * @class SLIC superpixels
@@ -12,93 +22,663 @@ import ij.ImagePlus;
  * @date 10/06/2013
  * @author Jirka Borovec <jiri.borovec@fel.cvut.cz>
  * @category image segmentation
- * 
+ *
  * @brief This is derivation of SLIC superpixel in 3D for RGB and gray images
- * with several proposed approximations and speedups such as multi-threading, etc. 
- * 
- * @see http://ivrg.epfl.ch/research/superpixels 
- * @see http://rsbweb.nih.gov/ij 
- * 
+ * with several proposed approximations and speedups such as multi-threading, etc.
+ *
+ * @see http://ivrg.epfl.ch/research/superpixels
+ * @see http://rsbweb.nih.gov/ij
+ *
+ * @details The third dimension are the slices of a z-stack or the frames of
+ * a time series. The volume is stored as flat planes (one per channel) with
+ * the voxel (x,y,z) at index (z*Height+y)*Width+x. The voxel spacing is taken
+ * from the image calibration, so the supervoxels are nearly cubic in physical
+ * units; the frames of a time series have spacing one. The assignment and the
+ * update run in parallel over slabs of slices and the connectivity uses
+ * 6-neighbourhood. It shares only the parameters, the STOP criteria and
+ * the iteration statistics with jSLIC, the 2D modes (pyramid, incremental,
+ * warm start) are not available for volumes.
  */
-public class jSLICf extends jSLIC {
-
-	// TODO - check variables used and overided
-	
-	// clone of original image we work with
-	protected ImagePlus image;
-	protected int[] imDims;
-	// image converted into LAB colour space 
-	// dim int[Width][Height][Slices][channels]
-	protected int[][][][] img = null;
-	// initial regular grid size
-	protected int[][][] gridSize;
-	// labeling per each image pixel - dim int[Width]
-	protected int[][][] labels = null;
-	// protected ShortProcessor labels; // it is 7x slower then int[][]
-	// minimal distance according the assigned label 
-	protected float[][][] distances = null;
-	
-	
-	
-	// TODO - extension for 3D
-	
+public class jSLICf extends AbstractSLIC {
+
+	// image depth - number of slices or frames
+	protected int Depth;
+	// voxel spacing normalised to the pixel width - dim float[3]
+	protected float[] spacing;
+	// the volume converted into LAB colour space or gray intensities
+	// dim float[channels][Width*Height*Depth]
+	protected float[][] volume;
+	// labeling per each voxel - dim int[Width*Height*Depth]
+	protected int[] labels;
+	// minimal distance according the assigned label
+	protected float[] distances;
+	// half size of the cluster window in voxels per dimension - dim int[3]
+	protected int[] grid;
+	// weighted squared spatial distances per dimension - dim float[3][2*grid+1]
+	protected float[][] distAxis;
+	// the volume is a time series and not a z-stack
+	protected boolean timeSeries;
+	// vector of cluster's colours - dim float[nbClusters][channels]
+	protected float[][] clusterColour = null;
+	// vector of cluster's positions - dim int[nbClusters][3]
+	protected int[][] clusterPosition = null;
+	// cluster centres from the previous iteration
+	protected int[][] prevPosition = null;
+
 	/**
 	 * Constructor that sets the input image.
 	 * @param im is the input ImagePlus
 	 */
 	public jSLICf(ImagePlus im) {
-		super(im);
+		this.image = im;
+		initInternalVaribales();
 	}
-	
-	@Override
+
 	protected void initInternalVaribales() {
 
 		// Returns the dimensions of this image as a 5 element int array.
 		// (width, height, nChannels, nSlices, nFrames)
 		int[] dims = image.getDimensions();
-		this.imDims = new int[3];
-		imDims[0] = dims[0];
-		imDims[1] = dims[1]; 
+		this.Width = dims[0];
+		this.Height = dims[1];
 		// stop processing higher dimension then 3D
 		if (dims[3]>1 && dims[4]>1) {
-			ij.IJ.log("ERROR: Not supported image dimensions!");
-			return;
-		} else if (dims[3]>1) {
-			imDims[2] = dims[3];
-		} else if (dims[4]>1) {
-			imDims[2] = dims[4];
-		}
-		
-		// init other local variables according selected image 
-		labels = new int[imDims[0]][imDims[1]][imDims[2]];
-		distances = new float[imDims[0]][imDims[1]][imDims[2]];
-				
+			throw new IllegalArgumentException("ERROR: Not supported image dimensions!");
+		}
+		this.timeSeries = dims[4] > 1;
+		this.Depth = Math.max(dims[3], dims[4]);
+		if ((long) Width*Height*Depth > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("ERROR: the volume is too large!");
+		}
+
+		// anisotropic voxels of a z-stack, frames are equally spaced
+		Calibration cal = image.getCalibration();
+		spacing = new float[]{1.f, 1.f, 1.f};
+		if (cal != null && cal.pixelWidth > 0) {
+			spacing[1] = (float) (cal.pixelHeight / cal.pixelWidth);
+			if (! timeSeries) {
+				spacing[2] = (float) (cal.pixelDepth / cal.pixelWidth);
+			}
+		}
+
+		// init other local variables according selected image
+		labels = new int[Width*Height*Depth];
+		distances = new float[Width*Height*Depth];
+
+		Logging.logMsg("SLIC: volume convert, " + Depth + " slices with spacing " + Arrays.toString(spacing));
 		convertImage();
 	}
-	
-	
+
+	/**
+	 * convert all slices (and channels) into the flat volume planes; gray
+	 * intensities are scaled by the range of the whole volume
+	 */
+	protected void convertImage() {
+		final int sz = Width*Height;
+		final int nbCh = image.getNChannels();
+		final boolean rgb = (image.getType() == ImagePlus.COLOR_RGB);
+		final ImageStack stack = image.getStack();
+		volume = new float[rgb ? 3 : nbCh][];
+		for (int c=0; c<volume.length; c++) {
+			volume[c] = new float[sz*Depth];
+		}
+		float[][] planes;
+		for (int z=0; z<Depth; z++) {
+			if (rgb) {
+				planes = ConvertImage.rgb2cieLABplanes(stack.getProcessor(stackIndex(1, z)));
+				for (int c=0; c<3; c++) {
+					System.arraycopy(planes[c], 0, volume[c], z*sz, sz);
+				}
+			} else {
+				for (int c=0; c<nbCh; c++) {
+					planes = ConvertImage.gray2planes(stack.getProcessor(stackIndex(c+1, z)), 1.f);
+					System.arraycopy(planes[0], 0, volume[c], z*sz, sz);
+				}
+			}
+		}
+		if (! rgb) {
+			for (int c=0; c<nbCh; c++) {
+				jSLIC.scalePlane(volume[c], jSLIC.defaultIntensityScale(volume[c], image.getType()));
+			}
+		}
+		this.nbChannels = volume.length;
+	}
+
+	/**
+	 * index in the image stack of a channel in given slice or frame
+	 *
+	 * @param c int channel starting from 1
+	 * @param z int position in the third dimension starting from 0
+	 * @return int stack index
+	 */
+	protected int stackIndex(int c, int z) {
+		return timeSeries ? image.getStackIndex(c, 1, z+1) : image.getStackIndex(c, z+1, 1);
+	}
+
+	/**
+	 * Process the whole segmentation process in 3D, the grid size is in
+	 * the pixel width units and the window is adjusted by the voxel spacing
+	 *
+	 * @param grid integer number defining the initial regular grid size
+	 * @param reg float defining the superpixel elasticity in range (0,1)
+	 * @param maxIter number of maximal iterations
+	 * @param sizeTrashold segments smaller then this fraction of the initial
+	 * supervoxel size are merged to an adjacent one
+	 */
 	@Override
-	protected void enforceLabelConnectivity() {
-		enforceLabelConnectivity(0.1f);
+	public void process (int grid, float reg, int maxIter, float sizeTrashold) {
+		this.gridSize = (grid < 5) ? 5 : grid;
+		this.regul = (reg < 0) ? 0 : reg;
+		// according the VLFeat library the regul is in range {0,1}
+		this.factor = (regul*regul) * (float)(gridSize);
+
+		Logging.logMsg("SLIC: running 3D with gridSize: " + Integer.toString(gridSize) + " regularity " + Float.toString(regul));
+
+		computeDistAxis();
+		initClusters();
+		iterate(maxIter);
+
+		Logging.logMsg("SLIC: enforce label connectivity.");
+		enforceLabelConnectivity(sizeTrashold);
+
+		Logging.logMsg("SLIC: DONE.");
+	}
+
+	/**
+	 * the window size per dimension and the separable spatial distances,
+	 * the distance of relative position (dx,dy,dz) is the sum
+	 * distAxis[0][dx+grid[0]] + distAxis[1][dy+grid[1]] + distAxis[2][dz+grid[2]]
+	 */
+	protected void computeDistAxis() {
+		grid = new int[3];
+		distAxis = new float[3][];
+		int[] dims = {Width, Height, Depth};
+		for (int a=0; a<3; a++) {
+			grid[a] = Math.max(1, Math.min(dims[a], Math.round(gridSize / spacing[a])));
+			distAxis[a] = new float[2*grid[a] +1];
+			for (int d=-grid[a]; d<=grid[a]; d++) {
+				distAxis[a][d+grid[a]] = (d*spacing[a]) * (d*spacing[a]) * factor;
+			}
+		}
+	}
+
+	/**
+	 * initial clusters on the regular grid in the volume
+	 */
+	protected void initClusters () {
+		final int nX = (Width + grid[0] -1) / grid[0];
+		final int nY = (Height + grid[1] -1) / grid[1];
+		final int nZ = (Depth + grid[2] -1) / grid[2];
+		clusterColour = new float[nX*nY*nZ][nbChannels];
+		clusterPosition = new int[nX*nY*nZ][3];
+
+		// do initial assignment - assign labels by initial regular grid
+		Threading.parallelFor(0, Depth, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int z=begin; z<end; z++) {
+					for (int y=0, i=z*Width*Height; y<Height; y++) {
+						for (int x=0; x<Width; x++, i++) {
+							labels[i] = ((z/grid[2])*nY + (y/grid[1]))*nX + (x/grid[0]);
+						}
+					}
+				}
+			}
+		});
+
+		prevPosition = null;
+		update3D();
+	}
+
+	/**
+	 * Iterate the assignment and update steps till the STOP criterion
+	 *
+	 * @param maxIter number of maximal iterations
+	 */
+	protected void iterate (int maxIter) {
+		float err, lastErr = Float.MAX_VALUE, initErr = 0;
+		long time;
+		IterationStats stats;
+		iterationStats.clear();
+		// the connectivity forest keeps the labels of the previous assignment
+		// as in the 2D version, then they are stored by the update step
+		if (forest == null || forest.length != labels.length) {
+			forest = new int[labels.length];
+		}
+		System.arraycopy(labels, 0, forest, 0, labels.length);
+
+		for (int i=0; i<maxIter; i++) {
+			time = System.currentTimeMillis();
+
+			err = assignment3D();
+			if (i == 0) {
+				initErr = err;
+			}
+			Logging.logMsg("SLIC:  iter " + Integer.toString(i+1) + ", inter. distance is " + Float.toString(err));
+			update3D();
+
+			stats = new IterationStats(i+1, System.currentTimeMillis()-time, err, changedPixels, (long)Width*Height*Depth, maxShift, 0);
+			notifyListeners(stats);
+
+			// STOP criterion, if consecutive errors are smaller then given treshold
+			if ( (lastErr-err) < (initErr*errTreshold)) {
+				Logging.logMsg("SLIC: terminate with diff error " + (lastErr-err));
+				i = maxIter;
+			// STOP criterion, if only a few voxels changed and centres stay
+			} else if (stats.getChangedFraction() <= changeTreshold && maxShift <= shiftTreshold) {
+				Logging.logMsg("SLIC: terminate with changed pixels " + changedPixels + " and max shift " + maxShift);
+				i = maxIter;
+			} else {
+				lastErr = err;
+			}
+		}
+	}
+
+	/**
+	 * number of slabs of slices for parallel processing
+	 *
+	 * @return int
+	 */
+	protected int computeNbSlabs() {
+		return Math.min(Depth, 4 * Threading.nbAvailableThread());
+	}
+
+	/**
+	 * Assign cluster index to each voxel, the volume is split into slabs of
+	 * slices and each slab visits only clusters which window overlap it, so
+	 * the slabs can be processed in parallel without any locking
+	 *
+	 * @return float sum over all distances to nearest cluster
+	 */
+	protected float assignment3D () {
+		Logging.logMsg(" -> fast parallel 3D assignement running...");
+
+		// clusters sorted by the slice of theirs centre (counting sort)
+		final int[] zStart = new int[Depth+1];
+		final int[] zClusters = new int[clusterPosition.length];
+		for (int k=0; k<clusterPosition.length; k++) {
+			zStart[ clusterPosition[k][2] +1 ] ++;
+		}
+		for (int z=1; z<=Depth; z++) {
+			zStart[z] += zStart[z-1];
+		}
+		int[] next = Arrays.copyOf(zStart, Depth);
+		for (int k=0; k<clusterPosition.length; k++) {
+			zClusters[ next[clusterPosition[k][2]]++ ] = k;
+		}
+
+		final int nbSlabs = computeNbSlabs();
+		final double[] slabErr = new double[nbSlabs];
+		final long[] slabChanged = new long[nbSlabs];
+		final int[] prevLabels = forest;
+		Threading.parallelFor(0, nbSlabs, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int s=begin; s<end; s++) {
+					int zB = Threading.split(Depth, nbSlabs, s);
+					int zE = Threading.split(Depth, nbSlabs, s+1);
+					int iB = zB*Width*Height, iE = zE*Width*Height;
+					Arrays.fill(distances, iB, iE, Float.MAX_VALUE);
+
+					// clusters which window [cz-grid, cz+grid) overlaps the slab
+					// visited in increasing order as by a scan over all clusters
+					int[] cand = Arrays.copyOfRange(zClusters,
+							zStart[Math.max(0, zB-grid[2]+1)], zStart[Math.min(Depth, zE+grid[2])]);
+					Arrays.sort(cand);
+					float[] row = new float[2*grid[0]+1];
+					for (int j=0; j<cand.length; j++) {
+						assignCluster3D(cand[j], zB, zE, row);
+					}
+
+					double err = 0;
+					long changed = 0;
+					for (int i=iB; i<iE; i++) {
+						err += distances[i];
+						if (labels[i] != prevLabels[i]) {
+							changed ++;
+						}
+					}
+					slabErr[s] = err;
+					slabChanged[s] = changed;
+				}
+			}
+		});
+
+		double err = 0;
+		changedPixels = 0;
+		for (int s=0; s<nbSlabs; s++) {
+			err += slabErr[s];
+			changedPixels += slabChanged[s];
+		}
+		return (float) err;
+	}
+
+	/**
+	 * assignment of a single cluster inside the slab of slices [zB, zE);
+	 * distances of a window row are accumulated channel by channel
+	 *
+	 * @param k int cluster index
+	 * @param zB int first slice of the slab
+	 * @param zE int slice after the slab
+	 * @param row float[] temporary row of the window
+	 */
+	protected void assignCluster3D (final int k, final int zB, final int zE, final float[] row) {
+		final int cx = clusterPosition[k][0];
+		final int cy = clusterPosition[k][1];
+		final int cz = clusterPosition[k][2];
+		final int xB = Math.max(0, cx-grid[0]), xE = Math.min(cx+grid[0], Width);
+		final int yB = Math.max(0, cy-grid[1]), yE = Math.min(cy+grid[1], Height);
+		final int zzB = Math.max(zB, cz-grid[2]), zzE = Math.min(cz+grid[2], zE);
+		final int n = xE - xB;
+		final float[] colour = clusterColour[k];
+		final float[] dX = distAxis[0], dY = distAxis[1], dZ = distAxis[2];
+		float dyz, d, cc;
+		float[] plane;
+		int i0;
+
+		for (int z=zzB; z<zzE; z++) {
+			for (int y=yB; y<yE; y++) {
+				i0 = (z*Height + y)*Width + xB;
+				dyz = dZ[z-cz+grid[2]] + dY[y-cy+grid[1]];
+				for (int x=0; x<n; x++) {
+					row[x] = dyz + dX[xB+x-cx+grid[0]];
+				}
+				for (int c=0; c<volume.length; c++) {
+					plane = volume[c];
+					cc = colour[c];
+					for (int x=0; x<n; x++) {
+						d = plane[i0+x] - cc;
+						row[x] += d * d;
+					}
+				}
+				for (int x=0; x<n; x++) {
+					if (row[x] < distances[i0+x]) {
+						labels[i0+x] = k;
+						distances[i0+x] = row[x];
+					}
+				}
+			}
+		}
 	}
-	
-	
+
 	/**
-	 * 
-	 * @param sizeTrashold
+	 * Update the cluster centres as a parallel reduction over slabs, each slab
+	 * touches only a narrow range of labels so the partial sums are allocated
+	 * only for this range and merged afterwards
+	 */
+	protected void update3D () {
+		Logging.logMsg(" -> fast parallel 3D update running...");
+		final int nbCh = volume.length;
+		final int nbK = clusterPosition.length;
+		final int nbSlabs = computeNbSlabs();
+		final int[] slabLabel = new int[nbSlabs];
+		final double[][] slabSums = new double[nbSlabs][];
+		// values per cluster - colour channels, x, y, z and the count
+		final int nbVal = nbCh + 4;
+		// the labels are stored for the next assignment, not in the initial update
+		final int[] prevLabels = (forest != null && forest.length == labels.length) ? forest : null;
+
+		Threading.parallelFor(0, nbSlabs, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int s=begin; s<end; s++) {
+					int zB = Threading.split(Depth, nbSlabs, s);
+					int zE = Threading.split(Depth, nbSlabs, s+1);
+					int iB = zB*Width*Height, iE = zE*Width*Height;
+					int minK = Integer.MAX_VALUE, maxK = -1, k;
+					for (int i=iB; i<iE; i++) {
+						k = labels[i];
+						if (k < minK) {		minK = k;	}
+						if (k > maxK) {		maxK = k;	}
+						if (prevLabels != null) {
+							prevLabels[i] = k;
+						}
+					}
+					if (maxK < minK) {		continue;	}
+					double[] sums = new double[(maxK-minK+1) * nbVal];
+					for (int z=zB, i=iB; z<zE; z++) {
+						for (int y=0; y<Height; y++) {
+							for (int x=0; x<Width; x++, i++) {
+								int j = (labels[i]-minK) * nbVal;
+								for (int c=0; c<nbCh; c++) {
+									sums[j+c] += volume[c][i];
+								}
+								sums[j+nbCh] += x;
+								sums[j+nbCh+1] += y;
+								sums[j+nbCh+2] += z;
+								sums[j+nbCh+3] ++;
+							}
+						}
+					}
+					slabLabel[s] = minK;
+					slabSums[s] = sums;
+				}
+			}
+		});
+
+		if (prevPosition == null || prevPosition.length != nbK) {
+			prevPosition = new int[nbK][3];
+		}
+		for (int k=0; k<nbK; k++) {
+			System.arraycopy(clusterPosition[k], 0, prevPosition[k], 0, 3);
+		}
+		// merge the partial sums per cluster ranges
+		Threading.parallelFor(0, nbK, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				double[] sum = new double[nbVal];
+				for (int k=begin; k<end; k++) {
+					Arrays.fill(sum, 0);
+					for (int s=0; s<nbSlabs; s++) {
+						if (slabSums[s] == null) {		continue;	}
+						int j = k - slabLabel[s];
+						if (j < 0 || j >= slabSums[s].length / nbVal) {		continue;	}
+						for (int v=0; v<nbVal; v++) {
+							sum[v] += slabSums[s][j*nbVal + v];
+						}
+					}
+					double nb = sum[nbCh+3];
+					if (nb == 0) {		continue;	}
+					for (int c=0; c<nbCh; c++) {
+						clusterColour[k][c] = (float) (sum[c] / nb);
+					}
+					for (int a=0; a<3; a++) {
+						clusterPosition[k][a] = (int) (sum[nbCh+a] / nb);
+					}
+				}
+			}
+		});
+
+		long d, dMax = 0;
+		for (int k=0; k<nbK; k++) {
+			d = 0;
+			for (int a=0; a<3; a++) {
+				d += (long) (clusterPosition[k][a]-prevPosition[k][a]) * (clusterPosition[k][a]-prevPosition[k][a]);
+			}
+			dMax = Math.max(d, dMax);
+		}
+		maxShift = (float) Math.sqrt(dMax);
+	}
+
+
+	/**
+	 * Enforce Label Connectivity in 3D with 6-neighbourhood, the components
+	 * are found by union-find over slabs in parallel and the small ones are
+	 * merged to an adjacent component as in the 2D version
+	 *
+	 * @param sizeTrashold segments smaller then this fraction of the initial
+	 * supervoxel size are merged to an adjacent one
 	 */
 	protected void enforceLabelConnectivity(float sizeTrashold){
-//		// compute the component connectivity among the estimated segments
-//		ConnectedComponents connect = new ConnectedComponents(labels);
-//		connect.computeConnectivity2D(4);
-//		labels = connect.getNewLabeling2D();
-//		// create look at table for reassignment
-//		int[] LUT = new int[connect.getSegmentSizes().length];
-		
-		// TODO - finish it
-		
-		// TODO - extend to 3D
-		
-	}
-			
+		final int sz = Width*Height*Depth;
+		final int slice = Width*Height;
+		// size of initial supervoxel
+		final int minSize = (int) (sizeTrashold * grid[0]*grid[1]*grid[2]);
+		// union-find forest where the root of each component is its first
+		// voxel in raster order, reused by next process
+		if (forest == null || forest.length != sz) {
+			forest = new int[sz];
+		}
+		final int[] parent = forest;
+		final int nbSlabs = computeNbSlabs();
+
+		// 1. components inside slabs
+		Threading.parallelFor(0, nbSlabs, 1, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int s=begin; s<end; s++) {
+					int zB = Threading.split(Depth, nbSlabs, s);
+					int zE = Threading.split(Depth, nbSlabs, s+1);
+					for (int z=zB, i=zB*slice; z<zE; z++) {
+						for (int y=0; y<Height; y++) {
+							for (int x=0; x<Width; x++, i++) {
+								parent[i] = i;
+								if (x > 0 && labels[i-1] == labels[i]) {
+									union(parent, i-1, i);
+								}
+								if (y > 0 && labels[i-Width] == labels[i]) {
+									union(parent, i-Width, i);
+								}
+								if (z > zB && labels[i-slice] == labels[i]) {
+									union(parent, i-slice, i);
+								}
+							}
+						}
+					}
+				}
+			}
+		});
+		// 2. merge the components across the slab borders
+		for (int s=1; s<nbSlabs; s++) {
+			int z = Threading.split(Depth, nbSlabs, s);
+			for (int i=z*slice; i<(z+1)*slice; i++) {
+				if (labels[i-slice] == labels[i]) {
+					union(parent, i-slice, i);
+				}
+			}
+		}
+		// 3. point each voxel directly to its root
+		Threading.parallelFor(0, Depth, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int i=begin*slice; i<end*slice; i++) {
+					int r = i;
+					while (parent[r] != r) {
+						r = parent[r];
+					}
+					parent[i] = r;
+				}
+			}
+		});
+		// 4. component sizes are stored on the root positions of the labels
+		for (int i=0; i<sz; i++) {
+			if (parent[i] == i) {
+				labels[i] = 1;
+			} else {
+				labels[parent[i]] ++;
+			}
+		}
+		// 5. new labels of the components in raster order, a small component
+		// gets the label of an adjacent one which is already labelled
+		int x, y, z, r;
+		int lab = 0;
+		int adjlabel = 0;
+		for (int i0=0; i0<sz; i0++) {
+			if (parent[i0] != i0) { 	continue; 	}
+			x = i0 % Width;
+			y = (i0 / Width) % Height;
+			z = i0 / slice;
+			// the root is the first voxel so only the previous neighbours
+			// may belong to already labelled components
+			if (x > 0) {
+				r = parent[i0-1];
+				if (r < i0) {		adjlabel = labels[r];		}
+			}
+			if (y > 0) {
+				r = parent[i0-Width];
+				if (r < i0) {		adjlabel = labels[r];		}
+			}
+			if (z > 0) {
+				r = parent[i0-slice];
+				if (r < i0) {		adjlabel = labels[r];		}
+			}
+			if (labels[i0] <= minSize) {
+				labels[i0] = adjlabel;
+			} else {
+				labels[i0] = lab++;
+			}
+		}
+		// 6. propagate the labels from roots to all voxels
+		Threading.parallelFor(0, Depth, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int i=begin*slice; i<end*slice; i++) {
+					labels[i] = labels[parent[i]];
+				}
+			}
+		});
+		this.nbLabels = lab;
+	}
+
+	/**
+	 * gives the segmentation of a single slice
+	 *
+	 * @param z int slice index starting from 0
+	 * @return Labelling2D labels of the slice
+	 */
+	public Labelling2D getSegmentation(int z) {
+		final int slice = Width*Height;
+		return new Labelling2D(Arrays.copyOfRange(labels, z*slice, (z+1)*slice), Width, Height);
+	}
+
+	/**
+	 * gives the whole segmentation as 32-bit stack of the same dimensions
+	 * and calibration as the input image
+	 *
+	 * @return ImagePlus label stack
+	 */
+	public ImagePlus getSegmentationStack() {
+		final int slice = Width*Height;
+		ImageStack stack = new ImageStack(Width, Height);
+		for (int z=0; z<Depth; z++) {
+			float[] px = new float[slice];
+			for (int i=0; i<slice; i++) {
+				px[i] = labels[z*slice + i];
+			}
+			stack.addSlice(null, new FloatProcessor(Width, Height, px));
+		}
+		ImagePlus imp = new ImagePlus("supervoxels", stack);
+		imp.setDimensions(1, timeSeries ? 1 : Depth, timeSeries ? Depth : 1);
+		imp.setCalibration(image.getCalibration());
+		return imp;
+	}
+
+	/**
+	 * @return int[Width*Height*Depth] reference to the flat labelling
+	 */
+	public int[] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return float[channels][Width*Height*Depth] reference to the volume
+	 */
+	public float[][] getVolume() {
+		return volume;
+	}
+
+	/**
+	 * @return float[3] voxel spacing normalised to the pixel width
+	 */
+	public float[] getSpacing() {
+		return spacing.clone();
+	}
+
+	/**
+	 * @return int number of slices or frames
+	 */
+	public int getDepth() {
+		return Depth;
+	}
+
 }
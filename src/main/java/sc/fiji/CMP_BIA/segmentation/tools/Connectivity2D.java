@@ -156,6 +156,47 @@ abstract public class Connectivity2D {
 		return segmNeighbors;
 	}
 	
+	/**
+	 * The same as findSegmetNeighbors2D(int[][], ...) on a flat row-major 
+	 * labelling, the pixels are visited in the same order
+	 * 
+	 * @param labels is the initial labelling int[Width*Height] indexed y*Width+x
+	 * @param width int width of the labelling
+	 * @param height int height of the labelling
+	 * @param nbLabels is integer number of all segments in segmentation
+	 * @param neighbors defines relative position of neighbouring pixels 
+	 * of size int[connect][2]
+	 * @return ArrayList<ArrayList<Integer>> is a matrix neighbours to each 
+	 * segment of size nbSegments*nbNeighbors
+	 */
+	public static ArrayList<ArrayList<Integer>> findSegmetNeighbors2D(final int[] labels, final int width, final int height, final int nbLabels, final int[][] neighbors) {
+		// neighbors to each segment
+		ArrayList<ArrayList<Integer>> segmNeighbors = new ArrayList<ArrayList<Integer>>();
+		for (int i=0; i<nbLabels; i++) {
+			segmNeighbors.add(i, new ArrayList<Integer>() );
+		}
+		int x, y, l, lN;
+		
+		// go over all pixels in image without booundaries
+		for( int i = 1; i < width-1; i++ ) {
+			for( int j = 1; j < height-1; j++ ) {
+				l = labels[j*width + i];
+				for( int n = 0; n < neighbors.length; n++ ) {
+					x = i + neighbors[n][0];
+					y = j + neighbors[n][1];
+					if( (x >= 0 && x < width) && (y >= 0 && y < height) ) {
+						lN = labels[y*width + x];
+						if (l != lN && ! segmNeighbors.get(l).contains(lN)) {
+							segmNeighbors.get(l).add(lN);
+						}
+					}
+				}
+			}
+		}
+		
+		return segmNeighbors;
+	}
+	
 	/**
 	 * It goes over all pixels and finds all points where are 3 and more 
 	 * different classes in  defined connectivity
@@ -211,6 +252,54 @@ abstract public class Connectivity2D {
 		return boundaryPoints;
 	}
 	
+	/**
+	 * The same as findBoundaryPoints2D(int[][], ...) on a flat row-major 
+	 * labelling
+	 * 
+	 * @param labels is the initial labelling int[Width*Height] indexed y*Width+x
+	 * @param width int width of the labelling
+	 * @param height int height of the labelling
+	 * @param neighbors defines relative position of neighbouring pixels 
+	 * of size int[connect][2]
+	 * @return ArrayList<int[2]> is list of all boundary points
+	 */
+	public static ArrayList<int[]> findBoundaryPoints2D(final int[] labels, final int width, final int height, final int[][] neighbors) {
+		ArrayList<int[]> boundaryPoints = new ArrayList<int[]>();
+		ArrayList<Integer> tmpLb = new ArrayList<Integer>();
+		int count, lN;
+				
+		// go over all pixels in image without boundaries
+		for( int i = 1; i < width-1; i++ ) {
+			for( int j = 1; j < height-1; j++ ) {
+				tmpLb.clear();
+				tmpLb.add(labels[j*width + i]);
+				for( int n = 0; n < neighbors.length; n++ ) {
+					lN = labels[ (j+neighbors[n][1])*width + i+neighbors[n][0] ];
+					if (! tmpLb.contains(lN)) {
+						tmpLb.add(lN);
+					}
+				}
+				
+				// if in neighbourhood are 3 and more different labels
+				if (tmpLb.size() >= 3) {
+					count = 0;
+					for( int n = 0; n < neighbors.length; n++ ) {
+						for (int m=0; m<boundaryPoints.size(); m++) {
+							if (boundaryPoints.get(m)[0]==i+neighbors[n][0] && boundaryPoints.get(m)[1]==j+neighbors[n][1]) {
+								count ++;
+							}
+						}
+					}
+					if (count == 0) {
+						boundaryPoints.add( new int[]{i,j} );
+					}
+				}
+			}
+		}
+		
+		return boundaryPoints;
+	}
+	
 	/**
 	 * returns coordinates of neighbouring points belonging to the boundaries 
 	 * among different labels in given segmentation, it assume that each segment 
@@ -292,6 +381,99 @@ abstract public class Connectivity2D {
 		return boundaryCoords;
 	}
 	
+	/**
+	 * The same as segmentBoundaries(int[][], ...) on a flat row-major 
+	 * labelling; the starting point of each segment (the first one by 
+	 * columns) is found in a single pass by rows so the large labellings 
+	 * are read in the memory order
+	 * 
+	 * @param labels is the labelling int[Width*Height] indexed y*Width+x
+	 * @param width int width of the labelling
+	 * @param height int height of the labelling
+	 * @param nbLabels is number of all labelles in segmentation
+	 */
+	public static ArrayList<ArrayList<int[]>> segmentBoundaries(final int[] labels, final int width, final int height, final int nbLabels) {
+		// the most left and then top pixel of each segment
+		int[] start = new int[nbLabels];
+		Arrays.fill(start, -1);
+		for (int j=0, i=0; j<height; j++) {
+			for (int x=0; x<width; x++, i++) {
+				if (start[labels[i]] < 0 || x < start[labels[i]] % width) {
+					start[labels[i]] = i;
+				}
+			}
+		}
+		return segmentBoundaries(labels, width, height, start);
+	}
+	
+	/**
+	 * The same as segmentBoundaries(int[], ...) with already known starting 
+	 * points, e.g. from the bounding boxes of the segments, so the cost is 
+	 * given only by the lengths of the boundaries
+	 * 
+	 * @param labels is the labelling int[Width*Height] indexed y*Width+x
+	 * @param width int width of the labelling
+	 * @param height int height of the labelling
+	 * @param start int[nbLabels] index of the most left and then top pixel 
+	 * of each segment, -1 for missing segments
+	 */
+	public static ArrayList<ArrayList<int[]>> segmentBoundaries(final int[] labels, final int width, final int height, final int[] start) {
+		ArrayList<ArrayList<int[]>> boundaryCoords = new ArrayList<ArrayList<int[]>>();
+		for (int label=0; label<start.length; label++) {
+			boundaryCoords.add(label, (start[label] < 0) ? null : traceBoundary(labels, width, height, label, start[label]));
+		}
+		return boundaryCoords;
+	}
+	
+	/**
+	 * Trace the boundary of a single segment, see segmentBoundaries
+	 * 
+	 * @param labels is the labelling int[Width*Height] indexed y*Width+x
+	 * @param width int width of the labelling
+	 * @param height int height of the labelling
+	 * @param label int the segment
+	 * @param start int index of the most left and then top pixel of the segment
+	 * @return ArrayList<int[2]> closed boundary, the first point is repeated
+	 */
+	public static ArrayList<int[]> traceBoundary(final int[] labels, final int width, final int height, final int label, final int start) {
+		final int[][] neighbors = CONNECT8;
+		boolean bound;
+		int k, c, xT, yT;
+		final int x0 = start % width, y0 = start / width;
+		int x = x0, y = y0;
+		ArrayList<int[]> bounds = new ArrayList<int[]>();
+		// direction of last added element
+		k = 0;
+		// exploring the boundary of the segment by pixel
+		do {
+			bound = false;
+			// over all defined neighbours starting from  previous direction
+			for (c=0; c<neighbors.length+1; c++) {
+				k = ++k % neighbors.length;
+				xT = x+neighbors[k][0];
+				yT = y+neighbors[k][1];
+				
+				if (xT<0 || xT>=width || yT<0 || yT>=height) {
+					bound = true;
+				} else if (label != labels[ yT*width + xT ]) {
+					bound = true;
+				// if this is the first point inside the segment
+				} else if (bound==true) {
+					bounds.add( new int[]{x, y} );
+					x = xT;
+					y = yT;
+					// next time star in following direction -4
+					k += neighbors.length -4;
+					break;
+				}
+			}
+		// until you come to the first point 
+		} while (x!=x0 || y!=y0);
+		// add the initial point again
+		bounds.add( new int[]{x, y} );
+		return bounds;
+	}
+	
 	/**
 	 * Simplify the polygon such that it remove all redundant vertexes
 	 * 
@@ -302,8 +484,8 @@ abstract public class Connectivity2D {
 		int dx, dy, dxNew, dyNew;
 		// go over all elements - boundaries
 		for (int i = 0; i < bounds.size(); i++) {
-			// if the boundary is not empty list
-			if (bounds.get(i) != null) {
+			// if the boundary is not empty list nor a single pixel
+			if (bounds.get(i) != null && bounds.get(i).size() > 1) {
 				// initial direction
 				dx = bounds.get(i).get(1)[0] - bounds.get(i).get(0)[0];
 				dy = bounds.get(i).get(1)[1] - bounds.get(i).get(0)[1];
@@ -376,6 +558,57 @@ abstract public class Connectivity2D {
 		return boundaryCoords;
 	}
 	
+	/**
+	 * The same as segmentBoundariesRaw(int[][], ...) on a flat row-major 
+	 * labelling, the points are listed in the same order
+	 * 
+	 * @param labels is the labelling int[Width*Height] indexed y*Width+x
+	 * @param width int width of the labelling
+	 * @param height int height of the labelling
+	 * @param nbLabels is number of all labelles in segmentation
+	 * @param neighbors defines relative position of neighbouring pixels 
+	 * @return int[nbPixels][nbDims] coordinates of the bordering points
+	 */
+	public static ArrayList<ArrayList<int[]>> segmentBoundariesRaw(final int[] labels, final int width, final int height, final int nbLabels, final int[][] neighbors) {
+		ArrayList<ArrayList<int[]>> boundaryCoords = new ArrayList<ArrayList<int[]>>();
+		for (int i=0; i<nbLabels; i++) {
+			boundaryCoords.add(i, new ArrayList<int[]>() );
+		}
+		// relative offsets of the neighbours in the flat array
+		int[] offsets = new int[neighbors.length];
+		for (int k=0; k<neighbors.length; k++) {
+			offsets[k] = neighbors[k][1]*width + neighbors[k][0];
+		}
+		final int last = (height-1)*width;
+		int k, idx;
+
+		// parallel first and last row
+		for ( int i = 0; i < width; i++ ) {
+			boundaryCoords.get(labels[i]).add(new int[]{i,0});
+			boundaryCoords.get(labels[last + i]).add(new int[]{i,height-1});
+		}
+		// parallel first and last column
+		for ( int i = 1; i < height-1; i++ ) {
+			boundaryCoords.get(labels[i*width]).add(new int[]{0,i});
+			boundaryCoords.get(labels[i*width + width-1]).add(new int[]{width-1,i});
+		}
+		
+		// inner pixels, see segmentBoundariesRaw(int[][], ...)
+		for (int i=1; i<width-1; i++) {
+			for (int j=1; j<height-1; j++) {
+				idx = j*width + i;
+				for (k=0; k<offsets.length; k++) {
+					if (labels[idx] != labels[ idx+offsets[k] ]) {
+						boundaryCoords.get(labels[idx]).add( new int[]{i, j} );
+						break;
+					}
+				}
+			}
+		}
+		
+		return boundaryCoords;
+	}
+	
 	
 	/**
 	 * static parameterization of 4-neighbor connectivity
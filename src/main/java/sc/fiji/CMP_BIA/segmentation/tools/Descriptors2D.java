@@ -6,9 +6,12 @@ package sc.fiji.CMP_BIA.segmentation.tools;
 import java.util.Arrays;
 
 import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+import sc.fiji.CMP_BIA.segmentation.structures.RegionProperties;
+import sc.fiji.CMP_BIA.tools.converters.ColourLUT;
 import sc.fiji.CMP_BIA.tools.converters.ConvertImage;
 import sc.fiji.CMP_BIA.transform.wavelets.HaarWavelets;
 import ij.ImagePlus;
+import ij.process.ImageProcessor;
 
 
 /**
@@ -70,9 +73,8 @@ public class Descriptors2D extends Descriptors<Labelling2D> {
 	 * and add then to the description vector (on the end of actual vector)
 	 */
 	public void computeColourMeanRGB () {
-		// reset counting pixels belongs to given clusters
-		int nbPixels[] = new int[nbSegments];
-		Arrays.fill(nbPixels, 0);
+		// number of pixels of each segment
+		int nbPixels[] = segmentation.getRegionProperties().getAreas();
 		// sum variable for colours
 		int[][] segmColour = new int[segmentation.getMaxLabel()+1][3];
 		for(int[] subarray : segmColour) {			Arrays.fill(subarray, 0);		}
@@ -89,7 +91,6 @@ public class Descriptors2D extends Descriptors<Labelling2D> {
 				segmColour[k][0] += c[0];
 				segmColour[k][1] += c[1];
 				segmColour[k][2] += c[2];
-				nbPixels[k] ++;
 			}
 		}
 		
@@ -102,10 +103,66 @@ public class Descriptors2D extends Descriptors<Labelling2D> {
 		}
 	}
 
+	/**
+	 * compute the colour descriptors in CIE LAB colour space for each segment 
+	 * as a mean value and add then to the description vector (on the end of 
+	 * actual vector), colours are converted by the shared lookup table
+	 */
+	public void computeColourMeanLAB () {
+		// number of pixels of each segment
+		int nbPixels[] = segmentation.getRegionProperties().getAreas();
+		// sum variable for colours
+		long[][] segmColour = new long[nbSegments][3];
+		int k; // segment index (local)
+		int val; // packed LAB value (local)
+		boolean gray = (image.getType() != ImagePlus.COLOR_RGB);
+		ImageProcessor ip = gray ? image.getProcessor().convertToByte(false) : image.getProcessor();
+		
+		// cycle over whole image and by labels add current value to given cluster center
+		for (int x=0; x<Width; x++ ) {
+			for (int y=0; y<Height; y++ ) {
+				k = segmentation.getLabel(x, y);
+				// gray level as the same value in all RGB channels
+				val = gray ? ColourLUT.lookup( ip.get(x, y) * 0x010101 ) : ColourLUT.lookup( ip.get(x, y) );
+				segmColour[k][0] += ColourLUT.getL(val);
+				segmColour[k][1] += ColourLUT.getA(val);
+				segmColour[k][2] += ColourLUT.getB(val);
+			}
+		}
+		
+		// cycle over all clusters and divide them by nb assigned pixels (get mean)
+		for (k=0; k<nbSegments; k++) {
+			if (nbPixels[k] == 0) {		continue;	}
+			feaures.get(k).add(  (float)segmColour[k][0] / (float)nbPixels[k] );
+			feaures.get(k).add(  (float)segmColour[k][1] / (float)nbPixels[k] );
+			feaures.get(k).add(  (float)segmColour[k][2] / (float)nbPixels[k] );
+		}
+	}
+
+	/**
+	 * add the shape descriptors of each segment - area, centroid and the 
+	 * second central moments, they are taken from the region properties 
+	 * of the segmentation without any pass over the image
+	 */
+	public void computeShape () {
+		RegionProperties rp = segmentation.getRegionProperties();
+		double[] c, m;
+		for (int k=0; k<nbSegments; k++) {
+			if (rp.getArea(k) == 0) {		continue;	}
+			c = rp.getCentroid(k);
+			m = rp.getSecondMoments(k);
+			feaures.get(k).add( (float) rp.getArea(k) );
+			feaures.get(k).add( (float) c[0] );
+			feaures.get(k).add( (float) c[1] );
+			feaures.get(k).add( (float) m[0] );
+			feaures.get(k).add( (float) m[1] );
+			feaures.get(k).add( (float) m[2] );
+		}
+	}
+
 	protected void computeColourMean (float[][][] img) {
-		// reset counting pixels belongs to given clusters
-		int nbPixels[] = new int[nbSegments];
-		Arrays.fill(nbPixels, 0);
+		// number of pixels of each segment
+		int nbPixels[] = segmentation.getRegionProperties().getAreas();
 		// sum variable for colours
 		int[][] segmColour = new int[segmentation.getMaxLabel()+1][3];
 		for(int[] subarray : segmColour) {			Arrays.fill(subarray, 0);		}
@@ -120,7 +177,6 @@ public class Descriptors2D extends Descriptors<Labelling2D> {
 				segmColour[k][0] += img[x][y][0];
 				segmColour[k][1] += img[x][y][1];
 				segmColour[k][2] += img[x][y][2];
-				nbPixels[k] ++;
 			}
 		}
 		
@@ -186,8 +242,8 @@ public class Descriptors2D extends Descriptors<Labelling2D> {
 		// init temporary variables
 		float[] tmp = new float[nbSegments];
 		Arrays.fill(tmp, 0);
-		int[] count = new int[nbSegments];
-		Arrays.fill(count, 0);
+		// number of pixels of each segment
+		int[] count = segmentation.getRegionProperties().getAreas();
 		int k, x, y;
 		// offsets, we assume half and half decomposition
 		int offsetX = haarFrame.length /scale;
@@ -208,8 +264,6 @@ public class Descriptors2D extends Descriptors<Labelling2D> {
 				tmp[k] += haarFrame[x][offsetY +y] * haarFrame[x][offsetY +y];
 				// region H*H
 				tmp[k] += haarFrame[offsetX +x][offsetY +y] * haarFrame[offsetX +x][offsetY +y];
-				// increment nb
-				count[k] ++;
 			}
 		}
 				
@@ -1,9 +1,26 @@
 package sc.fiji.CMP_BIA.tools;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
 import ij.Prefs;
 
 public class Threading {
 
+	// shared pool of workers reused by all parallel loops
+	private static ForkJoinPool pool = null;
+	// requested number of workers, zero means the ImageJ preferences
+	private static int nbThreads = 0;
+
+	/**
+	 * The body of a parallel loop which is called on disjoint sub-ranges
+	 * [begin, end) of the whole range, possibly from several threads at once
+	 * so it should not keep any state between calls.
+	 */
+	public static interface RangeTask {
+		public void run(int begin, int end);
+	}
 
 	/** 
 	 * Create a Thread[] array as large as the number of processors available. 
@@ -11,10 +28,84 @@ public class Threading {
      * http://repo.or.cz/w/trakem2.git?a=blob;f=mpi/fruitfly/general/MultiThreading.java;hb=HEAD 
      */  
     public static int nbAvailableThread() {  
-    	return Prefs.getThreads();
+    	return (nbThreads > 0) ? nbThreads : Prefs.getThreads();
         //return Runtime.getRuntime().availableProcessors();   
     } 
-    
+
+    /**
+     * Set the number of workers of the shared pool, the actual pool is
+     * replaced by a new one at the next parallel loop; the old one is not
+     * shut down since other threads may still submit into it, it finishes
+     * their tasks and its idle workers terminate by themselves
+     *
+     * @param n int number of workers, zero or less means to follow the ImageJ
+     * preferences (Edit > Options > Memory & Threads)
+     */
+    public static synchronized void setNbThreads(int n) {
+    	nbThreads = (n > 0) ? n : 0;
+    	if (pool != null && pool.getParallelism() != nbAvailableThread()) {
+    		pool = null;
+    	}
+    }
+
+    /**
+     * Returns the shared work-stealing pool, it is created at the first call
+     *
+     * @return ForkJoinPool shared pool
+     */
+    public static synchronized ForkJoinPool getPool() {
+    	if (pool == null) {
+    		pool = new ForkJoinPool( Math.max(1, nbAvailableThread()) );
+    	}
+    	return pool;
+    }
+
+    /**
+     * Run the body over range [begin, end) in parallel on the shared pool,
+     * the range is recursively split in halves till it is smaller then
+     * the grain; it returns when the whole range is done
+     *
+     * @param begin int start of the range (included)
+     * @param end int end of the range (excluded)
+     * @param grain int maximal size of a sub-range processed in a single call
+     * @param body RangeTask which is called on the sub-ranges
+     */
+    public static void parallelFor(int begin, int end, int grain, RangeTask body) {
+    	if (end <= begin) {		return;		}
+    	RangeAction action = new RangeAction(begin, end, Math.max(1, grain), body);
+    	// nested call from a worker only forks into the same pool
+    	if (ForkJoinTask.inForkJoinPool()) {
+    		action.invoke();
+    	} else {
+    		getPool().invoke(action);
+    	}
+    }
+
+    /**
+     * Run the body over range [begin, end) in parallel on the shared pool,
+     * the grain is chosen to give a few sub-ranges per worker
+     *
+     * @param begin int start of the range (included)
+     * @param end int end of the range (excluded)
+     * @param body RangeTask which is called on the sub-ranges
+     */
+    public static void parallelFor(int begin, int end, RangeTask body) {
+    	int grain = (end - begin) / (4 * nbAvailableThread());
+    	parallelFor(begin, end, grain, body);
+    }
+
+    /**
+     * Split range of size n into nbParts nearly equal parts
+     *
+     * @param n int size of the range
+     * @param nbParts int number of parts
+     * @param part int index of the part
+     * @return int start of the part, so the part is [split(p), split(p+1))
+     */
+    public static int split(int n, int nbParts, int part) {
+    	return (int) (((long) n * part) / nbParts);
+    }
+
     /** 
      * Start all given threads and wait on each of them until all are done. 
      * From Stephan Preibisch's Multithreading.java class. See: 
@@ -33,5 +124,32 @@ public class Threading {
             throw new RuntimeException(ie);  
         }  
     } 
-	
-}
\ No newline at end of file
+
+    /**
+     * Recursive splitting of a range into work-stealing tasks
+     */
+    @SuppressWarnings("serial")
+	private static class RangeAction extends RecursiveAction {
+    	private final int begin, end, grain;
+    	private final RangeTask body;
+
+    	RangeAction(int b, int e, int g, RangeTask t) {
+    		begin = b;
+    		end = e;
+    		grain = g;
+    		body = t;
+    	}
+
+    	@Override
+    	protected void compute() {
+    		if (end - begin <= grain) {
+    			body.run(begin, end);
+    		} else {
+    			int mid = (begin + end) >>> 1;
+    			invokeAll(new RangeAction(begin, mid, grain, body),
+    					new RangeAction(mid, end, grain, body));
+    		}
+    	}
+    }
+
+}
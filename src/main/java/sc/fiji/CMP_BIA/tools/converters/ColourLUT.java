@@ -0,0 +1,112 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.tools.converters;
+
+/**
+ * @class Colour lookup table
+ * @version 0.1
+ * @category image conversion
+ * 
+ * @brief Process-wide cache of the RGB to CIE LAB conversion (as 
+ * ConvertColour.rgb2lab) shared by all callers. It is a single int array 
+ * indexed by the 24-bit RGB value where each item keeps the packed LAB 
+ * values, so the lookup does not allocate anything, not even for 
+ * the missing items which are computed by LabConverter into locals. The table is allocated 
+ * at the first use and the items are computed lazily; concurrent threads may 
+ * compute the same item twice but they always write the same value.
+ * 
+ * @details packing: bit 30 marks a computed item, L in bits 20..29 and 
+ * A and B shifted by 512 in bits 10..19 and 0..9
+ */
+public final class ColourLUT {
+	// flag of computed items, zero means not computed yet
+	private static final int DONE = 1 << 30;
+	private static final int MASK = 0x3ff;
+	private static final int SHIFT = 512;
+	// the shared table - dim int[256*256*256]
+	private static volatile int[] table = null;
+
+	private ColourLUT() {
+	}
+
+	/**
+	 * @return int[] shared table, allocated at the first call
+	 */
+	private static int[] getTable() {
+		int[] t = table;
+		if (t == null) {
+			synchronized (ColourLUT.class) {
+				t = table;
+				if (t == null) {
+					t = new int[1 << 24];
+					table = t;
+				}
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * packed LAB value of given colour
+	 * 
+	 * @param rgb int colour as 0xRRGGBB, higher bits are ignored
+	 * @return int packed LAB, use getL(), getA() and getB()
+	 */
+	public static int lookup(int rgb) {
+		final int[] t = getTable();
+		rgb &= 0xffffff;
+		int v = t[rgb];
+		if (v == 0) {
+			// the scalar kernel gives the same values as ConvertColour.rgb2lab
+			v = DONE | LabConverter.rgb2labPacked(rgb, SHIFT);
+			t[rgb] = v;
+		}
+		return v;
+	}
+
+	/**
+	 * @param packed int packed LAB value
+	 * @return int L channel
+	 */
+	public static int getL(int packed) {
+		return (packed >> 20) & MASK;
+	}
+
+	/**
+	 * @param packed int packed LAB value
+	 * @return int A channel
+	 */
+	public static int getA(int packed) {
+		return ((packed >> 10) & MASK) - SHIFT;
+	}
+
+	/**
+	 * @param packed int packed LAB value
+	 * @return int B channel
+	 */
+	public static int getB(int packed) {
+		return (packed & MASK) - SHIFT;
+	}
+
+	/**
+	 * conversion RGB to LAB by pixel through the shared table
+	 * 
+	 * @param rgb int colour as 0xRRGGBB
+	 * @param lab int[3] is the array of values for LAB
+	 */
+	public static void rgb2lab(int rgb, int[] lab) {
+		int v = lookup(rgb);
+		lab[0] = getL(v);
+		lab[1] = getA(v);
+		lab[2] = getB(v);
+	}
+
+	/**
+	 * release the shared table, it will be created again when it is needed
+	 */
+	public static synchronized void release() {
+		table = null;
+	}
+
+}
@@ -57,49 +57,12 @@ abstract public class ConvertColour {
 	 */
 	static public void rgb2lab(float r, float g, float b, int[] lab) {
 		//http://www.brucelindbloom.com
-		  
-		float fx, fy, fz, xr, yr, zr;
-		float Ls, as, bs;
-		float eps = 216.f/24389.f;
-		float k = 24389.f/27.f;
-		   
-		float[] refXYZ = new float[]{0.964221f, 1.0f, 0.825211f};
-		
-		float[] xyz = new float[3];
-		rgb2xyz(r, g, b, xyz);
-		
-		// XYZ to Lab
-		xr = xyz[0]/refXYZ[0];
-		yr = xyz[1]/refXYZ[1];
-		zr = xyz[2]/refXYZ[2];
-				
-		if ( xr > eps ) {
-			fx =  (float) Math.pow(xr, 1/3.);
-		} else {
-			fx = (k * xr + 16.f) / 116.f;
-		}
-		if ( yr > eps ) {
-			fy =  (float) Math.pow(yr, 1/3.);
-		} else {
-			fy = (k * yr + 16.f) / 116.f;
-		}
-		if ( zr > eps ) {
-			fz =  (float) Math.pow(zr, 1/3.);
-		} else {
-			fz = (k * zr + 16.f) / 116f;
-		}
-		
-		Ls = ( 116 * fy ) - 16;
-		as = 500*(fx-fy);
-		bs = 200*(fy-fz);
-		
-		lab[0] = (int) (2.55f * Ls + 0.5f);
-		lab[1] = (int) (as + 0.5f); 
-		lab[2] = (int) (bs + 0.5f);       
+		// assuming sRGB (D65), the XYZ to LAB is shared with the fast kernel
+		LabConverter.linear2lab(LabConverter.linearise(r), LabConverter.linearise(g), LabConverter.linearise(b), lab);
 	} 
 	
 	/**
-	 * conversion RGB to LAB by pixel
+	 * conversion RGB to LAB by pixel, the gamma is taken from a table
 	 * 
 	 * @param R int value of red channel (0..255)
 	 * @param G int value of green channel (0..255)
@@ -107,7 +70,7 @@ abstract public class ConvertColour {
 	 * @param lab[3] is the array of values for LAB
 	 */
 	static public void rgb2lab(int R, int G, int B, int[] lab) {
-		rgb2lab(R/255f, G/255f, B/255f, lab);
+		LabConverter.rgb2lab(R, G, B, lab);
 	} 
 
 	/**
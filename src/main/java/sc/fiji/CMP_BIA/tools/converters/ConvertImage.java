@@ -4,6 +4,7 @@
 package sc.fiji.CMP_BIA.tools.converters;
 
 import sc.fiji.CMP_BIA.tools.Logging;
+import sc.fiji.CMP_BIA.tools.Threading;
 import ij.process.ImageProcessor;
 
 /**
@@ -14,9 +15,57 @@ import ij.process.ImageProcessor;
  * @category image conversion
  * 
  * @brief converting an image into different colour spaces
+ * 
+ * @details The pixels are read directly from the processor arrays 
+ * (getPixels) in row-major order, specialised for each processor type, and 
+ * the rows are converted in parallel. Each conversion has its own row loop 
+ * so the pixel body is compiled inline and not called per pixel.
  */
 abstract public class ConvertImage {
 
+	/**
+	 * packed RGB pixels of a colour processor
+	 * 
+	 * @param image is a ImageProcessor
+	 * @return int[width*height] the processor array (no copy) or a new one
+	 */
+	protected static int[] rgbPixels (final ImageProcessor image) {
+		Object px = image.getPixels();
+		if (px instanceof int[]) {
+			return (int[]) px;
+		}
+		// fallback for unknown processors
+		final int w = image.getWidth();
+		final int[] rgb = new int[w * image.getHeight()];
+		Threading.parallelFor(0, image.getHeight(), new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int y=begin; y<end; y++) {
+					for (int x=0, i=y*w; x<w; x++, i++) {
+						rgb[i] = image.get(x, y);
+					}
+				}
+			}
+		});
+		return rgb;
+	}
+	
+	/**
+	 * gray levels of a gray processor in range (0,255), the processor is 
+	 * scaled to 8 bits
+	 * 
+	 * @param image is a ImageProcessor
+	 * @return byte[width*height] the processor array (no copy) or a new one
+	 */
+	protected static byte[] grayPixels (final ImageProcessor image) {
+		Object px = image.getPixels();
+		if (px instanceof byte[]) {
+			return (byte[]) px;
+		}
+		px = image.convertToByte(false).getPixels();
+		return (byte[]) px;
+	}
+
 	/**
 	 * Convert whole image from RGB to LAB colour space
 	 * 
@@ -31,28 +80,30 @@ abstract public class ConvertImage {
 		}
 		
 		// create pixel buffer
-		int[][][] img = new int[image.getWidth()][image.getHeight()][3];
-		int c[] = null; // pixel values (local)
-		int lab[] = new int[3];
-		
-		for (int x=0; x<image.getWidth(); x++ ) {
-			for (int y=0; y<image.getHeight(); y++ ) {
-				c = image.getPixel(x, y, c); 
-				// Returns the pixel value at (x,y) as a 4 element array.
-				// RGB values are returned in the first 3 elements.
-		        ConvertColour.rgb2lab(c[0], c[1], c[2], lab);
-		        img[x][y][0] = lab[0];
-		        img[x][y][1] = lab[1];
-		        img[x][y][2] = lab[2];
+		final int w = image.getWidth();
+		final int[][][] img = new int[w][image.getHeight()][3];
+		final int[] rgb = rgbPixels(image);
+		
+		Threading.parallelFor(0, image.getHeight(), new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int c; // pixel value (local)
+				for (int y=begin; y<end; y++) {
+					for (int x=0, i=y*w; x<w; x++, i++) {
+						c = rgb[i];
+						ConvertColour.rgb2lab((c >> 16) & 0xff, (c >> 8) & 0xff, c & 0xff, img[x][y]);
+					}
+				}
 			}
-		}
+		});
 		
 		return img;
 	}
 
 	/**
 	 * Convert whole image from RGB to LAB colour space
-	 * this fast version save already computed colour so each is computed only once
+	 * this fast version takes already computed colours from the shared 
+	 * lookup table so each is computed only once per process
 	 * 
 	 * @param image is a ImageProcessor
 	 * @return int[width][height][3]
@@ -64,39 +115,206 @@ abstract public class ConvertImage {
 			return null;
 		}
 		
-		// saving already computed values
-		int[][][][] LUT = new int[256][256][256][];
 		Logging.logMsg(" -> fast rgb2LAB conversion");
 		
 		// create pixel buffer
-		int[][][] img = new int[image.getWidth()][image.getHeight()][3];
-		int c[] = null; // pixel values (local)
-		//int cRed, cGreed, cBlue;
-		int lab[] = new int[3];
-		
-		for (int x=0; x<image.getWidth(); x++ ) {
-			for (int y=0; y<image.getHeight(); y++ ) {
-				//cRed = (image.get(x, y) & 0xff0000)>>16;
-				//cGreed = (image.get(x, y) & 0x00ff00)>>8;
-				//cBlue = (image.get(x, y) & 0x0000ff);
-				c = image.getPixel(x, y, c); 
-				// Returns the pixel value at (x,y) as a 4 element array.
-				// RGB values are returned in the first 3 elements.
-				if (LUT[c[0]][c[1]][c[2]] == null) {
-					ConvertColour.rgb2lab(c[0], c[1], c[2], lab);
-					LUT[c[0]][c[1]][c[2]] = lab.clone();
-				} else {
-					lab = LUT[c[0]][c[1]][c[2]].clone();
+		final int w = image.getWidth();
+		final int[][][] img = new int[w][image.getHeight()][3];
+		final int[] rgb = rgbPixels(image);
+		
+		Threading.parallelFor(0, image.getHeight(), new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				for (int y=begin; y<end; y++) {
+					for (int x=0, i=y*w; x<w; x++, i++) {
+						ColourLUT.rgb2lab(rgb[i], img[x][y]);
+					}
 				}
-		        img[x][y][0] = lab[0];
-		        img[x][y][1] = lab[1];
-		        img[x][y][2] = lab[2];
 			}
-		}
+		});
 		
 		return img;
 	}
 	
+	/**
+	 * Convert whole image from RGB to LAB colour space into separate channel 
+	 * planes in row-major order, colours are taken from the shared lookup 
+	 * table
+	 * 
+	 * @param image is a ImageProcessor
+	 * @return float[3][width*height] planes of L, A and B
+	 */
+	public static float[][] rgb2cieLABplanes (final ImageProcessor image) {
+		int sz = image.getWidth() * image.getHeight();
+		return rgb2cieLABplanes(image, new float[3][sz]);
+	}
+	
+	/**
+	 * Convert whole image from RGB to LAB colour space into given channel 
+	 * planes, e.g. reused for many images of the same size
+	 * 
+	 * @param image is a ImageProcessor
+	 * @param planes float[3][width*height] output planes of L, A and B
+	 * @return float[3][width*height] the same planes
+	 */
+	public static float[][] rgb2cieLABplanes (final ImageProcessor image, final float[][] planes) {
+		// check if it is RGB image
+		if (image.getNChannels() != 3) {
+			System.out.println("Image is NOT RGB image, becase it has only "+ Integer.toString(image.getNChannels()) +" channels.");
+			return null;
+		}
+		
+		Logging.logMsg(" -> fast rgb2LAB conversion into planes");
+		
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		final float[] planeL = planes[0];
+		final float[] planeA = planes[1];
+		final float[] planeB = planes[2];
+		final int[] rgb = rgbPixels(image);
+		
+		Threading.parallelFor(0, h, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int val; // packed LAB value (local)
+				for (int i=begin*w; i<end*w; i++) {
+					val = ColourLUT.lookup(rgb[i]);
+					planeL[i] = ColourLUT.getL(val);
+					planeA[i] = ColourLUT.getA(val);
+					planeB[i] = ColourLUT.getB(val);
+				}
+			}
+		});
+		
+		return planes;
+	}
+	
+	/**
+	 * Convert whole gray image own colour space into separate channel planes 
+	 * in row-major order
+	 * 
+	 * @param image is a ImageProcessor
+	 * @return float[3][width*height] planes of L, A and B
+	 */
+	public static float[][] gray2cieLABplanes(final ImageProcessor image) {
+		// check if it is RGB image
+		if (image.getNChannels() != 1) {
+			System.out.println("Image is NOT gray image, becase it has only "+ Integer.toString(image.getNChannels()) +" channels.");
+			return null;
+		}
+		
+		// precompute all 256 gray levels
+		final int[][] LUT = new int[256][3];
+		for (int c=0; c<LUT.length; c++) {
+			ConvertColour.rgb2lab(c, c, c, LUT[c]);
+		}
+		
+		// create pixel buffer
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		final float[][] planes = new float[3][w*h];
+		final byte[] gray = grayPixels(image);
+		
+		// over all pixels
+		Threading.parallelFor(0, h, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int c; // pixel values (local)
+				for (int i=begin*w; i<end*w; i++) {
+					c = gray[i] & 0xff;
+					planes[0][i] = LUT[c][0];
+					planes[1][i] = LUT[c][1];
+					planes[2][i] = LUT[c][2];
+				}
+			}
+		});
+		
+		return planes;
+	}
+	
+	/**
+	 * Native intensities of a gray image as a single plane in row-major 
+	 * order, the 8-bit and 16-bit levels and 32-bit values are multiplied by 
+	 * the scale without any loss of the dynamic range
+	 * 
+	 * @param image is a ImageProcessor
+	 * @param scale float multiplier of the intensities
+	 * @return float[1][width*height] the intensity plane
+	 */
+	public static float[][] gray2planes(final ImageProcessor image, final float scale) {
+		int sz = image.getWidth() * image.getHeight();
+		return gray2planes(image, scale, new float[1][sz]);
+	}
+	
+	/**
+	 * Native intensities of a gray image into given plane, e.g. reused for 
+	 * many images of the same size
+	 * 
+	 * @param image is a ImageProcessor
+	 * @param scale float multiplier of the intensities
+	 * @param planes float[1][width*height] output intensity plane
+	 * @return float[1][width*height] the same plane
+	 */
+	public static float[][] gray2planes(final ImageProcessor image, final float scale, final float[][] planes) {
+		// check if it is gray image
+		if (image.getNChannels() != 1) {
+			System.out.println("Image is NOT gray image, becase it has only "+ Integer.toString(image.getNChannels()) +" channels.");
+			return null;
+		}
+		
+		final int w = image.getWidth();
+		final float[] plane = planes[0];
+		final Object px = image.getPixels();
+		Threading.RangeTask task;
+		
+		// specialised for each processor type
+		if (px instanceof byte[]) {
+			final byte[] pixels = (byte[]) px;
+			task = new Threading.RangeTask() {
+				@Override
+				public void run(int begin, int end) {
+					for (int i=begin*w; i<end*w; i++) {
+						plane[i] = (pixels[i] & 0xff) * scale;
+					}
+				}
+			};
+		} else if (px instanceof short[]) {
+			final short[] pixels = (short[]) px;
+			task = new Threading.RangeTask() {
+				@Override
+				public void run(int begin, int end) {
+					for (int i=begin*w; i<end*w; i++) {
+						plane[i] = (pixels[i] & 0xffff) * scale;
+					}
+				}
+			};
+		} else if (px instanceof float[]) {
+			final float[] pixels = (float[]) px;
+			task = new Threading.RangeTask() {
+				@Override
+				public void run(int begin, int end) {
+					for (int i=begin*w; i<end*w; i++) {
+						plane[i] = pixels[i] * scale;
+					}
+				}
+			};
+		} else {
+			task = new Threading.RangeTask() {
+				@Override
+				public void run(int begin, int end) {
+					for (int y=begin; y<end; y++) {
+						for (int x=0, i=y*w; x<w; x++, i++) {
+							plane[i] = image.getf(x, y) * scale;
+						}
+					}
+				}
+			};
+		}
+		Threading.parallelFor(0, image.getHeight(), task);
+		
+		return planes;
+	}
+	
 	/**
 	 * Convert whole gray image own colour space
 	 * 
@@ -110,43 +328,40 @@ abstract public class ConvertImage {
 			return null;
 		}
 		
-		// saving already computed values
-		int[][] LUT = new int[256][];
+		// precompute all 256 gray levels
+		final int[][] LUT = new int[256][3];
+		for (int c=0; c<LUT.length; c++) {
+			ConvertColour.rgb2lab(c, c, c, LUT[c]);
+		}
 		Logging.logMsg(" -> fast rgb2LAB conversion");
 				
 		// create pixel buffer
-		int[][][] img = new int[image.getWidth()][image.getHeight()][3];
-		int[] vals = new int[4];
-		int c; // pixel values (local)
-		//int cRed, cGreed, cBlue;
-		int lab[] = new int[3];
-		
-		image.convertToByte(false);
+		final int w = image.getWidth();
+		final int[][][] img = new int[w][image.getHeight()][3];
+		final byte[] gray = grayPixels(image);
 		
 		// over all pixels
-		for (int x=0; x<image.getWidth(); x++ ) {
-			for (int y=0; y<image.getHeight(); y++ ) {
-
-				c = image.getPixel(x, y, vals)[0];
-				
-				if (LUT[c] == null) {
-					ConvertColour.rgb2lab(c, c, c, lab);
-					LUT[c] = lab.clone();
-				} else {
-					lab = LUT[c].clone();
+		Threading.parallelFor(0, image.getHeight(), new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int[] lab; // colour of the gray level (local)
+				for (int y=begin; y<end; y++) {
+					for (int x=0, i=y*w; x<w; x++, i++) {
+						lab = LUT[gray[i] & 0xff];
+						img[x][y][0] = lab[0];
+						img[x][y][1] = lab[1];
+						img[x][y][2] = lab[2];
+					}
 				}
-		        img[x][y][0] = lab[0];
-		        img[x][y][1] = lab[1];
-		        img[x][y][2] = lab[2];
-				
 			}
-		}
+		});
 		
 		return img;
 	}
 	
 	/**
-	 * Convert whole gray image own colour space
+	 * Convert whole gray image own colour space, the values are the raw 
+	 * 8-bit or 16-bit gray levels or truncated values of 32-bit images
 	 * 
 	 * @param image is a ImageProcessor
 	 * @return int[width][height][1]
@@ -159,17 +374,61 @@ abstract public class ConvertImage {
 		}
 				
 		// create pixel buffer
-		int[][][] img = new int[image.getWidth()][image.getHeight()][1];
-		int[] vals = new int[4];
+		final int w = image.getWidth();
+		final int[][][] img = new int[w][image.getHeight()][1];
+		final Object px = image.getPixels();
+		Threading.RangeTask task;
 		
-		image.convertToByte(false);
-
-		// over all pixels
-		for (int x=0; x<image.getWidth(); x++ ) {
-			for (int y=0; y<image.getHeight(); y++ ) {
-				img[x][y][0] = image.getPixel(x, y, vals)[0];
-			}
+		// specialised for each processor type
+		if (px instanceof byte[]) {
+			final byte[] pixels = (byte[]) px;
+			task = new Threading.RangeTask() {
+				@Override
+				public void run(int begin, int end) {
+					for (int y=begin; y<end; y++) {
+						for (int x=0, i=y*w; x<w; x++, i++) {
+							img[x][y][0] = pixels[i] & 0xff;
+						}
+					}
+				}
+			};
+		} else if (px instanceof short[]) {
+			final short[] pixels = (short[]) px;
+			task = new Threading.RangeTask() {
+				@Override
+				public void run(int begin, int end) {
+					for (int y=begin; y<end; y++) {
+						for (int x=0, i=y*w; x<w; x++, i++) {
+							img[x][y][0] = pixels[i] & 0xffff;
+						}
+					}
+				}
+			};
+		} else if (px instanceof float[]) {
+			final float[] pixels = (float[]) px;
+			task = new Threading.RangeTask() {
+				@Override
+				public void run(int begin, int end) {
+					for (int y=begin; y<end; y++) {
+						for (int x=0, i=y*w; x<w; x++, i++) {
+							img[x][y][0] = (int) pixels[i];
+						}
+					}
+				}
+			};
+		} else {
+			task = new Threading.RangeTask() {
+				@Override
+				public void run(int begin, int end) {
+					for (int y=begin; y<end; y++) {
+						for (int x=0, i=y*w; x<w; x++, i++) {
+							img[x][y][0] = image.get(x, y);
+						}
+					}
+				}
+			};
 		}
+		Threading.parallelFor(0, image.getHeight(), task);
 		
 		return img;
 	}
@@ -188,16 +447,23 @@ abstract public class ConvertImage {
 		}
 		
 		// create pixel buffer
-		float[][] img = new float[image.getWidth()][image.getHeight()];		
-		int c[] = null; // pixel values (local)
+		final int w = image.getWidth();
+		final float[][] img = new float[w][image.getHeight()];		
+		final int[] rgb = rgbPixels(image);
 		
 		// cycle over whole image and by labels add current value to given cluster center
-		for (int x=0; x<image.getWidth(); x++ ) {
-			for (int y=0; y<image.getHeight(); y++ ) {
-				c = image.getPixel(x, y, c); 
-				img[x][y] = ConvertColour.rgb2bright(c[0], c[1], c[2]);
+		Threading.parallelFor(0, image.getHeight(), new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				int c; // pixel value (local)
+				for (int y=begin; y<end; y++) {
+					for (int x=0, i=y*w; x<w; x++, i++) {
+						c = rgb[i];
+						img[x][y] = ConvertColour.rgb2bright((c >> 16) & 0xff, (c >> 8) & 0xff, c & 0xff);
+					}
+				}
 			}
-		}
+		});
 		
 		return img;
 	}
@@ -0,0 +1,190 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.tools.converters;
+
+import sc.fiji.CMP_BIA.tools.Threading;
+
+/**
+ * @class LAB converter
+ * @version 0.1
+ * @category image conversion
+ *
+ * @brief High-throughput kernel of the RGB to CIE LAB conversion for 8-bit
+ * RGB pixels without any allocation or transcendental function per pixel.
+ * The sRGB gamma is expanded by a 256-entry table per channel level and the
+ * cube root is computed by two Halley iterations from a bit-level estimate.
+ * The batch conversion streams the pixels without the shared ColourLUT, so
+ * it does not need the 64MB table and scales with the number of workers;
+ * the table is still faster for images with a few repeating colours.
+ *
+ * @details The results are the same as by the original ConvertColour.rgb2lab
+ * with Math.pow - the table entries are computed by the same float formula
+ * and the cube root has relative error below 1e-14 in double (the initial
+ * estimate is within 3.2% and each Halley step cubes the error), which is
+ * far under the float precision of the outputs; all 2^24 colours give
+ * the same LAB values. The L channel is scaled to range (0,255) and all
+ * channels are rounded as by rgb2lab.
+ */
+public final class LabConverter {
+	// D50 reference white
+	private static final float REF_X = 0.964221f, REF_Y = 1.0f, REF_Z = 0.825211f;
+	// CIE constants of the linear part near black
+	private static final float EPS = 216.f/24389.f;
+	private static final float KAPPA = 24389.f/27.f;
+	// linear sRGB intensity of all 8-bit levels - dim float[256]
+	private static final float[] LINEAR = new float[256];
+
+	static {
+		for (int v=0; v<LINEAR.length; v++) {
+			LINEAR[v] = linearise(v/255f);
+		}
+	}
+
+	private LabConverter() {
+	}
+
+	/**
+	 * the sRGB gamma expansion, the same as in ConvertColour.rgb2xyz
+	 *
+	 * @param c float value of a channel (0..1)
+	 * @return float linear intensity
+	 */
+	static float linearise(float c) {
+		if (c <= 0.04045) {
+			return c/12;
+		}
+		return (float) Math.pow((c+0.055)/1.055,2.4);
+	}
+
+	/**
+	 * Fast cube root of positive normal numbers, the relative error is below
+	 * 1e-14 so after rounding to float it is practically the same as Math.cbrt
+	 *
+	 * @param x double positive value
+	 * @return double cube root
+	 */
+	public static double cbrt(double x) {
+		// divide the exponent by 3 on the bits, up to 3.2% error
+		double y = Double.longBitsToDouble(Double.doubleToRawLongBits(x) / 3 + 0x2A9F7893782DA1CEL);
+		double y3;
+		// two Halley steps, 3.3e-5 and 1e-14
+		y3 = y*y*y;
+		y = y * (y3 + 2*x) / (2*y3 + x);
+		y3 = y*y*y;
+		y = y * (y3 + 2*x) / (2*y3 + x);
+		return y;
+	}
+
+	/**
+	 * the nonlinear function of the XYZ to LAB conversion
+	 *
+	 * @param t float relative XYZ value
+	 * @return float
+	 */
+	private static float labF(float t) {
+		if (t > EPS) {
+			return (float) cbrt(t);
+		}
+		return (KAPPA * t + 16.f) / 116.f;
+	}
+
+	/**
+	 * conversion of linear RGB to LAB by pixel
+	 *
+	 * @param r float linear red intensity
+	 * @param g float linear green intensity
+	 * @param b float linear blue intensity
+	 * @param lab[3] is the array of values for LAB
+	 */
+	static void linear2lab(float r, float g, float b, int[] lab) {
+		float fx = labF( (0.436052025f*r + 0.385081593f*g + 0.143087414f*b) / REF_X );
+		float fy = labF( (0.222491598f*r + 0.71688606f *g + 0.060621486f*b) / REF_Y );
+		float fz = labF( (0.013929122f*r + 0.097097002f*g + 0.71418547f *b) / REF_Z );
+		lab[0] = (int) (2.55f * (( 116 * fy ) - 16) + 0.5f);
+		lab[1] = (int) (500*(fx-fy) + 0.5f);
+		lab[2] = (int) (200*(fy-fz) + 0.5f);
+	}
+
+	/**
+	 * conversion RGB to LAB by pixel
+	 *
+	 * @param R int value of red channel (0..255)
+	 * @param G int value of green channel (0..255)
+	 * @param B int value of blue channel (0..255)
+	 * @param lab[3] is the array of values for LAB
+	 */
+	public static void rgb2lab(int R, int G, int B, int[] lab) {
+		linear2lab(LINEAR[R], LINEAR[G], LINEAR[B], lab);
+	}
+
+	/**
+	 * conversion RGB to LAB by pixel packed into a single int as in ColourLUT, 
+	 * L in bits 20..29 and A and B shifted by given offset in bits 10..19 
+	 * and 0..9
+	 *
+	 * @param rgb int colour as 0xRRGGBB
+	 * @param shift int offset of the A and B channels
+	 * @return int packed LAB
+	 */
+	static int rgb2labPacked(int rgb, int shift) {
+		final float r = LINEAR[(rgb >> 16) & 0xff];
+		final float g = LINEAR[(rgb >> 8) & 0xff];
+		final float bl = LINEAR[rgb & 0xff];
+		float fx = labF( (0.436052025f*r + 0.385081593f*g + 0.143087414f*bl) / REF_X );
+		float fy = labF( (0.222491598f*r + 0.71688606f *g + 0.060621486f*bl) / REF_Y );
+		float fz = labF( (0.013929122f*r + 0.097097002f*g + 0.71418547f *bl) / REF_Z );
+		int L = (int) (2.55f * (( 116 * fy ) - 16) + 0.5f);
+		int a = (int) (500*(fx-fy) + 0.5f);
+		int b = (int) (200*(fy-fz) + 0.5f);
+		return (L << 20) | ((a + shift) << 10) | (b + shift);
+	}
+
+	/**
+	 * Convert packed RGB pixels in range [begin, end) into LAB planes
+	 *
+	 * @param rgb int[] packed RGB pixels
+	 * @param begin int first pixel
+	 * @param end int pixel after the last one
+	 * @param L float[] output plane of L, the same size as rgb
+	 * @param a float[] output plane of A
+	 * @param b float[] output plane of B
+	 */
+	public static void convert(final int[] rgb, final int begin, final int end, final float[] L, final float[] a, final float[] b) {
+		final float[] lin = LINEAR;
+		float r, g, bl, fx, fy, fz;
+		int c;
+		for (int i=begin; i<end; i++) {
+			c = rgb[i];
+			r = lin[(c >> 16) & 0xff];
+			g = lin[(c >> 8) & 0xff];
+			bl = lin[c & 0xff];
+			fx = labF( (0.436052025f*r + 0.385081593f*g + 0.143087414f*bl) / REF_X );
+			fy = labF( (0.222491598f*r + 0.71688606f *g + 0.060621486f*bl) / REF_Y );
+			fz = labF( (0.013929122f*r + 0.097097002f*g + 0.71418547f *bl) / REF_Z );
+			L[i] = (int) (2.55f * (( 116 * fy ) - 16) + 0.5f);
+			a[i] = (int) (500*(fx-fy) + 0.5f);
+			b[i] = (int) (200*(fy-fz) + 0.5f);
+		}
+	}
+
+	/**
+	 * Convert all packed RGB pixels into LAB planes in parallel
+	 *
+	 * @param rgb int[] packed RGB pixels
+	 * @param L float[] output plane of L, the same size as rgb
+	 * @param a float[] output plane of A
+	 * @param b float[] output plane of B
+	 */
+	public static void convert(final int[] rgb, final float[] L, final float[] a, final float[] b) {
+		// blocks of pixels big enough to amortise the scheduling
+		final int block = 1 << 14;
+		Threading.parallelFor(0, (rgb.length + block - 1) / block, new Threading.RangeTask() {
+			@Override
+			public void run(int begin, int end) {
+				convert(rgb, begin*block, Math.min(end*block, rgb.length), L, a, b);
+			}
+		});
+	}
+
+}
@@ -0,0 +1,77 @@
+/**
+ * @file
+ */
+package sc.fiji.CMP_BIA.segmentation.superpixels;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * @class Vector assignment kernel
+ * @version 0.1
+ * @category image segmentation
+ *
+ * @brief SIMD version of the SLIC assignment kernel using the incubator
+ * Vector API, a row segment of the cluster window is processed per vector
+ * operation and the rest of the row by the scalar loop. The operations are
+ * done in the same order as in the scalar kernel so the results are equal.
+ */
+final class VectorAssignmentKernel implements AssignmentKernel {
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, FLOATS.vectorShape());
+
+	@Override
+	public void assign(PixelBuffer2D buf, int k, float cL, float cA, float cB, float wc,
+			float[] distGrid, int g0, int sz, int xB, int xE, int yB, int yE) {
+		final float[] imgL = buf.planes[0];
+		final float[] imgA = buf.planes[1];
+		final float[] imgB = buf.planes[2];
+		final int[] labels = buf.labels;
+		final float[] distances = buf.distances;
+		final int width = buf.width;
+		final int len = xE - xB;
+		final int bound = FLOATS.loopBound(len);
+		final FloatVector vL = FloatVector.broadcast(FLOATS, cL);
+		final FloatVector vA = FloatVector.broadcast(FLOATS, cA);
+		final FloatVector vB = FloatVector.broadcast(FLOATS, cB);
+		final FloatVector vW = FloatVector.broadcast(FLOATS, wc);
+		final IntVector vK = IntVector.broadcast(INTS, k);
+		int i, g, j;
+		float dL, dA, dB, dist;
+
+		for (int y=yB; y<yE; y++) {
+			i = y*width + xB;
+			g = g0 + (y-yB)*sz;
+			for (j=0; j<bound; j+=FLOATS.length()) {
+				FloatVector d = FloatVector.fromArray(FLOATS, imgL, i+j).sub(vL);
+				FloatVector dLAB = d.mul(d);
+				d = FloatVector.fromArray(FLOATS, imgA, i+j).sub(vA);
+				dLAB = dLAB.add(d.mul(d));
+				d = FloatVector.fromArray(FLOATS, imgB, i+j).sub(vB);
+				dLAB = dLAB.add(d.mul(d));
+				FloatVector vDist = dLAB.mul(vW).add(FloatVector.fromArray(FLOATS, distGrid, g+j));
+				FloatVector vOld = FloatVector.fromArray(FLOATS, distances, i+j);
+				VectorMask<Float> closer = vDist.lt(vOld);
+				if (closer.anyTrue()) {
+					// blend and store whole vectors, masked stores are slow without AVX-512
+					vOld.blend(vDist, closer).intoArray(distances, i+j);
+					IntVector.fromArray(INTS, labels, i+j).blend(vK, closer.cast(INTS)).intoArray(labels, i+j);
+				}
+			}
+			// the rest of the row
+			for (; j<len; j++) {
+				dL = imgL[i+j]-cL;
+				dA = imgA[i+j]-cA;
+				dB = imgB[i+j]-cB;
+				dist = wc * ((dL * dL) + (dA * dA) + (dB * dB)) + distGrid[g+j];
+				if (dist < distances[i+j]) {
+					labels[i+j] = k;
+					distances[i+j] = dist;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+package sc.fiji.CMP_BIA.segmentation;
+
+import ij.ImagePlus;
+
+import sc.fiji.CMP_BIA.segmentation.superpixels.jSLIC;
+import sc.fiji.CMP_BIA.tools.Prints;
+
+/**
+ * @class Benchmark SLIC
+ * @version 0.1
+ * @category image segmentation
+ * 
+ * @brief Timings of the SLIC variants on a large image, they are not part 
+ * of the unit tests (the class name does not match the tests) and they are 
+ * run manually by the main method.
+ */
+public class BenchmarkSLIC {
+
+	/**
+	 * compare the processing time on the image pyramid levels
+	 * 
+	 * @param im ImagePlus input image
+	 */
+	public static void benchmarkPyramid(ImagePlus im) {
+		Prints.printTitle("SLIC pyramid benchmark");
+
+		long[] times = new long[3];
+		int[] nbLabels = new int[3];
+		for (int level=0; level<3; level++) {
+			// the first run is the warm-up
+			for (int rep=0; rep<2; rep++) {
+				jSLIC slic = new jSLIC(im);
+				slic.setPyramid(level, 1);
+				long start = System.currentTimeMillis();
+				slic.process(40, 0.2f);
+				times[level] = System.currentTimeMillis() - start;
+				nbLabels[level] = slic.getNbLabels();
+			}
+			System.out.println("pyramid levels " + level + ": " + times[level] + "ms, " + nbLabels[level] + " superpixels");
+		}
+	}
+
+	/**
+	 * compare the processing time of the SIMD assignment kernel and the 
+	 * scalar one, the SIMD kernel runs only with 
+	 * "--add-modules jdk.incubator.vector"
+	 * 
+	 * @param im ImagePlus input image
+	 */
+	public static void benchmarkVectorKernel(ImagePlus im) {
+		Prints.printTitle("SLIC SIMD kernel benchmark");
+
+		long[] times = new long[2];
+		for (int v=0; v<2; v++) {
+			// the first run is the warm-up
+			for (int rep=0; rep<2; rep++) {
+				jSLIC slic = new jSLIC(im);
+				slic.setVectorKernel(v == 1);
+				long start = System.currentTimeMillis();
+				slic.process(20, 0.2f);
+				times[v] = System.currentTimeMillis() - start;
+			}
+		}
+		System.out.println("scalar kernel: " + times[0] + "ms, SIMD kernel (if available): " + times[1] + "ms");
+	}
+
+	/**
+	 * @param args String[] unused
+	 */
+	public static void main(String[] args) {
+		ImagePlus im = TestSLIC.createSynthetic(2048, 2048);
+		benchmarkPyramid(im);
+		benchmarkVectorKernel(im);
+	}
+
+}
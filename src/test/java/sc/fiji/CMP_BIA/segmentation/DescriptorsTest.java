@@ -84,4 +84,23 @@ public class DescriptorsTest {
 		}
 	}
 	
+	/**
+	 * 
+	 */
+	@Test
+	public void test_ColourLAB() {
+		Prints.printTitle("Colour LAB Descriptors");
+		
+		if (img != null) {
+			assert (segm != null);
+			
+			desc = new Descriptors2D(img, segm);
+			desc.computeColourMeanLAB();
+	
+			desc.show();
+		} else {
+			System.out.println("ERROR: resources image '"+path+"' was not found!");
+		}
+	}
+	
 }
@@ -4,13 +4,24 @@
 package sc.fiji.CMP_BIA.segmentation;
 
 import java.awt.Color;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
 
 import ij.ImagePlus;
+import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 
 import org.junit.Test;
 
 import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+import sc.fiji.CMP_BIA.segmentation.structures.LabellingRLE2D;
+import sc.fiji.CMP_BIA.segmentation.structures.LabellingWriter;
+import sc.fiji.CMP_BIA.segmentation.structures.RegionProperties;
 import sc.fiji.CMP_BIA.segmentation.tools.Connectivity2D;
 import sc.fiji.CMP_BIA.tools.Prints;
 
@@ -116,4 +127,270 @@ public class LabellingTest {
 						
 	}
 
+	@Test
+	public void test_labelling2Dflat() {
+		Prints.printTitle("Labelling 2D - flat wrapper");
+		final int[][] data = segmMedium;
+		final int w = data.length, h = data[0].length;
+		// flat row-major copy of the matrix
+		int[] flat = new int[w*h];
+		for (int x=0; x<w; x++) {
+			for (int y=0; y<h; y++) {
+				flat[y*w + x] = data[x][y];
+			}
+		}
+		Labelling2D lb = new Labelling2D(flat, w, h);
+		Labelling2D lbRef = new Labelling2D(data);
+
+		// the labels are shared, not copied
+		assert lb.getLabels() == flat;
+		assert lb.getMaxLabel() == lbRef.getMaxLabel();
+		assert Arrays.equals(lb.getLabelHist(), lbRef.getLabelHist());
+		assert lb.getLabel(3, 7) == data[3][7];
+
+		// the flat connectivity gives the same as on the matrix
+		assert equalBounds(lb.findElementsBoundaries(Connectivity2D.CONNECT4), 
+				Connectivity2D.segmentBoundariesRaw(data, lbRef.getMaxLabel()+1, Connectivity2D.CONNECT4));
+		assert equalBounds(Connectivity2D.segmentBoundaries(flat, w, h, lb.getMaxLabel()+1), 
+				Connectivity2D.segmentBoundaries(data, lbRef.getMaxLabel()+1));
+		assert Arrays.deepEquals(lb.findSegmentsConnectivity(Connectivity2D.CONNECT8), 
+				lbRef.findSegmentsConnectivity(Connectivity2D.CONNECT8));
+		assert Arrays.deepEquals(lb.findMultiClassBoundaryPoints(Connectivity2D.CONNECT4), 
+				lbRef.findMultiClassBoundaryPoints(Connectivity2D.CONNECT4));
+		assert Arrays.deepEquals(lb.overlaps(lbRef, new int[]{1,-1}), lbRef.overlaps(lbRef, new int[]{1,-1}));
+
+		// the image of labels and the view sharing the array
+		ImageProcessor ip = lb.toImageProcessor();
+		assert ip instanceof ShortProcessor;
+		assert ip.get(5, 9) == data[5][9];
+		assert lb.toColorProcessor().getPixels() == flat;
+		lb.setLabel(5, 9, 6);
+		assert ip.get(5, 9) == 6 && flat[9*w + 5] == 6;
+
+		// the copy is independent
+		Labelling2D cp = lb.copy();
+		assert cp.getLabels() != flat;
+		cp.setLabel(5, 9, 1);
+		assert lb.getLabel(5, 9) == 6 && cp.getLabel(5, 9) == 1;
+	}
+
+	/**
+	 * compare two lists of boundaries point by point
+	 */
+	private static boolean equalBounds(ArrayList<ArrayList<int[]>> a, ArrayList<ArrayList<int[]>> b) {
+		if (a.size() != b.size()) {		return false;		}
+		for (int i=0; i<a.size(); i++) {
+			if (a.get(i) == null || b.get(i) == null) {
+				if (a.get(i) != b.get(i)) {		return false;		}
+				continue;
+			}
+			if (a.get(i).size() != b.get(i).size()) {		return false;		}
+			for (int j=0; j<a.get(i).size(); j++) {
+				if (! Arrays.equals(a.get(i).get(j), b.get(i).get(j))) {		return false;		}
+			}
+		}
+		return true;
+	}
+
+	@Test
+	public void test_labellingRLE() {
+		Prints.printTitle("Labelling RLE 2D");
+		// blocky labelling with a few irregular parts
+		final int w = 120, h = 90;
+		Random rnd = new Random(7);
+		int[] flat = new int[w*h];
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				flat[y*w + x] = (y/15)*8 + (x+(y%7))/16;
+			}
+		}
+		for (int k=0; k<40; k++) {
+			flat[rnd.nextInt(flat.length)] = 1;
+		}
+		Labelling2D lb = new Labelling2D(flat, w, h);
+		LabellingRLE2D rle = new LabellingRLE2D(lb);
+		System.out.println("runs: " + rle.getNbRuns() + " for " + (w*h) + " pixels");
+		assert rle.getNbRuns() < w*h / 5;
+
+		assert rle.getMaxLabel() == lb.getMaxLabel();
+		assert Arrays.equals(rle.getLabelHist(), lb.getLabelHist());
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				assert rle.getLabel(x, y) == lb.getLabel(x, y);
+			}
+		}
+		assert Arrays.equals(rle.toLabelling2D().getLabels(), flat);
+
+		// the same results as on the pixels up to the order
+		for (int[][] connect : new int[][][]{Connectivity2D.CONNECT4, Connectivity2D.CONNECT8}) {
+			ArrayList<ArrayList<int[]>> bA = rle.findElementsBoundaries(connect);
+			ArrayList<ArrayList<int[]>> bB = lb.findElementsBoundaries(connect);
+			for (int i=0; i<bA.size(); i++) {
+				assert Arrays.deepEquals(sortedPoints(bA.get(i)), sortedPoints(bB.get(i)));
+			}
+			int[][] nA = rle.findSegmentsConnectivity(connect);
+			int[][] nB = lb.findSegmentsConnectivity(connect);
+			for (int i=0; i<nB.length; i++) {
+				Arrays.sort(nB[i]);
+			}
+			assert Arrays.deepEquals(nA, nB);
+		}
+		int[] shift = new int[]{3,-5};
+		assert Arrays.deepEquals(rle.overlaps(rle, shift), lb.overlaps(lb, shift));
+
+		// relabel merges the runs
+		int[] lut = new int[rle.getMaxLabel()+1];
+		for (int i=0; i<lut.length; i++) {
+			lut[i] = i / 2;
+		}
+		int nbRuns = rle.getNbRuns();
+		LabellingRLE2D rle2 = (LabellingRLE2D) rle.clone();
+		rle2.reLabel(lut);
+		lb.reLabel(lut);
+		assert rle2.getNbRuns() < nbRuns && rle.getNbRuns() == nbRuns;
+		assert Arrays.equals(rle2.getLabelHist(), lb.computeHistogram());
+		assert Arrays.equals(rle2.toLabelling2D().getLabels(), lb.getLabels());
+	}
+
+	/**
+	 * the points sorted by rows
+	 */
+	private static int[][] sortedPoints(ArrayList<int[]> pts) {
+		int[][] a = pts.toArray(new int[pts.size()][]);
+		Arrays.sort(a, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] p, int[] q) {
+				return (p[1] != q[1]) ? p[1] - q[1] : p[0] - q[0];
+			}
+		});
+		return a;
+	}
+
+	@Test
+	public void test_regionProperties() {
+		Prints.printTitle("Region properties");
+		final int w = 150, h = 110;
+		Random rnd = new Random(3);
+		int[] flat = new int[w*h];
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				flat[y*w + x] = (y/20)*9 + (x+(y%5))/17;
+			}
+		}
+		for (int k=0; k<30; k++) {
+			flat[rnd.nextInt(flat.length)] = 2;
+		}
+		Labelling2D lb = new Labelling2D(flat, w, h);
+		RegionProperties rp = lb.getRegionProperties();
+		assert rp == lb.getRegionProperties();
+		assert Arrays.equals(rp.getAreas(), lb.getLabelHist());
+
+		// compare to the direct sums over pixels
+		for (int l=0; l<rp.getNbRegions(); l++) {
+			double n = 0, sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+			int[] bbox = new int[]{w, h, -1, -1};
+			for (int y=0; y<h; y++) {
+				for (int x=0; x<w; x++) {
+					if (flat[y*w + x] != l) {	continue;	}
+					n ++;	sx += x;	sy += y;
+					sxx += x*x;		syy += y*y;		sxy += x*y;
+					bbox = new int[]{Math.min(bbox[0], x), Math.min(bbox[1], y), Math.max(bbox[2], x), Math.max(bbox[3], y)};
+				}
+			}
+			assert rp.getArea(l) == n;
+			if (n == 0) {
+				assert rp.getBoundingBox(l) == null;
+				continue;
+			}
+			assert Arrays.equals(rp.getBoundingBox(l), bbox);
+			double[] c = rp.getCentroid(l), m = rp.getSecondMoments(l);
+			assert Math.abs(c[0] - sx/n) < 1e-9 && Math.abs(c[1] - sy/n) < 1e-9;
+			assert Math.abs(m[0] - (sxx/n - c[0]*c[0])) < 1e-6;
+			assert Math.abs(m[1] - (syy/n - c[1]*c[1])) < 1e-6;
+			assert Math.abs(m[2] - (sxy/n - c[0]*c[1])) < 1e-6;
+			assert lb.getRegionIndexes(l).length == n;
+		}
+		// the same from the runs
+		RegionProperties rpRLE = new LabellingRLE2D(lb).getRegionProperties();
+		for (int l=0; l<rp.getNbRegions(); l++) {
+			assert rp.getArea(l) == rpRLE.getArea(l);
+			assert Arrays.equals(rp.getBoundingBox(l), rpRLE.getBoundingBox(l));
+			assert Arrays.equals(rp.getSecondMoments(l), rpRLE.getSecondMoments(l));
+		}
+
+		// the boundaries started from the bounding boxes are the same
+		ArrayList<ArrayList<int[]>> bounds = Connectivity2D.segmentBoundaries(flat, w, h, rp.getNbRegions());
+		Connectivity2D.simplifyPolygon(bounds);
+		assert equalBounds(lb.findElementsBoundariesPolygon(), bounds);
+		assert equalBounds(new ArrayList<ArrayList<int[]>>(Arrays.asList(lb.findElementBoundaryPolygon(5))), 
+				new ArrayList<ArrayList<int[]>>(Arrays.asList(bounds.get(5))));
+
+		// the changes drop the cached table
+		int l0 = lb.getLabel(40, 30);
+		lb.setLabel(40, 30, 0);
+		assert lb.getRegionProperties() != rp;
+		assert lb.getRegionProperties().getArea(l0) == rp.getArea(l0) - 1;
+		rp = lb.getRegionProperties();
+		int[] lut = new int[lb.getMaxLabel()+1];
+		lb.reLabel(lut);
+		assert lb.getRegionProperties() != rp && lb.getRegionProperties().getArea(0) == w*h;
+	}
+
+	@Test
+	public void test_labellingIO() throws IOException {
+		Prints.printTitle("Labelling binary IO");
+		final int w = 300, h = 200;
+		int[] compressions = new int[]{LabellingWriter.COMPRESS_NONE, LabellingWriter.COMPRESS_RLE, 
+				LabellingWriter.COMPRESS_DEFLATE, LabellingWriter.COMPRESS_RLE | LabellingWriter.COMPRESS_DEFLATE};
+		Path path = Files.createTempFile("labelling", ".lbl");
+		try {
+			// labels of 8, 16 and 32 bits
+			for (int scale : new int[]{1, 300, 100000}) {
+				int[] flat = new int[w*h];
+				for (int y=0; y<h; y++) {
+					for (int x=0; x<w; x++) {
+						flat[y*w + x] = ((y/25)*13 + (x+(y%3))/23) * scale;
+					}
+				}
+				Labelling2D lb = new Labelling2D(flat, w, h);
+				long sizeRaw = 0;
+				for (int c : compressions) {
+					lb.save(path, c);
+					long size = Files.size(path);
+					System.out.println("max label " + lb.getMaxLabel() + ", compression " + c + ": " + size + " bytes");
+					if (c == LabellingWriter.COMPRESS_NONE) {
+						sizeRaw = size;
+					} else {
+						assert size < sizeRaw / 5;
+					}
+					Labelling2D lb2 = Labelling2D.load(path);
+					assert Arrays.equals(lb2.getDims(), lb.getDims());
+					assert lb2.getMaxLabel() == lb.getMaxLabel();
+					assert Arrays.equals(lb2.getLabels(), flat);
+				}
+			}
+
+			// streaming by rows and the check of the number of rows
+			int[] row = new int[w];
+			LabellingWriter writer = new LabellingWriter(path, w, h, 1, LabellingWriter.COMPRESS_RLE);
+			for (int y=0; y<h; y++) {
+				Arrays.fill(row, y % 2);
+				writer.writeRow(row, 0);
+			}
+			writer.close();
+			assert Labelling2D.load(path).getLabel(5, 7) == 1;
+			writer = new LabellingWriter(path, w, h, 1, LabellingWriter.COMPRESS_NONE);
+			writer.writeRow(row, 0);
+			boolean failed = false;
+			try {
+				writer.close();
+			} catch (IOException e) {
+				failed = true;
+			}
+			assert failed;
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
 }
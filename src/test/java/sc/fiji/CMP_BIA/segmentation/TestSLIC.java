@@ -1,13 +1,38 @@
 package sc.fiji.CMP_BIA.segmentation;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import sc.fiji.CMP_BIA.segmentation.structures.Labelling2D;
+import sc.fiji.CMP_BIA.segmentation.superpixels.EPFLSLICEngine;
+import sc.fiji.CMP_BIA.segmentation.superpixels.HyperstackSLIC;
+import sc.fiji.CMP_BIA.segmentation.superpixels.JSLICEngine;
+import sc.fiji.CMP_BIA.segmentation.superpixels.IterationListener;
+import sc.fiji.CMP_BIA.segmentation.superpixels.IterationStats;
+import sc.fiji.CMP_BIA.segmentation.superpixels.PixelBuffer2D;
+import sc.fiji.CMP_BIA.segmentation.superpixels.RawTileSource;
+import sc.fiji.CMP_BIA.segmentation.superpixels.StackSLIC;
+import sc.fiji.CMP_BIA.segmentation.superpixels.SuperpixelEngine;
+import sc.fiji.CMP_BIA.segmentation.superpixels.TileSource;
+import sc.fiji.CMP_BIA.segmentation.superpixels.TiledSLIC;
 import sc.fiji.CMP_BIA.segmentation.superpixels.jSLIC;
+import sc.fiji.CMP_BIA.segmentation.superpixels.jSLICf;
 import sc.fiji.CMP_BIA.tools.Prints;
 
 
@@ -48,4 +73,717 @@ public class TestSLIC {
 		
 	}
 
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLICbuffer() {
+		Prints.printTitle("SLIC pixel buffer");
+
+		if (img != null) {
+		
+			sp = new jSLIC(img);
+			PixelBuffer2D buf = sp.getBuffer();
+			int[][][] lab = sp.getImage();
+			assert (lab.length == img.getWidth() && lab[0].length == img.getHeight());
+			// the compatibility view has to agree with the flat planes
+			int x = img.getWidth()/2, y = img.getHeight()/2;
+			for (int c=0; c<buf.getNbChannels(); c++) {
+				assert (lab[x][y][c] == Math.round(buf.getPlanes()[c][buf.index(x, y)]));
+			}
+			sp.process(3, 0.2f);
+			assert (sp.getSegmentation().getDims()[0] == img.getWidth());
+		
+		} else {
+			System.out.println("ERROR: resources image '"+path+"' was not found!");
+		}
+		
+	}
+
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLICincremental() {
+		Prints.printTitle("SLIC incremental assignment");
+
+		if (img != null) {
+		
+			sp = new jSLIC(img);
+			sp.process(3, 0.2f);
+			int[] full = sp.getBuffer().getLabels().clone();
+			// with zero tolerance the result has to be the same
+			jSLIC spInc = new jSLIC(img);
+			spInc.setIncremental(true, 0.f);
+			spInc.process(3, 0.2f);
+			assert (Arrays.equals(full, spInc.getBuffer().getLabels()));
+			assert (spInc.getSkippedFraction() >= 0 && spInc.getSkippedFraction() <= 1);
+		
+		} else {
+			System.out.println("ERROR: resources image '"+path+"' was not found!");
+		}
+		
+	}
+
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLICconvergence() {
+		Prints.printTitle("SLIC convergence statistics");
+
+		ImagePlus im = createSynthetic(400, 300);
+		// without the STOP criterion of the residual
+		sp = new jSLIC(im) {
+			{	errTreshold = 0.f;	}
+		};
+		final jSLIC spRef = sp;
+		final int[] last = new int[400*300];
+		final boolean[] counted = {true};
+		sp.addIterationListener(new IterationListener() {
+			@Override
+			public void iterationDone(IterationStats stats) {
+				System.out.println(stats.toString());
+				// the relabelled pixels against the previous iteration
+				int[] labels = spRef.getBuffer().getLabels();
+				if (stats.getIteration() > 1) {
+					long changed = 0;
+					for (int i=0; i<labels.length; i++) {
+						if (labels[i] != last[i]) {		changed ++;		}
+					}
+					counted[0] &= (changed == stats.getChangedPixels());
+				}
+				System.arraycopy(labels, 0, last, 0, labels.length);
+			}
+		});
+		// only the maximal number of iterations stops it
+		sp.setConvergence(0.f, 0.f);
+		sp.process(20, 0.2f, 50, 0.25f);
+		int nbFull = sp.getIterationStats().size();
+		assert (counted[0]);
+		assert (sp.getIterationStats().get(0).getChangedPixels() > 0);
+		
+		// stop if less then 5% of pixels changed and centres move only a bit
+		sp.setConvergence(0.05f, 10.f);
+		sp.process(20, 0.2f, 50, 0.25f);
+		int nbConv = sp.getIterationStats().size();
+		assert (counted[0]);
+		assert (nbConv < nbFull);
+		IterationStats lastStats = sp.getIterationStats().get(nbConv-1);
+		assert (lastStats.getChangedFraction() <= 0.05f && lastStats.getMaxShift() <= 10.f);
+	}
+
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLICtiled() throws IOException {
+		Prints.printTitle("SLIC tiled from raw file");
+
+		int w = 330, h = 250, tile = 60, grid = 15;
+		ImageProcessor ip = createSmooth(w, h).getProcessor();
+		// store the image as raw RGB
+		byte[] raw = new byte[3*w*h];
+		for (int y=0, i=0; y<h; y++) {
+			for (int x=0; x<w; x++, i+=3) {
+				int c = ip.get(x, y);
+				raw[i] = (byte) (c >> 16);
+				raw[i+1] = (byte) (c >> 8);
+				raw[i+2] = (byte) c;
+			}
+		}
+		File fRaw = File.createTempFile("slic", ".raw");
+		File fLab = File.createTempFile("slic", ".lab");
+		FileOutputStream os = new FileOutputStream(fRaw);
+		os.write(raw);
+		os.close();
+		
+		RawTileSource src = new RawTileSource(fRaw, w, h, 3, 0);
+		TiledSLIC tiled = new TiledSLIC(src, tile);
+		// the tiled labels are assigned once more by the final centres, so 
+		// they correspond to one more iteration in memory
+		tiled.process(grid, 0.2f, 8, 0.1f, fLab);
+		src.close();
+		assert (fLab.length() == 4L*w*h);
+		
+		// read the labels back
+		int[] labels = new int[w*h];
+		DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(fLab)));
+		for (int i=0; i<labels.length; i++) {
+			labels[i] = is.readInt();
+		}
+		is.close();
+		fRaw.delete();
+		fLab.delete();
+		
+		// the labels are compact and each of them is a single component
+		int n = tiled.getNbLabels();
+		boolean[] used = new boolean[n];
+		int[] parent = new int[w*h];
+		int nbComponents = 0;
+		for (int i=0; i<labels.length; i++) {
+			assert (labels[i] >= 0 && labels[i] < n);
+			used[labels[i]] = true;
+			parent[i] = i;
+			if (i % w > 0 && labels[i-1] == labels[i]) {
+				union(parent, i-1, i);
+			}
+			if (i >= w && labels[i-w] == labels[i]) {
+				union(parent, i-w, i);
+			}
+		}
+		for (int i=0; i<labels.length; i++) {
+			if (find(parent, i) == i) {		nbComponents ++;	}
+		}
+		for (int k=0; k<n; k++) {
+			assert (used[k]);
+		}
+		assert (nbComponents == n);
+		
+		// the seams are not visible - the superpixels cross the seams as in 
+		// the segmentation of the whole image in memory and the boundaries 
+		// of both segmentations are nearly the same
+		jSLIC slic = new jSLIC(createSmooth(w, h));
+		slic.process(grid, 0.2f, 9, 0.1f);
+		int[] ref = slic.getBuffer().getLabels();
+		float[] seams = new float[2], others = new float[2];
+		long agree = 0;
+		for (int y=1; y<h; y++) {
+			for (int x=1; x<w; x++) {
+				int i = y*w + x;
+				boolean cut = labels[i-1] != labels[i], cutRef = ref[i-1] != ref[i];
+				boolean cutUp = labels[i-w] != labels[i], cutUpRef = ref[i-w] != ref[i];
+				agree += (cut == cutRef && cutUp == cutUpRef) ? 1 : 0;
+				if (x % tile == 0 || y % tile == 0) {
+					seams[0] += (x % tile == 0 && cut) || (y % tile == 0 && cutUp) ? 1 : 0;
+					seams[1] += (x % tile == 0 && cutRef) || (y % tile == 0 && cutUpRef) ? 1 : 0;
+				} else {
+					others[0] += (cut || cutUp) ? 1 : 0;
+					others[1] += (cutRef || cutUpRef) ? 1 : 0;
+				}
+			}
+		}
+		System.out.println("tiled: " + n + " superpixels, in memory: " + slic.getNbLabels()
+				+ ", boundaries on seams " + seams[0] + " / " + seams[1] + ", elsewhere " + others[0] + " / " + others[1]
+				+ ", agreement " + (float) agree / ((w-1)*(h-1)));
+		assert (seams[0] < 1.1f * seams[1] && others[0] < 1.1f * others[1]);
+		assert (agree > 0.98f * (w-1)*(h-1));
+		assert (Math.abs(n - slic.getNbLabels()) <= 0.05f * slic.getNbLabels());
+	}
+
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLICtiledGray16() throws IOException {
+		Prints.printTitle("SLIC tiled on 16-bit image");
+
+		final int w = 330, h = 250, tile = 60, grid = 15;
+		// the tiles have very different ranges, the brightest is on the right
+		final ShortProcessor sp16 = new ShortProcessor(w, h);
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				int v = (int) (3000 + 2500*Math.sin(x/17.) * Math.cos(y/23.)) + ((x/40 + y/30) % 2) * 3000;
+				sp16.set(x, y, (x >= 300 && y < 60) ? v + 50000 : v);
+			}
+		}
+		TileSource src = new TileSource() {
+			@Override
+			public int getWidth() {			return w;		}
+			@Override
+			public int getHeight() {		return h;		}
+			@Override
+			public ImageProcessor readRegion(int x0, int y0, int rw, int rh) {
+				ShortProcessor region = new ShortProcessor(rw, rh);
+				for (int y=0; y<rh; y++) {
+					for (int x=0; x<rw; x++) {
+						region.set(x, y, sp16.get(x0+x, y0+y));
+					}
+				}
+				return region;
+			}
+		};
+		File fLab = File.createTempFile("slic", ".lab");
+		TiledSLIC tiled = new TiledSLIC(src, tile);
+		tiled.process(grid, 0.2f, 8, 0.1f, fLab);
+		int[] labels = new int[w*h];
+		DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(fLab)));
+		for (int i=0; i<labels.length; i++) {
+			labels[i] = is.readInt();
+		}
+		is.close();
+		fLab.delete();
+
+		// the whole image in memory is scaled by its range as the tiles are
+		jSLIC slic = new jSLIC(new ImagePlus("gray16", sp16));
+		slic.process(grid, 0.2f, 9, 0.1f);
+		int[] ref = slic.getBuffer().getLabels();
+		long agree = 0;
+		for (int y=1; y<h; y++) {
+			for (int x=1; x<w; x++) {
+				int i = y*w + x;
+				agree += ((labels[i-1] != labels[i]) == (ref[i-1] != ref[i])
+						&& (labels[i-w] != labels[i]) == (ref[i-w] != ref[i])) ? 1 : 0;
+			}
+		}
+		System.out.println("tiled: " + tiled.getNbLabels() + " superpixels, in memory: " + slic.getNbLabels()
+				+ ", agreement " + (float) agree / ((w-1)*(h-1)));
+		assert (agree > 0.98f * (w-1)*(h-1));
+		assert (Math.abs(tiled.getNbLabels() - slic.getNbLabels()) <= 0.05f * slic.getNbLabels());
+	}
+
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLICwarmStart() {
+		Prints.printTitle("SLIC warm start on frames");
+
+		ImagePlus im = createSmooth(400, 300);
+		sp = new jSLIC(im);
+		sp.setWarmStart(true);
+		// the first frame till the residual stops decreasing
+		sp.process(20, 0.2f, 50, 0.1f);
+		int nbIterFirst = sp.getIterationStats().size();
+		int[] first = sp.getBuffer().getLabels().clone();
+		// the same frame again has to converge immediately and keep the labels
+		sp.setFrame(im.getProcessor());
+		sp.process(20, 0.2f, 50, 0.1f);
+		int[] second = sp.getBuffer().getLabels();
+		int changed = 0;
+		for (int i=0; i<first.length; i++) {
+			changed += (first[i] != second[i]) ? 1 : 0;
+			// the labels are the cluster indexes
+			assert (second[i] >= 0 && second[i] < sp.getNbLabels());
+		}
+		System.out.println("iterations: " + nbIterFirst + " and warm " + sp.getIterationStats().size()
+				+ ", changed pixels " + changed);
+		assert (sp.getIterationStats().size() <= 2 && sp.getIterationStats().size() < nbIterFirst);
+		assert (changed <= 0.005f * first.length);
+	}
+
+	/**
+	 * the coarse-to-fine mode has to give nearly the same superpixels as 
+	 * the full resolution, see BenchmarkSLIC for the speed
+	 */
+	@Test
+	public void test_SLICpyramid() {
+		Prints.printTitle("SLIC pyramid");
+
+		int w = 400, h = 300;
+		ImagePlus im = createSmooth(w, h);
+		int[][] labels = new int[3][];
+		int[] nbLabels = new int[3];
+		for (int level=0; level<3; level++) {
+			jSLIC slic = new jSLIC(im);
+			slic.setPyramid(level, 1);
+			slic.process(24, 0.2f);
+			labels[level] = slic.getBuffer().getLabels();
+			nbLabels[level] = slic.getNbLabels();
+		}
+		boolean[] ref = boundaryMap(labels[0], w, h);
+		for (int level=1; level<3; level++) {
+			// boundary recall and precision with a tolerance of 2 pixels
+			boolean[] bnd = boundaryMap(labels[level], w, h);
+			float recall = boundaryMatch(ref, bnd, w, h, 2);
+			float precision = boundaryMatch(bnd, ref, w, h, 2);
+			System.out.println("pyramid levels " + level + ": " + nbLabels[level] + " superpixels, full resolution "
+					+ nbLabels[0] + ", boundary recall " + recall + " and precision " + precision);
+			assert (Math.abs(nbLabels[level] - nbLabels[0]) <= 0.15f * nbLabels[0]);
+			// each coarser level costs some accuracy of the boundaries
+			assert (recall > 1.f - 0.1f*level && precision > 1.f - 0.1f*level);
+		}
+	}
+
+	/**
+	 * the SIMD assignment kernel has to give the same segmentation as the 
+	 * scalar one, it runs only with "--add-modules jdk.incubator.vector"
+	 */
+	@Test
+	public void test_SLICvectorKernel() {
+		Prints.printTitle("SLIC SIMD kernel");
+
+		ImagePlus im = createSynthetic(400, 300);
+		int[][] labels = new int[2][];
+		for (int v=0; v<2; v++) {
+			jSLIC slic = new jSLIC(im);
+			slic.setVectorKernel(v == 1);
+			slic.process(20, 0.2f);
+			labels[v] = slic.getBuffer().getLabels();
+		}
+		assert (Arrays.equals(labels[0], labels[1]));
+	}
+	
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLICgray16() {
+		Prints.printTitle("SLIC on native 16-bit intensities");
+
+		ShortProcessor sp16 = new ShortProcessor(256, 256);
+		for (int y=0; y<256; y++) {
+			for (int x=0; x<256; x++) {
+				sp16.set(x, y, ((x/64 + y/64) % 2) * 40000 + (x*y) % 500);
+			}
+		}
+		sp = new jSLIC(new ImagePlus("gray16", sp16));
+		assert (sp.getBuffer().getNbChannels() == 1);
+		// the whole range is mapped to 256 levels
+		assert (Math.abs(sp.getIntensityScale() - 255.f/40499.f) < 1e-6);
+		sp.process(16, 0.2f);
+		int nbDefault = sp.getNbLabels();
+		// stronger intensity weight keeps the superpixels within the blocks
+		sp.setIntensityScale(4 * sp.getIntensityScale());
+		sp.process(16, 0.2f);
+		System.out.println("superpixels: " + nbDefault + ", with larger scale: " + sp.getNbLabels());
+		assert (nbDefault > 0 && sp.getNbLabels() > 0);
+	}
+	
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLICintensityScale() {
+		Prints.printTitle("SLIC intensity scale of following images");
+
+		// two 16-bit images with different ranges
+		ShortProcessor[] ims = new ShortProcessor[2];
+		for (int k=0; k<2; k++) {
+			ims[k] = new ShortProcessor(128, 128);
+			for (int y=0; y<128; y++) {
+				for (int x=0; x<128; x++) {
+					ims[k].set(x, y, ((x/32 + y/32) % 2) * 1000 * (k+1) + (x*y) % 20);
+				}
+			}
+		}
+		jSLIC engine = new jSLIC(128, 128, 1);
+		engine.setParameters(16, 0.2f, 5, 0.1f);
+		// the default scale follows the range of each image
+		engine.segment(ims[0]);
+		assert (Math.abs(engine.getIntensityScale() - 255.f/1019.f) < 1e-6);
+		engine.segment(ims[1]);
+		assert (Math.abs(engine.getIntensityScale() - 255.f/2019.f) < 1e-6);
+		// the scale set by the user is kept for all following images
+		engine.setIntensityScale(0.5f);
+		engine.segment(ims[0]);
+		assert (engine.getIntensityScale() == 0.5f);
+		float[] plane = engine.getBuffer().getPlanes()[0];
+		assert (Math.abs(plane[40] - 0.5f * ims[0].get(40, 0)) < 1e-3);
+	}
+	
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLIChyperstack() {
+		Prints.printTitle("SLIC on multi-channel hyperstack");
+
+		// specialised kernels for 2 and 4 channels and the general one
+		int[] nbChannels = new int[]{2, 4, 7};
+		for (int n : nbChannels) {
+			ImageStack stack = new ImageStack(256, 256);
+			for (int c=0; c<n; c++) {
+				ShortProcessor ch = new ShortProcessor(256, 256);
+				for (int y=0; y<256; y++) {
+					for (int x=0; x<256; x++) {
+						ch.set(x, y, ((x/(40+c) + y/(30+c)) % 2) * 3000 + (x*y*(c+1)) % 200);
+					}
+				}
+				stack.addSlice(ch);
+			}
+			ImagePlus hs = new ImagePlus("hyperstack", stack);
+			hs.setDimensions(n, 1, 1);
+			
+			float[] weights = new float[n];
+			Arrays.fill(weights, 1.f);
+			weights[0] = 2.f;
+			HyperstackSLIC slic = new HyperstackSLIC(hs, weights);
+			assert (slic.getBuffer().getNbChannels() == n);
+			slic.process(16, 0.2f);
+			System.out.println(n + " channels: " + slic.getNbLabels() + " superpixels");
+			assert (slic.getNbLabels() > 0);
+		}
+		
+		// a single channel hyperstack has only the per-channel scales
+		ShortProcessor ch = new ShortProcessor(128, 128);
+		for (int y=0; y<128; y++) {
+			for (int x=0; x<128; x++) {
+				ch.set(x, y, ((x/40 + y/30) % 2) * 3000 + (x*y) % 200);
+			}
+		}
+		HyperstackSLIC slic = new HyperstackSLIC(new ImagePlus("single channel", ch));
+		assert (slic.getIntensityScale() == 0);
+		slic.setIntensityScale(0.1f);
+		assert (slic.getIntensityScale() == 0.1f);
+		float[] plane = slic.getBuffer().getPlanes()[0];
+		for (int i=0; i<plane.length; i++) {
+			assert (Math.abs(plane[i] - 0.1f * ch.get(i % 128, i / 128)) < 1e-2);
+		}
+		slic.process(16, 0.2f);
+		assert (slic.getNbLabels() > 0);
+		// a plain frame goes to the first channel into the same plane
+		ShortProcessor next = new ShortProcessor(128, 128);
+		for (int y=0; y<128; y++) {
+			for (int x=0; x<128; x++) {
+				next.set(x, y, 3200 - ch.get(x, y));
+			}
+		}
+		slic.setFrame(next);
+		assert (slic.getBuffer().getPlanes()[0] == plane);
+		for (int i=0; i<plane.length; i++) {
+			assert (Math.abs(plane[i] - 0.1f * next.get(i % 128, i / 128)) < 1e-2);
+		}
+		slic.process(16, 0.2f);
+		assert (slic.getNbLabels() > 0);
+	}
+	
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLIC3D() {
+		Prints.printTitle("SLIC supervoxels on anisotropic z-stack");
+
+		// a ball in a volume with slices three times thicker then pixels
+		int w = 100, h = 100, d = 30;
+		ImageStack stack = new ImageStack(w, h);
+		for (int z=0; z<d; z++) {
+			ByteProcessor bp = new ByteProcessor(w, h);
+			for (int y=0; y<h; y++) {
+				for (int x=0; x<w; x++) {
+					double r = Math.sqrt((x-50)*(x-50) + (y-50)*(y-50) + (3*z-45)*(3*z-45));
+					bp.set(x, y, (r < 30) ? 200 : 50);
+				}
+			}
+			stack.addSlice(bp);
+		}
+		ImagePlus vol = new ImagePlus("volume", stack);
+		vol.setDimensions(1, d, 1);
+		vol.getCalibration().pixelDepth = 3.;
+		
+		jSLICf slic = new jSLICf(vol);
+		assert (slic.getDepth() == d && slic.getSpacing()[2] == 3.f);
+		slic.process(10, 0.2f);
+		System.out.println("supervoxels: " + slic.getNbLabels());
+		// the supervoxels are nearly cubic so 10x10x3 voxels
+		assert (slic.getNbLabels() > 500 && slic.getNbLabels() < 2000);
+		assert (slic.getSegmentationStack().getStackSize() == d);
+		// the relabelled voxels are counted against the previous iteration
+		List<IterationStats> stats = slic.getIterationStats();
+		assert (stats.get(0).getChangedPixels() > 0);
+		assert (stats.get(stats.size()-1).getChangedPixels() < stats.get(0).getChangedPixels());
+		
+		// a single slice is the same as the plane of the label stack
+		Labelling2D segm = slic.getSegmentation(d/2);
+		ImageStack labels = slic.getSegmentationStack().getStack();
+		for (int y=0; y<h; y+=7) {
+			for (int x=0; x<w; x+=7) {
+				assert (segm.getLabel(x, y) == (int) labels.getProcessor(d/2 + 1).getf(x, y));
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLICstack() {
+		Prints.printTitle("SLIC on all stack slices in parallel");
+
+		ImageStack stack = new ImageStack(200, 150);
+		for (int z=0; z<6; z++) {
+			ColorProcessor cp = new ColorProcessor(200, 150);
+			for (int y=0; y<150; y++) {
+				for (int x=0; x<200; x++) {
+					cp.set(x, y, ((((x+7*z)/30 + y/25) % 2) * 150) << 8 | ((x*y) % 64));
+				}
+			}
+			stack.addSlice(cp);
+		}
+		ImagePlus im = new ImagePlus("stack", stack);
+		
+		StackSLIC stackSP = new StackSLIC(im);
+		stackSP.setMaxInFlight(2);
+		ImagePlus labels = stackSP.process(15, 0.2f);
+		assert (labels.getStackSize() == 6);
+		// each plane has to be the same as segmented separately
+		for (int z=0; z<6; z++) {
+			jSLIC slic = new jSLIC(new ImagePlus("slice", stack.getProcessor(z+1)));
+			slic.process(15, 0.2f);
+			assert (slic.getNbLabels() == stackSP.getNbLabels()[z]);
+			assert (labels.getStack().getProcessor(z+1).getf(100, 75) == slic.getBuffer().getLabels()[75*200 + 100]);
+		}
+	}
+	
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLICengine() {
+		Prints.printTitle("SLIC reusable engine");
+
+		ImagePlus im = createSynthetic(512, 512);
+		jSLIC engine = new jSLIC(512, 512, 3);
+		// the second run changes only the regularisation
+		float[] reguls = new float[]{0.2f, 0.5f, 0.2f};
+		for (float reg : reguls) {
+			engine.setParameters(20, reg, 9, 0.1f);
+			int[] labels = engine.segment(im.getProcessor());
+			jSLIC fresh = new jSLIC(im);
+			fresh.process(20, reg, 9, 0.1f);
+			assert (Arrays.equals(labels, fresh.getBuffer().getLabels()));
+			assert (engine.getNbLabels() == fresh.getNbLabels());
+		}
+	}
+	
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLICengines() {
+		Prints.printTitle("SLIC engines comparison");
+
+		ImagePlus im = createSynthetic(400, 300);
+		SuperpixelEngine[] engines = new SuperpixelEngine[]{new JSLICEngine(), new EPFLSLICEngine()};
+		for (SuperpixelEngine engine : engines) {
+			// no statistics before the first image
+			assert (engine.getIterationStats().isEmpty() && engine.getNbLabels() == 0);
+			engine.setParameters(20, 0.2f);
+			Labelling2D segm = engine.segment(im.getProcessor());
+			System.out.println(engine.getName() + ": " + engine.getNbLabels() + " superpixels in "
+					+ engine.getTime() + "ms, " + engine.getIterationStats().size() + " iterations");
+			assert (engine.getNbLabels() > 20 && engine.getNbLabels() < 600);
+			assert (segm.getMaxLabel() == engine.getNbLabels() - 1);
+		}
+	}
+	
+	/**
+	 * 
+	 */
+	@Test
+	public void test_SLICadaptive() {
+		Prints.printTitle("SLIC adaptive compactness (SLICO)");
+
+		// flat left half and textured right half
+		int w = 400, h = 300;
+		ColorProcessor cp = new ColorProcessor(w, h);
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				int v = (x < w/2) ? 100 + x/20 + (x*7 + y*13) % 6
+						: (int) (128 + 90*Math.sin(x/2.5)*Math.cos(y/3.5)) + (x*31 + y*17) % 20;
+				cp.set(x, y, (v << 16) | (((x < w/2) ? v : 255-v) << 8) | v);
+			}
+		}
+		int[] textured = new int[2];
+		for (int m=0; m<2; m++) {
+			jSLIC slic = new jSLIC(new ImagePlus("flat and texture", cp));
+			slic.setAdaptiveCompactness(m == 1);
+			slic.process(20, 0.2f);
+			// count superpixels by theirs centroids in the right half
+			int n = slic.getNbLabels();
+			int[] labels = slic.getBuffer().getLabels();
+			long[] sumX = new long[n];
+			int[] area = new int[n];
+			for (int i=0; i<labels.length; i++) {
+				sumX[labels[i]] += i % w;
+				area[labels[i]] ++;
+			}
+			for (int k=0; k<n; k++) {
+				if (sumX[k] >= (long) area[k] * (w/2)) {
+					textured[m] ++;
+				}
+			}
+			System.out.println(((m == 1) ? "adaptive" : "fixed") + ": " + n + " superpixels, " + textured[m] + " in the textured half");
+		}
+		// the textured half is not merged into a few large superpixels
+		assert (textured[1] > textured[0]);
+		assert (textured[1] > 100 && textured[1] < 200);
+	}
+	
+	/**
+	 * synthetic RGB image with smooth and blocky regions without noise, so 
+	 * the connectivity does not merge long chains of tiny fragments
+	 */
+	private static ImagePlus createSmooth(int w, int h) {
+		ColorProcessor cp = new ColorProcessor(w, h);
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				int r = (int) (128 + 100*Math.sin(x/17.) * Math.cos(y/23.));
+				int g = ((x/40 + y/30) % 2) * 120 + (x*7 + y*13) % 20;
+				cp.set(x, y, (r << 16) | (g << 8) | 80);
+			}
+		}
+		return new ImagePlus("smooth", cp);
+	}
+	
+	/**
+	 * pixels which have a different label on the left or above
+	 */
+	private static boolean[] boundaryMap(int[] labels, int w, int h) {
+		boolean[] bnd = new boolean[w*h];
+		for (int i=0; i<w*h; i++) {
+			bnd[i] = (i % w > 0 && labels[i-1] != labels[i]) || (i >= w && labels[i-w] != labels[i]);
+		}
+		return bnd;
+	}
+	
+	/**
+	 * fraction of the boundary pixels of the first map which have a boundary 
+	 * pixel of the second map in the given distance (chessboard)
+	 */
+	private static float boundaryMatch(boolean[] bnd, boolean[] other, int w, int h, int tol) {
+		long nb = 0, found = 0;
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				if (! bnd[y*w + x]) {		continue;	}
+				nb ++;
+				search:
+				for (int v=Math.max(0, y-tol); v<=Math.min(h-1, y+tol); v++) {
+					for (int u=Math.max(0, x-tol); u<=Math.min(w-1, x+tol); u++) {
+						if (other[v*w + u]) {
+							found ++;
+							break search;
+						}
+					}
+				}
+			}
+		}
+		return (nb == 0) ? 1.f : (float) found / nb;
+	}
+	
+	/**
+	 * join two trees of a union-find forest
+	 */
+	private static void union(int[] parent, int a, int b) {
+		a = find(parent, a);
+		b = find(parent, b);
+		parent[Math.max(a, b)] = Math.min(a, b);
+	}
+	
+	/**
+	 * find the root of an element of a union-find forest
+	 */
+	private static int find(int[] parent, int a) {
+		while (parent[a] != a) {
+			a = parent[a];
+		}
+		return a;
+	}
+	
+	/**
+	 * synthetic RGB image with smooth and textured regions
+	 */
+	static ImagePlus createSynthetic(int w, int h) {
+		ColorProcessor cp = new ColorProcessor(w, h);
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				int r = (int) (128 + 100*Math.sin(x/17.) * Math.cos(y/23.));
+				int g = ((x/40 + y/30) % 2) * 120 + (x*7 + y*13) % 20;
+				cp.set(x, y, (r << 16) | (g << 8) | ((x*y) % 256));
+			}
+		}
+		return new ImagePlus("synthetic", cp);
+	}
+
 }
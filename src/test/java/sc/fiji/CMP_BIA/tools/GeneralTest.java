@@ -1,12 +1,20 @@
 package sc.fiji.CMP_BIA.tools;
 
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ij.process.ColorProcessor;
 
 import org.junit.Test;
 
 import sc.fiji.CMP_BIA.tools.Generators;
 import sc.fiji.CMP_BIA.tools.MatrixTools;
 import sc.fiji.CMP_BIA.tools.OptionalParameters;
+import sc.fiji.CMP_BIA.tools.converters.ColourLUT;
+import sc.fiji.CMP_BIA.tools.converters.ConvertColour;
+import sc.fiji.CMP_BIA.tools.converters.ConvertImage;
+import sc.fiji.CMP_BIA.tools.converters.LabConverter;
 
 
 /**
@@ -88,4 +96,124 @@ public class GeneralTest {
 			e.printStackTrace();
 		}
 	}
-}
+	
+	/**
+	 * 
+	 */
+	@Test
+	public void test_ColourLUT() {
+		Prints.printTitle("Colour lookup table");
+		
+		int[] lab = new int[3], labLUT = new int[3];
+		for (int r=0; r<256; r+=15) {
+			for (int g=0; g<256; g+=15) {
+				for (int b=0; b<256; b+=15) {
+					ConvertColour.rgb2lab(r, g, b, lab);
+					// the second call reads the cached value
+					ColourLUT.rgb2lab((r << 16) | (g << 8) | b, labLUT);
+					ColourLUT.rgb2lab((r << 16) | (g << 8) | b, labLUT);
+					assert (lab[0] == labLUT[0] && lab[1] == labLUT[1] && lab[2] == labLUT[2]);
+				}
+			}
+		}
+		Prints.printArray(lab);
+	}
+	
+	/**
+	 * 
+	 */
+	@Test
+	public void test_LabConverter() {
+		Prints.printTitle("Batch LAB conversion");
+		
+		// the cube root within its error bound
+		for (double x=1e-3; x<10; x*=1.01) {
+			assert (Math.abs(LabConverter.cbrt(x) - Math.cbrt(x)) <= 1e-14 * Math.cbrt(x));
+		}
+		// the batch conversion gives the same values as the single pixels
+		int[] rgb = new int[64*64*64];
+		for (int i=0; i<rgb.length; i++) {
+			rgb[i] = ((i >> 12) * 4 << 16) | (((i >> 6) & 63) * 4 << 8) | ((i & 63) * 4 + 3);
+		}
+		float[] L = new float[rgb.length], a = new float[rgb.length], b = new float[rgb.length];
+		LabConverter.convert(rgb, L, a, b);
+		int[] lab = new int[3];
+		for (int i=0; i<rgb.length; i++) {
+			ConvertColour.rgb2lab((rgb[i] >> 16) & 0xff, (rgb[i] >> 8) & 0xff, rgb[i] & 0xff, lab);
+			assert (lab[0] == (int) L[i] && lab[1] == (int) a[i] && lab[2] == (int) b[i]);
+		}
+		// the float input gives the same values as the 8-bit one
+		int[] labF = new int[3];
+		ConvertColour.rgb2lab(200/255f, 30/255f, 90/255f, labF);
+		ConvertColour.rgb2lab(200, 30, 90, lab);
+		assert (lab[0] == labF[0] && lab[1] == labF[1] && lab[2] == labF[2]);
+		Prints.printArray(lab);
+	}
+	
+	/**
+	 * 
+	 */
+	@Test
+	public void test_ConvertImage() {
+		Prints.printTitle("Bulk image conversion");
+		
+		int w = 37, h = 23;
+		ColorProcessor cp = new ColorProcessor(w, h);
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				cp.set(x, y, (x*7 << 16) | (y*11 << 8) | ((x+y)*5));
+			}
+		}
+		int[][][] lab = ConvertImage.rgb2cieLAB(cp);
+		int[][][] labFast = ConvertImage.rgb2cieLABfast(cp);
+		float[][] planes = ConvertImage.rgb2cieLABplanes(cp);
+		// all converters have to agree, the planes are in row-major order
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				for (int c=0; c<3; c++) {
+					assert (lab[x][y][c] == labFast[x][y][c]);
+					assert (lab[x][y][c] == (int) planes[c][y*w + x]);
+				}
+			}
+		}
+		Prints.printArray(lab[w-1][h-1]);
+	}
+	
+	/**
+	 * 
+	 */
+	@Test
+	public void test_ThreadingResize() throws InterruptedException {
+		Prints.printTitle("Changing the number of workers while loops run");
+		
+		final AtomicLong sum = new AtomicLong(0);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>(null);
+		Thread worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int k=0; k<5000; k++) {
+						Threading.parallelFor(0, 1000, 100, new Threading.RangeTask() {
+							@Override
+							public void run(int begin, int end) {
+								sum.addAndGet(end - begin);
+							}
+						});
+					}
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			}
+		});
+		worker.start();
+		// the pool held by the running loops must not be shut down
+		for (int k=0; worker.isAlive(); k++) {
+			Threading.setNbThreads(1 + k % 3);
+		}
+		worker.join();
+		Threading.setNbThreads(0);
+		assert (error.get() == null);
+		assert (sum.get() == 5000 * 1000);
+	}
+	
+}
\ No newline at end of file